@@ -1,9 +1,10 @@
 package lsi.sling.FragmentHandling;
 
+import lsi.sling.statistics.PrimitiveStatistics;
 import org.apache.commons.math3.ml.clustering.Cluster;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This class represents the clustered AlignedClusters, which are basically the final step in the cluster processing
@@ -21,10 +22,25 @@ public class ClusteredAlignedFragmentCluster {
      * @param cluster the input cluster of AlignedFragmentClusters from the DBSCAN clustering algorithm.
      */
     public ClusteredAlignedFragmentCluster(Cluster<AlignedFragmentCluster> cluster){
-        alignedFragmentClusters = new ArrayList<>(cluster.getPoints().size());
-        alignedFragmentClusters.addAll(cluster.getPoints());
-        medianMZ = new DescriptiveStatistics(alignedFragmentClusters.stream().mapToDouble(AlignedFragmentCluster::getAlignedMZ).toArray()).getPercentile(50);
-        medianRT = new DescriptiveStatistics(alignedFragmentClusters.stream().mapToDouble(AlignedFragmentCluster::getAlignedRT).toArray()).getPercentile(50);
+        this(cluster.getPoints());
+    }
+
+    /**
+     * Creates a ClusteredAlignedFragmentCluster given the AlignedFragmentClusters which make up the cluster (e.g. one
+     * of the clusters returned by the SortedSweepClusterer)
+     * @param points the AlignedFragmentClusters which belong to this cluster
+     */
+    public ClusteredAlignedFragmentCluster(List<AlignedFragmentCluster> points){
+        alignedFragmentClusters = new ArrayList<>(points.size());
+        alignedFragmentClusters.addAll(points);
+        double[] mzs = new double[points.size()];
+        double[] rts = new double[points.size()];
+        for(int i=0; i<mzs.length; i++){
+            mzs[i] = alignedFragmentClusters.get(i).getAlignedMZ();
+            rts[i] = alignedFragmentClusters.get(i).getAlignedRT();
+        }
+        medianMZ = PrimitiveStatistics.median(mzs);
+        medianRT = PrimitiveStatistics.median(rts);
         //medianMZ = alignedFragmentClusters.stream().mapToDouble(AlignedFragmentCluster::getAlignedMZ).average().getAsDouble();
         //medianRT = alignedFragmentClusters.stream().mapToDouble(AlignedFragmentCluster::getAlignedRT).average().getAsDouble();
     }
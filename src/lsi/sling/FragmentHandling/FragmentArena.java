@@ -0,0 +1,81 @@
+package lsi.sling.FragmentHandling;
+
+import java.util.Arrays;
+
+/**
+ * Stores all of the decoded MS2 fragments from a single mzXML file in contiguous primitive columns (m/z, intensity and
+ * RT). Each decoded MS2 scan occupies a single (offset, length) range, so the fragments of a precursor peak can be
+ * referred to without creating an object per fragment.
+ * <p>
+ * Fragments are only ever appended (never removed), so a range stays valid for the lifetime of the arena. Appending is
+ * synchronised and the columns are replaced (never modified in place once published) when the arena grows, so the
+ * arena can be read from several threads whilst other scans are being decoded.
+ */
+public class FragmentArena {
+
+    private final static int INITIAL_CAPACITY = 1024;
+
+    private volatile double[] mz;
+    private volatile float[] intensity;
+    private volatile float[] rt;
+    private int size;
+
+    public FragmentArena(){
+        mz = new double[INITIAL_CAPACITY];
+        intensity = new float[INITIAL_CAPACITY];
+        rt = new float[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    /**
+     * Appends the fragments from a single MS2 scan to the end of the arena
+     * @param mzs The m/z values of the fragments
+     * @param intensities The intensities of the fragments
+     * @param scanRT The RT of the MS2 scan (shared by all of the fragments)
+     * @return The offset of the first appended fragment. The fragments occupy [offset, offset+mzs.length)
+     */
+    public synchronized int append(double[] mzs, double[] intensities, double scanRT){
+        int offset = size;
+        int required = size + mzs.length;
+        double[] mzColumn = mz;
+        float[] intensityColumn = intensity;
+        float[] rtColumn = rt;
+        if(required > mzColumn.length){
+            int capacity = Math.max(required, mzColumn.length*2);
+            mzColumn = Arrays.copyOf(mzColumn, capacity);
+            intensityColumn = Arrays.copyOf(intensityColumn, capacity);
+            rtColumn = Arrays.copyOf(rtColumn, capacity);
+        }
+        for(int i=0; i<mzs.length; i++){
+            mzColumn[offset+i] = mzs[i];
+            intensityColumn[offset+i] = (float) intensities[i];
+            rtColumn[offset+i] = (float) scanRT;
+        }
+        size = required;
+        //the volatile writes publish the filled columns to readers on other threads
+        rt = rtColumn;
+        intensity = intensityColumn;
+        mz = mzColumn;
+        return offset;
+    }
+
+    public double getMZ(int index){
+        return mz[index];
+    }
+
+    public double getIntensity(int index){
+        return intensity[index];
+    }
+
+    public double getRT(int index){
+        return rt[index];
+    }
+
+    /**
+     * Returns the number of fragments stored in the arena
+     * @return the number of fragments
+     */
+    public synchronized int size(){
+        return size;
+    }
+}
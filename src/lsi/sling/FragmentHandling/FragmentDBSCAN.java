@@ -0,0 +1,191 @@
+package lsi.sling.FragmentHandling;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A DBSCAN implementation which clusters fragments by (m/z, RT) directly from the columns of a FragmentArena. It gives
+ * the same clusters as the apache commons DBSCANClusterer (with the euclidean distance), but:
+ * <ul>
+ *     <li>no objects are created per fragment or per distance calculation</li>
+ *     <li>neighbours are found with a sweep over the fragments sorted by m/z, so only the fragments within eps in m/z
+ *     are ever compared, rather than every pair of fragments</li>
+ * </ul>
+ * As in the apache commons implementation, the points are visited in input order, so border points which could belong
+ * to more than one cluster are assigned to the same cluster.
+ */
+public class FragmentDBSCAN {
+
+    private final static int UNVISITED = 0;
+    private final static int NOISE = 1;
+    private final static int PART_OF_CLUSTER = 2;
+
+    private double eps;
+    private int minPts;
+
+    /**
+     * Creates a clusterer with the same parameters as the apache commons DBSCANClusterer
+     * @param eps The maximum (euclidean) distance between two neighbouring points
+     * @param minPts The minimum number of neighbours (not including the point itself) a core point needs
+     */
+    public FragmentDBSCAN(double eps, int minPts){
+        this.eps = eps;
+        this.minPts = minPts;
+    }
+
+    /**
+     * Clusters the fragments in the given view
+     * @param fragments The fragments to cluster
+     * @return A list of clusters, each of which contains the arena indices of the fragments in that cluster
+     */
+    public List<int[]> cluster(FragmentView fragments){
+        int n = fragments.size();
+        List<int[]> clusters = new ArrayList<>();
+        if(n == 0){
+            return clusters;
+        }
+        FragmentArena arena = fragments.getArena();
+        int[] arenaIndex = fragments.arenaIndices();
+        //the sweep index: the (input) positions of the points sorted by m/z, and the sorted m/z values themselves
+        double[] mz = new double[n];
+        double[] rt = new double[n];
+        for(int i=0; i<n; i++){
+            mz[i] = arena.getMZ(arenaIndex[i]);
+            rt[i] = arena.getRT(arenaIndex[i]);
+        }
+        int[] order = new int[n];
+        for(int i=0; i<n; i++){
+            order[i] = i;
+        }
+        sortByKey(order, mz, 0, n-1);
+        int[] rank = new int[n]; //the position of each point in the sorted order
+        double[] sortedMZ = new double[n];
+        for(int s=0; s<n; s++){
+            rank[order[s]] = s;
+            sortedMZ[s] = mz[order[s]];
+        }
+
+        int[] status = new int[n];
+        boolean[] inSeeds = new boolean[n];
+        int[] neighbours = new int[n];
+        int[] seeds = new int[n];
+        int[] members = new int[n];
+        for(int point=0; point<n; point++){
+            if(status[point] != UNVISITED){
+                continue;
+            }
+            int neighbourCount = neighbours(point, mz, rt, sortedMZ, order, rank, neighbours);
+            if(neighbourCount < minPts){
+                status[point] = NOISE;
+                continue;
+            }
+            //expands the cluster from this core point (the same logic as DBSCANClusterer.expandCluster)
+            int memberCount = 0;
+            members[memberCount++] = point;
+            status[point] = PART_OF_CLUSTER;
+            int seedCount = 0;
+            for(int i=0; i<neighbourCount; i++){
+                seeds[seedCount++] = neighbours[i];
+                inSeeds[neighbours[i]] = true;
+            }
+            for(int index=0; index<seedCount; index++){
+                int current = seeds[index];
+                int currentStatus = status[current];
+                if(currentStatus == UNVISITED){
+                    int currentCount = neighbours(current, mz, rt, sortedMZ, order, rank, neighbours);
+                    if(currentCount >= minPts){
+                        for(int i=0; i<currentCount; i++){
+                            if(!inSeeds[neighbours[i]]){
+                                seeds[seedCount++] = neighbours[i];
+                                inSeeds[neighbours[i]] = true;
+                            }
+                        }
+                    }
+                }
+                if(currentStatus != PART_OF_CLUSTER){
+                    status[current] = PART_OF_CLUSTER;
+                    members[memberCount++] = current;
+                }
+            }
+            for(int i=0; i<seedCount; i++){
+                inSeeds[seeds[i]] = false;
+            }
+            int[] cluster = new int[memberCount];
+            for(int i=0; i<memberCount; i++){
+                cluster[i] = arenaIndex[members[i]];
+            }
+            clusters.add(cluster);
+        }
+        return clusters;
+    }
+
+    /**
+     * Finds all of the other points within eps of the given point (as in DBSCANClusterer, the point itself isn't
+     * counted as one of its own neighbours). Only the points within eps in m/z are checked, by sweeping outwards from
+     * the position of the point in the sorted order.
+     * @return The number of neighbours, which are stored at the start of the neighbours array
+     */
+    private int neighbours(int point, double[] mz, double[] rt, double[] sortedMZ, int[] order, int[] rank, int[] neighbours){
+        int count = 0;
+        int start = rank[point];
+        for(int s=start; s>=0 && mz[point]-sortedMZ[s] <= eps; s--){
+            int other = order[s];
+            double dmz = mz[point]-mz[other];
+            double drt = rt[point]-rt[other];
+            if(other != point && Math.sqrt(dmz*dmz + drt*drt) <= eps){ //the same calculation as the EuclideanDistance
+                neighbours[count++] = other;
+            }
+        }
+        for(int s=start+1; s<sortedMZ.length && sortedMZ[s]-mz[point] <= eps; s++){
+            int other = order[s];
+            double dmz = mz[point]-mz[other];
+            double drt = rt[point]-rt[other];
+            if(Math.sqrt(dmz*dmz + drt*drt) <= eps){ //the same calculation as the EuclideanDistance
+                neighbours[count++] = other;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sorts the indices in ascending order of their keys (a quicksort on primitives, to avoid boxing)
+     */
+    private static void sortByKey(int[] indices, double[] keys, int lo, int hi){
+        while(lo < hi){
+            if(hi - lo < 16){
+                for(int i=lo+1; i<=hi; i++){
+                    int value = indices[i];
+                    int j = i-1;
+                    while(j >= lo && keys[indices[j]] > keys[value]){
+                        indices[j+1] = indices[j];
+                        j--;
+                    }
+                    indices[j+1] = value;
+                }
+                return;
+            }
+            double pivot = keys[indices[(lo+hi) >>> 1]];
+            int i = lo;
+            int j = hi;
+            while(i <= j){
+                while(keys[indices[i]] < pivot) i++;
+                while(keys[indices[j]] > pivot) j--;
+                if(i <= j){
+                    int temp = indices[i];
+                    indices[i] = indices[j];
+                    indices[j] = temp;
+                    i++;
+                    j--;
+                }
+            }
+            //recurses into the smaller half to bound the stack depth
+            if(j - lo < hi - i){
+                sortByKey(indices, keys, lo, j);
+                lo = i;
+            } else {
+                sortByKey(indices, keys, i, hi);
+                hi = j;
+            }
+        }
+    }
+}
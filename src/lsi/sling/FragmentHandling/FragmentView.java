@@ -0,0 +1,93 @@
+package lsi.sling.FragmentHandling;
+
+import java.util.Arrays;
+
+/**
+ * A read-only view over a set of (offset, length) ranges in a FragmentArena, e.g. all the fragments of a chromatogram.
+ * No fragment data is copied; the view only stores the ranges and translates a position in the view into a position in
+ * the arena.
+ */
+public class FragmentView {
+
+    private FragmentArena arena;
+    private int[] offsets;
+    private int[] starts; //starts[i] is the position in the view of the first fragment of range i
+    private int size;
+
+    /**
+     * Creates a view over the given ranges of the arena. The ranges are used in the order given.
+     * @param arena The arena which contains the fragments (may be null if there are no ranges)
+     * @param offsets The offsets of the ranges in the arena
+     * @param lengths The lengths of the ranges
+     * @param rangeCount The number of ranges to use from the offsets and lengths arrays
+     */
+    public FragmentView(FragmentArena arena, int[] offsets, int[] lengths, int rangeCount){
+        this.arena = arena;
+        this.offsets = Arrays.copyOf(offsets, rangeCount);
+        starts = new int[rangeCount];
+        int total = 0;
+        for(int i=0; i<rangeCount; i++){
+            starts[i] = total;
+            total += lengths[i];
+        }
+        size = total;
+    }
+
+    /**
+     * Returns the number of fragments in the view
+     * @return the number of fragments
+     */
+    public int size(){
+        return size;
+    }
+
+    public FragmentArena getArena(){
+        return arena;
+    }
+
+    /**
+     * Translates a position in this view into the position of the fragment in the arena
+     * @param i The position in the view
+     * @return The position in the arena
+     */
+    public int arenaIndex(int i){
+        int range = Arrays.binarySearch(starts, i);
+        if(range < 0){
+            range = -range - 2; //the range which starts before i
+        } else {
+            //empty ranges share their start with the next range, so use the last range with this start
+            while(range+1 < starts.length && starts[range+1] == i){
+                range++;
+            }
+        }
+        return offsets[range] + (i - starts[range]);
+    }
+
+    /**
+     * Returns the positions in the arena of all of the fragments in this view (in order). This is intended for the
+     * clustering code, which can then read the arena columns directly.
+     * @return An array containing the arena index of every fragment in this view
+     */
+    public int[] arenaIndices(){
+        int[] indices = new int[size];
+        for(int r=0; r<offsets.length; r++){
+            int end = r+1 < starts.length ? starts[r+1] : size;
+            for(int i=starts[r]; i<end; i++){
+                indices[i] = offsets[r] + (i - starts[r]);
+            }
+        }
+        return indices;
+    }
+
+    public double getMZ(int i){
+        return arena.getMZ(arenaIndex(i));
+    }
+
+    public double getIntensity(int i){
+        return arena.getIntensity(arenaIndex(i));
+    }
+
+    public double getRT(int i){
+        return arena.getRT(arenaIndex(i));
+    }
+}
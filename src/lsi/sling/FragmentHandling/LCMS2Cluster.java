@@ -1,33 +1,41 @@
 package lsi.sling.FragmentHandling;
 
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
-
-import java.util.ArrayList;
+import lsi.sling.statistics.PrimitiveStatistics;
 
 /**
- * This class represents the clustered MS2Fragments generated by each LCPeakCluster
+ * This class represents the clustered MS2Fragments generated by each LCPeakCluster. The fragments themselves stay in the
+ * FragmentArena of the file; this class only stores their positions in the arena.
  */
 public class LCMS2Cluster {
 
-    private ArrayList<LCMS2Fragment> fragments;
+    private int[] fragmentIndices;
     private double medianMZ;
     private double medianRT;
 
     /**
-     * Creates an LCMS2Cluster with the input list of MS2Fragments. The intention is for the input list to be generated
-     * by the DBScan clustering algorithm (in the LCPeakCluster class).
-     * @param inputFragments The input list of MS2Fragments which all belong to the same cluster
+     * Creates an LCMS2Cluster from the input fragments. The intention is for the input to be generated by the DBScan
+     * clustering algorithm (in the LCPeakCluster class).
+     * @param arena The arena which contains the fragments
+     * @param fragmentIndices The positions in the arena of the fragments which all belong to the same cluster
      */
-    public LCMS2Cluster(ArrayList<LCMS2Fragment> inputFragments){
-        fragments = inputFragments;
-        medianMZ = new DescriptiveStatistics(inputFragments.stream().mapToDouble(LCMS2Fragment::getMZ).toArray()).getPercentile(50);
-        medianRT = new DescriptiveStatistics(inputFragments.stream().mapToDouble(LCMS2Fragment::getRT).toArray()).getPercentile(50);
-        //medianMZ = inputFragments.stream().mapToDouble(LCMS2Fragment::getMZ).summaryStatistics().getAverage();
-        //medianRT = inputFragments.stream().mapToDouble(LCMS2Fragment::getRT).summaryStatistics().getAverage();
+    public LCMS2Cluster(FragmentArena arena, int[] fragmentIndices){
+        this.fragmentIndices = fragmentIndices;
+        double[] mzs = new double[fragmentIndices.length];
+        double[] rts = new double[fragmentIndices.length];
+        for(int i=0; i<fragmentIndices.length; i++){
+            mzs[i] = arena.getMZ(fragmentIndices[i]);
+            rts[i] = arena.getRT(fragmentIndices[i]);
+        }
+        medianMZ = PrimitiveStatistics.median(mzs);
+        medianRT = PrimitiveStatistics.median(rts);
     }
 
-    public ArrayList<LCMS2Fragment> getLCFragments(){
-        return fragments;
+    /**
+     * Returns the number of fragments in this cluster
+     * @return the number of fragments
+     */
+    public int size(){
+        return fragmentIndices.length;
     }
 
     double getMZ(){
@@ -0,0 +1,50 @@
+package lsi.sling.FragmentHandling;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Clusters points in one dimension by linking every pair of neighbouring points which are within eps of each other.
+ * This gives exactly the same clusters as DBSCAN with minPts=0 (where every point is a core point, so clusters are the
+ * connected components of the eps-neighbourhood graph), but in one dimension those components can be found by sorting
+ * the points once and splitting wherever the gap between consecutive points is larger than eps. This takes O(n log n)
+ * time, with no allocation per comparison.
+ */
+public class SortedSweepClusterer<T> {
+
+    private double eps;
+    private ToDoubleFunction<T> position;
+
+    /**
+     * Creates a clusterer with the given linking distance
+     * @param eps The maximum distance between two neighbouring points in the same cluster (inclusive, as in DBSCAN)
+     * @param position Returns the (one dimensional) position of a point
+     */
+    public SortedSweepClusterer(double eps, ToDoubleFunction<T> position){
+        this.eps = eps;
+        this.position = position;
+    }
+
+    /**
+     * Clusters the given points. The input list is not modified.
+     * @param points The points to cluster
+     * @return The clusters, in ascending order of position. The points in each cluster are also in ascending order
+     */
+    public List<List<T>> cluster(List<T> points){
+        ArrayList<T> sorted = new ArrayList<>(points);
+        sorted.sort((a, b) -> Double.compare(position.applyAsDouble(a), position.applyAsDouble(b)));
+        List<List<T>> clusters = new ArrayList<>();
+        int start = 0;
+        for(int i=1; i<=sorted.size(); i++){
+            //a cluster ends at the end of the list, or where the next point is too far away to be linked
+            if(i == sorted.size() || position.applyAsDouble(sorted.get(i)) - position.applyAsDouble(sorted.get(i-1)) > eps){
+                if(i > start){
+                    clusters.add(new ArrayList<>(sorted.subList(start, i)));
+                }
+                start = i;
+            }
+        }
+        return clusters;
+    }
+}
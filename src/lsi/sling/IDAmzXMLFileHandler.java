@@ -2,8 +2,14 @@ package lsi.sling;
 
 import lsi.sling.databasehandling.AdductDatabase;
 import lsi.sling.mzxmlfilehandling.MzXMLFile;
+import lsi.sling.mzxmlfilehandling.TraceMatrix;
 import lsi.sling.peakextraction.AlignedPeakCluster;
+import lsi.sling.peakextraction.AlignmentState;
 import lsi.sling.peakextraction.LCPeakCluster;
+import lsi.sling.peakextraction.RTAligner;
+import lsi.sling.peakextraction.RTWarp;
+import lsi.sling.resulthandling.FeatureIndex;
+import lsi.sling.resulthandling.FeatureMatrix;
 import org.apache.commons.math3.ml.clustering.Cluster;
 import org.apache.commons.math3.ml.clustering.DBSCANClusterer;
 import umich.ms.fileio.exceptions.FileParsingException;
@@ -12,7 +18,11 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -32,28 +42,51 @@ public class IDAmzXMLFileHandler {
 
     public ArrayList<MzXMLFile> files;
     public ArrayList<AlignedPeakCluster> alignedPeakClusters;
+    public AlignmentState alignmentState;
+    //The LCPeakClusters (read in this session) belonging to each feature of the alignmentState
+    private HashMap<Integer, ArrayList<LCPeakCluster>> featureMembers;
+    private HashMap<Integer, AlignedPeakCluster> featureClusters;
+    //The RT drift correction of each file (by file location), and the reference sample it was fitted against
+    private HashMap<String, RTWarp> rtWarps;
+    private RTAligner rtAligner;
 
     public IDAmzXMLFileHandler(String databaseDir, String adductFile, String compoundFile, File[] mzXMLFiles, int ppm) throws IOException {
+        this(databaseDir, adductFile, compoundFile, ppm);
         //checks that the files are all mzXML Files
         assert Arrays.stream(mzXMLFiles).filter(p -> p.getName().endsWith(".mzXMl")).toArray().length==mzXMLFiles.length : "File's aren't all mzXML Files";
+        //read in the individual mzXMLFiles
+        files = readMzXMLFiles(mzXMLFiles);
+        //clusters the peaks
+        alignedPeakClusters = alignPeaks();
+        //map the alignedPeakClusters to their adducts
+        mapAlignedPeakClusterToAdducts();
+        System.out.println("test");
+    }
+
+    /**
+     * Creates a handler with the adduct database ready, but without reading any mzXML files. This allows the individual
+     * stages (readMzXMLFiles, alignPeaks and mapAlignedPeakClusterToAdducts) to be run and timed separately, which is
+     * how the benchmarking harness uses it.
+     * @param databaseDir The folder containing (or which will contain) the adduct database
+     * @param adductFile The .csv file containing the adduct information
+     * @param compoundFile The .csv file containing the compound information
+     * @param ppm The ppm tolerance of the instrument
+     */
+    public IDAmzXMLFileHandler(String databaseDir, String adductFile, String compoundFile, int ppm) {
         //initialise the String variables
         this.databaseDir = databaseDir;
         this.adductFile = adductFile;
         this.compoundFile = compoundFile;
         instrumentPPM = ppm;
+        files = new ArrayList<>();
+        alignedPeakClusters = new ArrayList<>();
+        rtWarps = new HashMap<>();
         //create the database if it doesn't already exist
         try {
             AdductDatabase.createDatabase(this.databaseDir, this.adductFile, this.compoundFile);
         } catch (IOException e) {
             e.printStackTrace();
         }
-        //read in the individual mzXMLFiles
-        files = readMzXMLFiles(mzXMLFiles);
-        //clusters the peaks
-        alignedPeakClusters = alignPeaks();
-        //map the alignedPeakClusters to their adducts
-        mapAlignedPeakClusterToAdducts();
-        System.out.println("test");
     }
 
     /**
@@ -68,7 +101,11 @@ public class IDAmzXMLFileHandler {
         for(File file : mzXMLFiles){
             Runnable task = () -> {
                 try {
-                    files.add(new MzXMLFile(file.getAbsolutePath()));
+                    MzXMLFile mzXMLFile = new MzXMLFile(file.getAbsolutePath());
+                    //the tasks finish concurrently so the shared list has to be guarded
+                    synchronized (files) {
+                        files.add(mzXMLFile);
+                    }
                 } catch (FileParsingException | InterruptedException | IOException | ClassNotFoundException e) {
                     e.printStackTrace();
                 }
@@ -84,7 +121,24 @@ public class IDAmzXMLFileHandler {
         return files;
     }
 
+    /**
+     * Aligns the LCPeakClusters of every file, after correcting the RT drift between the files
+     * @return the aligned clusters
+     */
     public ArrayList<AlignedPeakCluster> alignPeaks(){
+        return alignPeaks(true);
+    }
+
+    /**
+     * Aligns the LCPeakClusters of every file by clustering them on their (rescaled) m/z and RT. If the RT drift is
+     * corrected first, the clusters are much tighter in RT so a smaller epsilon is used.
+     * @param correctDrift Whether to correct the RT drift between the files before clustering
+     * @return the aligned clusters
+     */
+    public ArrayList<AlignedPeakCluster> alignPeaks(boolean correctDrift){
+        if(correctDrift){
+            correctRTDrift();
+        }
         ArrayList<LCPeakCluster> allLCPeakClusters = new ArrayList<>();
         //Stores ALL peak clusters across all samples in a single list for downstream clustering and alignment
         for(MzXMLFile file : files){
@@ -95,8 +149,8 @@ public class IDAmzXMLFileHandler {
         //If there is an error in the stream (the min or max can't be found), return -1
         double mzMin = allLCPeakClusters.stream().mapToDouble(LCPeakCluster::getMainMZ).min().orElse(-1);
         double mzMax = allLCPeakClusters.stream().mapToDouble(LCPeakCluster::getMainMZ).max().orElse(-1);
-        double rtMin = allLCPeakClusters.stream().mapToDouble(LCPeakCluster::getMainRT).min().orElse(-1);
-        double rtMax = allLCPeakClusters.stream().mapToDouble(LCPeakCluster::getMainRT).max().orElse(-1);
+        double rtMin = allLCPeakClusters.stream().mapToDouble(LCPeakCluster::getCorrectedRT).min().orElse(-1);
+        double rtMax = allLCPeakClusters.stream().mapToDouble(LCPeakCluster::getCorrectedRT).max().orElse(-1);
 
         assert mzMax != -1: "No mzMax";
         assert mzMin != -1: "No mzMin";
@@ -109,26 +163,212 @@ public class IDAmzXMLFileHandler {
         }
 
         //Peforms the clustering and stores the results in a list
-        DBSCANClusterer<LCPeakCluster> clusterer = new DBSCANClusterer<>(0.005, files.size()-2); //epsilon=0.005 works quite well
+        //epsilon=0.005 works quite well without drift correction
+        DBSCANClusterer<LCPeakCluster> clusterer = new DBSCANClusterer<>(correctDrift ? 0.0025 : 0.005, files.size()-2);
         List<Cluster<LCPeakCluster>> clusterResults = clusterer.cluster(allLCPeakClusters);
 
         //'converts' the Cluster objects returned from the DBSCANClusterer to AlignedPeakCluster objects and stores them in alignedPeakClusters
         ArrayList<AlignedPeakCluster> alignedPeakClusters = new ArrayList<>();
 
         for(Cluster<LCPeakCluster> cluster : clusterResults){
-            alignedPeakClusters.add(new AlignedPeakCluster(cluster.getPoints(), 20));
+            alignedPeakClusters.add(new AlignedPeakCluster(cluster.getPoints(), annotationPPM(cluster.getPoints())));
         }
         //Cluster the fragments in each individual peakCluster
+        //each LCPeakCluster belongs to (at most) one AlignedPeakCluster, so the clusters can be processed in parallel
+        alignedPeakClusters.parallelStream()
+                .flatMap(alignedPeakCluster -> alignedPeakCluster.getClusters().stream())
+                .forEach(LCPeakCluster::clusterFragments);
+        //TODO: cluster the fragments within each peakCluster
+        //for now just collates them
+        alignedPeakClusters.parallelStream().forEach(AlignedPeakCluster::clusterFragments);
+        return alignedPeakClusters;
+    }
+
+    /**
+     * Returns the ppm tolerance to annotate an aligned cluster with, which is the widest mass accuracy of the files its
+     * LCPeakClusters came from
+     * @param clusters The LCPeakClusters in the aligned cluster
+     * @return the ppm tolerance
+     */
+    private static double annotationPPM(List<LCPeakCluster> clusters){
+        double ppm = 0;
+        for(LCPeakCluster cluster : clusters){
+            ppm = Math.max(ppm, cluster.getPPM());
+        }
+        return ppm;
+    }
+
+    /**
+     * Corrects the RT drift of every file against a reference file (the one with the most LCPeakClusters). A monotone
+     * piecewise-linear warp is fitted to each file (in parallel) using the LCPeakClusters which unambiguously match one
+     * in the reference (within the mass accuracy of the two files), and the corrected RT of every LCPeakCluster is then
+     * set from the warp of its file.
+     */
+    public void correctRTDrift(){
+        if(files.isEmpty()){
+            return;
+        }
+        MzXMLFile reference = files.get(0);
+        for(MzXMLFile file : files){
+            if(file.getLCPeakClusters().size() > reference.getLCPeakClusters().size()){
+                reference = file;
+            }
+        }
+        RTAligner aligner = new RTAligner(reference.getLCPeakClusters(), reference.getPPM(), 1);
+        MzXMLFile referenceFile = reference;
+        rtAligner = aligner;
+        files.parallelStream().forEach(file -> setRTWarp(file, file == referenceFile ? RTWarp.identity() : aligner.fit(file.getLCPeakClusters(), file.getPPM())));
+    }
+
+    /**
+     * Stores the RT warp of a file and sets the corrected RT of each of its LCPeakClusters from it
+     * @param file The file
+     * @param warp The RT warp fitted for the file
+     */
+    private void setRTWarp(MzXMLFile file, RTWarp warp){
+        for(LCPeakCluster cluster : file.getLCPeakClusters()){
+            cluster.setCorrectedRT(warp.correct(cluster.getMainRT()));
+        }
+        synchronized (rtWarps) {
+            rtWarps.put(file.getFileLocation(), warp);
+        }
+    }
+
+    /**
+     * Creates an AlignmentState from the current alignedPeakClusters, so that further samples can be added with
+     * addSamples without re-aligning the samples which have already been read. The m/z tolerance of the state is the
+     * widest mass accuracy of the files which have been read.
+     * @param rtTolerance The RT tolerance (in minutes) to use when adding samples
+     */
+    public void createAlignmentState(double rtTolerance){
+        double ppm = files.stream().mapToDouble(MzXMLFile::getPPM).max().orElse(instrumentPPM);
+        setAlignmentState(new AlignmentState(ppm, rtTolerance));
+        alignmentState.setRTAligner(rtAligner);
         for(AlignedPeakCluster alignedPeakCluster : alignedPeakClusters){
-            for(LCPeakCluster cluster : alignedPeakCluster.getClusters()){
-                cluster.clusterFragments();
+            int id = alignmentState.addFeature(alignedPeakCluster);
+            featureMembers.put(id, new ArrayList<>(alignedPeakCluster.getClusters()));
+            featureClusters.put(id, alignedPeakCluster);
+        }
+    }
+
+    /**
+     * Sets the AlignmentState to add samples to (e.g. one loaded with AlignmentState.load from a previous batch)
+     * @param alignmentState The alignment to add samples to
+     */
+    public void setAlignmentState(AlignmentState alignmentState){
+        this.alignmentState = alignmentState;
+        featureMembers = new HashMap<>();
+        featureClusters = new HashMap<>();
+    }
+
+    /**
+     * Reads new mzXML files and aligns their LCPeakClusters to the existing AlignmentState, rather than re-running the
+     * alignment of every sample. Only the AlignedPeakClusters of the features which gained a member are rebuilt (from the
+     * LCPeakClusters read in this session), and only those have their fragments clustered and their adducts mapped.
+     * If the alignment has an RT reference, the RT drift of the new samples is corrected against it first.
+     * @param mzXMLFiles an array containing the new mzXMLFiles to add
+     * @return the AlignedPeakClusters which were created or changed by the new samples
+     */
+    public ArrayList<AlignedPeakCluster> addSamples(File[] mzXMLFiles){
+        assert alignmentState != null : "No AlignmentState to add the samples to";
+        ArrayList<MzXMLFile> newFiles = readMzXMLFiles(mzXMLFiles);
+        files.addAll(newFiles);
+        //the features are in corrected RTs, so the new samples are warped onto the same reference before they are added
+        RTAligner aligner = alignmentState.getRTAligner();
+        newFiles.parallelStream().forEach(file -> setRTWarp(file, aligner == null ? RTWarp.identity() : aligner.fit(file.getLCPeakClusters(), file.getPPM())));
+        //the files are read concurrently, so they are added in order of their location to keep the feature ids repeatable
+        newFiles.sort((a, b) -> a.getFileLocation().compareTo(b.getFileLocation()));
+        LinkedHashSet<Integer> changedFeatures = new LinkedHashSet<>();
+        ArrayList<LCPeakCluster> newClusters = new ArrayList<>();
+        for(MzXMLFile file : newFiles){
+            List<LCPeakCluster> clusters = file.getLCPeakClusters();
+            int[] featureIds = alignmentState.addSample(file.getFileLocation(), clusters);
+            for(int i=0; i<featureIds.length; i++){
+                featureMembers.computeIfAbsent(featureIds[i], k -> new ArrayList<>()).add(clusters.get(i));
+                changedFeatures.add(featureIds[i]);
             }
-            //TODO: cluster the fragments within each peakCluster
-            //for now just collates them
-            alignedPeakCluster.clusterFragments();
+            newClusters.addAll(clusters);
+        }
+        //Only the fragments of the new LCPeakClusters need to be clustered
+        newClusters.parallelStream().forEach(LCPeakCluster::clusterFragments);
 
+        ArrayList<AlignedPeakCluster> changed = new ArrayList<>();
+        HashSet<AlignedPeakCluster> replaced = new HashSet<>();
+        for(int id : changedFeatures){
+            AlignedPeakCluster alignedPeakCluster = new AlignedPeakCluster(new ArrayList<>(featureMembers.get(id)), annotationPPM(featureMembers.get(id)));
+            AlignedPeakCluster previous = featureClusters.put(id, alignedPeakCluster);
+            if(previous != null){
+                replaced.add(previous);
+            }
+            changed.add(alignedPeakCluster);
         }
-        return alignedPeakClusters;
+        //removes the replaced clusters in a single pass
+        alignedPeakClusters.removeIf(replaced::contains);
+        alignedPeakClusters.addAll(changed);
+        changed.parallelStream().forEach(AlignedPeakCluster::clusterFragments);
+        for(AlignedPeakCluster alignedPeakCluster : changed){
+            try {
+                AdductDatabase.mapClusters(alignedPeakCluster, databaseDir);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Fills the gaps in the sample x feature matrix. For every AlignedPeakCluster which has no member from a sample,
+     * the signal is re-extracted from that sample around the median m/z (within the mass accuracy of that file) and the median RT
+     * (within rtWindow either side), and the highest intensity is stored as the gap filled intensity of the cluster. The
+     * median RT is on the corrected RT axis, so it is mapped back onto the RTs of the sample with the inverse of its warp.
+     * <p>
+     * The files are processed in parallel. Each file extracts all of its missing features with a single batch XIC pass
+     * (reusing the spectrum cache of the file rather than re-parsing the whole file), so the time taken grows with the
+     * number of scans rather than the number of features.
+     * @param rtWindow The RT tolerance either side of the median RT (in the same units as the scan RTs)
+     */
+    public void fillGaps(double rtWindow){
+        //finds the clusters missing from each file with a single pass over the members of every cluster
+        HashMap<String, ArrayList<AlignedPeakCluster>> missingByFile = new HashMap<>();
+        for(MzXMLFile file : files){
+            missingByFile.put(file.getFileLocation(), new ArrayList<>());
+        }
+        for(AlignedPeakCluster alignedPeakCluster : alignedPeakClusters){
+            HashSet<String> present = new HashSet<>();
+            for(LCPeakCluster cluster : alignedPeakCluster.getClusters()){
+                present.add(cluster.getFileLocation());
+            }
+            for(Map.Entry<String, ArrayList<AlignedPeakCluster>> entry : missingByFile.entrySet()){
+                if(!present.contains(entry.getKey())){
+                    entry.getValue().add(alignedPeakCluster);
+                }
+            }
+        }
+        files.parallelStream().forEach(file -> {
+            ArrayList<AlignedPeakCluster> missing = missingByFile.get(file.getFileLocation());
+            RTWarp warp = rtWarps.getOrDefault(file.getFileLocation(), RTWarp.identity());
+            double[] mzs = new double[missing.size()];
+            double[] ppms = new double[missing.size()];
+            double[] rtStarts = new double[missing.size()];
+            double[] rtEnds = new double[missing.size()];
+            for(int i=0; i<mzs.length; i++){
+                mzs[i] = missing.get(i).getMedianMZ();
+                ppms[i] = file.getPPM();
+                double rt = warp.inverse(missing.get(i).getMedianRT());
+                rtStarts[i] = rt - rtWindow;
+                rtEnds[i] = rt + rtWindow;
+            }
+            try {
+                TraceMatrix traces = file.extractXICs(mzs, ppms, rtStarts, rtEnds);
+                for(int i=0; i<mzs.length; i++){
+                    missing.get(i).setGapFilledIntensity(file.getFileLocation(), traces.getMaxIntensity(i));
+                }
+            } catch (FileParsingException e) {
+                e.printStackTrace();
+            }
+            //frees the spectra which were loaded for the extraction
+            file.getSpectrumCache().clear();
+        });
     }
 
     public void mapAlignedPeakClusterToAdducts(){
@@ -141,6 +381,28 @@ public class IDAmzXMLFileHandler {
         }
     }
 
+    /**
+     * Builds the samples x features matrix of the current results (one feature per AlignedPeakCluster)
+     * @param topAdducts The maximum number of adducts to list for each feature
+     * @return the FeatureMatrix
+     */
+    public FeatureMatrix createFeatureMatrix(int topAdducts){
+        ArrayList<String> samples = new ArrayList<>();
+        for(MzXMLFile file : files){
+            samples.add(file.getFileLocation());
+        }
+        return FeatureMatrix.build(alignedPeakClusters, samples, topAdducts);
+    }
+
+    /**
+     * Builds an index of the current AlignedPeakClusters by (median m/z, median RT) for fast range and nearest
+     * neighbour queries. The indices returned by its queries are positions in getAlignedPeakClusters().
+     * @return the FeatureIndex
+     */
+    public FeatureIndex createFeatureIndex(){
+        return new FeatureIndex(alignedPeakClusters);
+    }
+
     public ArrayList<AlignedPeakCluster> getAlignedPeakClusters(){
         return alignedPeakClusters;
     }
@@ -2,7 +2,7 @@ package lsi.sling;
 
 import com.opencsv.CSVWriter;
 import lsi.sling.FragmentHandling.AlignedFragmentCluster;
-import lsi.sling.FragmentHandling.LCMS2Fragment;
+import lsi.sling.FragmentHandling.FragmentView;
 import lsi.sling.mzxmlfilehandling.MzXMLFile;
 import lsi.sling.peakextraction.AlignedPeakCluster;
 import lsi.sling.peakextraction.LCPeakCluster;
@@ -210,12 +210,12 @@ public class Main {
      */
     static void writeMS2PeakClustersToCSV(ArrayList<LCPeakCluster> LCPeakClusters, String folder) throws IOException{
         for(LCPeakCluster LCPeakCluster : LCPeakClusters) {
-            if(LCPeakCluster.getMainChromatogramFragments().size()>0) {
+            FragmentView fragmentsToWrite = LCPeakCluster.getMainChromatogramFragments();
+            if(fragmentsToWrite.size()>0) {
                 CSVWriter csvWriter = new CSVWriter(new BufferedWriter(new FileWriter(new File(folder + LCPeakCluster.getMainMZ() + ".csv"))));
                 csvWriter.writeNext(new String[]{String.valueOf(LCPeakCluster.getMainMZ()), String.valueOf(LCPeakCluster.getMainRT()), String.valueOf(LCPeakCluster.getMainIntensity()),"1"});
-                ArrayList<LCMS2Fragment> fragmentsToWrite = LCPeakCluster.getMainChromatogramFragments();
-                for (LCMS2Fragment fragment : fragmentsToWrite) {
-                    csvWriter.writeNext(new String[]{String.valueOf(fragment.getMZ()), String.valueOf(fragment.getRT()), String .valueOf(fragment.getIntensity()), "2"});
+                for (int i = 0; i < fragmentsToWrite.size(); i++) {
+                    csvWriter.writeNext(new String[]{String.valueOf(fragmentsToWrite.getMZ(i)), String.valueOf(fragmentsToWrite.getRT(i)), String .valueOf(fragmentsToWrite.getIntensity(i)), "2"});
                 }
                 csvWriter.close();
             }
@@ -0,0 +1,69 @@
+package lsi.sling.benchmarking;
+
+/**
+ * Stores the measurements from a single run of the pipeline for one benchmark configuration. Results are passed from
+ * the forked benchmark JVM to the runner (and stored in the baseline and report files) as a single .csv line, so this
+ * class also handles converting to and from that representation.
+ */
+class BenchmarkResult {
+
+    final static String[] HEADER = {"configuration", "files", "fileMB", "cores", "readMillis", "alignMillis",
+            "mapMillis", "wallMillis", "cpuMillis", "gcMillis", "peakRssMB", "alignedPeakClusters"};
+
+    String configuration;
+    int files;
+    double fileMB;
+    int cores;
+    long readMillis;
+    long alignMillis;
+    long mapMillis;
+    long wallMillis;
+    long cpuMillis;
+    long gcMillis;
+    double peakRssMB;
+    int alignedPeakClusters;
+
+    /**
+     * Builds the key which identifies a configuration, so that results can be matched against the stored baseline
+     * @param label A label for the data set (e.g. the size of the generated files)
+     * @param files The number of files in the run
+     * @param cores The number of cores made available to the JVM
+     * @return the configuration key
+     */
+    static String configuration(String label, int files, int cores){
+        return label + "/files=" + files + "/cores=" + cores;
+    }
+
+    String[] toStringArray(){
+        return new String[]{configuration, String.valueOf(files), String.valueOf(fileMB), String.valueOf(cores),
+                String.valueOf(readMillis), String.valueOf(alignMillis), String.valueOf(mapMillis),
+                String.valueOf(wallMillis), String.valueOf(cpuMillis), String.valueOf(gcMillis),
+                String.valueOf(peakRssMB), String.valueOf(alignedPeakClusters)};
+    }
+
+    /**
+     * Recreates a result from the output of toStringArray()
+     * @param line The values of a single result
+     * @return the parsed BenchmarkResult
+     * @throws IllegalArgumentException if the line doesn't contain the expected number of values
+     */
+    static BenchmarkResult fromStringArray(String[] line){
+        if(line.length != HEADER.length){
+            throw new IllegalArgumentException("Expected " + HEADER.length + " values but found " + line.length);
+        }
+        BenchmarkResult result = new BenchmarkResult();
+        result.configuration = line[0];
+        result.files = Integer.parseInt(line[1]);
+        result.fileMB = Double.parseDouble(line[2]);
+        result.cores = Integer.parseInt(line[3]);
+        result.readMillis = Long.parseLong(line[4]);
+        result.alignMillis = Long.parseLong(line[5]);
+        result.mapMillis = Long.parseLong(line[6]);
+        result.wallMillis = Long.parseLong(line[7]);
+        result.cpuMillis = Long.parseLong(line[8]);
+        result.gcMillis = Long.parseLong(line[9]);
+        result.peakRssMB = Double.parseDouble(line[10]);
+        result.alignedPeakClusters = Integer.parseInt(line[11]);
+        return result;
+    }
+}
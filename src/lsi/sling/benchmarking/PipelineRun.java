@@ -0,0 +1,113 @@
+package lsi.sling.benchmarking;
+
+import lsi.sling.IDAmzXMLFileHandler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Arrays;
+
+/**
+ * Runs the whole pipeline once and reports the measurements on stdout. This is the entry point of the JVM which is
+ * forked by ScalingBenchmark for every configuration, so that peak RSS, CPU time and GC time only ever describe a
+ * single run (and so that the number of cores can be limited with -XX:ActiveProcessorCount).
+ * <p>
+ * Usage: PipelineRun configuration databaseDir adductFile compoundFile mzXMLFile...
+ */
+public class PipelineRun {
+
+    final static String RESULT_PREFIX = "BENCHMARK_RESULT,";
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 6){
+            throw new IllegalArgumentException("Usage: PipelineRun configuration databaseDir adductFile compoundFile mzXMLFile mzXMLFile...");
+        }
+        File[] mzXMLFiles = Arrays.stream(args, 4, args.length).map(File::new).toArray(File[]::new);
+        BenchmarkResult result = new BenchmarkResult();
+        result.configuration = args[0];
+        result.files = mzXMLFiles.length;
+        result.fileMB = Arrays.stream(mzXMLFiles).mapToLong(File::length).sum()/1e6;
+        result.cores = Runtime.getRuntime().availableProcessors();
+
+        //the database is created before the clock starts, it is shared between runs
+        IDAmzXMLFileHandler handler = new IDAmzXMLFileHandler(args[1], args[2], args[3], 20);
+        long gcBefore = gcMillis();
+        long cpuBefore = cpuMillis();
+        long start = System.nanoTime();
+        handler.files = handler.readMzXMLFiles(mzXMLFiles);
+        long read = System.nanoTime();
+        handler.alignedPeakClusters = handler.alignPeaks();
+        long align = System.nanoTime();
+        handler.mapAlignedPeakClusterToAdducts();
+        long map = System.nanoTime();
+
+        result.readMillis = (read - start)/1000000;
+        result.alignMillis = (align - read)/1000000;
+        result.mapMillis = (map - align)/1000000;
+        result.wallMillis = (map - start)/1000000;
+        long cpuAfter = cpuMillis();
+        result.cpuMillis = cpuBefore < 0 || cpuAfter < 0 ? -1 : cpuAfter - cpuBefore;
+        result.gcMillis = gcMillis() - gcBefore;
+        result.peakRssMB = peakRssMB();
+        result.alignedPeakClusters = handler.getAlignedPeakClusters().size();
+        System.out.println(RESULT_PREFIX + String.join(",", result.toStringArray()));
+    }
+
+    /**
+     * Returns the total time spent in garbage collection so far, summed over all collectors
+     * @return the gc time in milliseconds
+     */
+    private static long gcMillis(){
+        long total = 0;
+        for(GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()){
+            total += Math.max(0, bean.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * Returns the CPU time used by the whole process (all threads) so far
+     * @return the cpu time in milliseconds, or -1 if the JVM doesn't expose it
+     */
+    private static long cpuMillis(){
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if(bean instanceof com.sun.management.OperatingSystemMXBean){
+            return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime()/1000000;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the peak resident set size of the process. On linux this is read from /proc/self/status (VmHWM), on
+     * other platforms the sum of the peak usage of the heap memory pools is used as an approximation.
+     * @return the peak memory use in MB
+     */
+    private static double peakRssMB(){
+        File status = new File("/proc/self/status");
+        if(status.exists()){
+            try (BufferedReader reader = new BufferedReader(new FileReader(status))) {
+                String line;
+                while((line = reader.readLine()) != null){
+                    if(line.startsWith("VmHWM:")){
+                        return Long.parseLong(line.replaceAll("[^0-9]", ""))/1024.0;
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                e.printStackTrace();
+            }
+        }
+        long peak = 0;
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()){
+            if(pool.getType() == MemoryType.HEAP){
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak/(1024.0*1024.0);
+    }
+}
@@ -0,0 +1,219 @@
+package lsi.sling.benchmarking;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Macro-benchmark for the whole pipeline (readMzXMLFiles, alignPeaks and mapAlignedPeakClusterToAdducts). It sweeps the
+ * number of files, the size of the files and the number of cores, running every configuration in a freshly forked JVM,
+ * and records the wall time of each stage along with the CPU time, GC time and peak RSS of the run.
+ * <p>
+ * The results are written to a report .csv file and compared against a stored baseline (a report from a previous run).
+ * If the wall time of any configuration is more than the allowed fraction slower than the baseline, the run fails
+ * (and the process exits with a non-zero exit code).
+ * <p>
+ * Arguments are given as key=value pairs:
+ * <ul>
+ *     <li>work - the folder for generated data and the database (default: benchmark-work)</li>
+ *     <li>fixtures - a folder of real mzXML files to use instead of generating data (the sizes are then ignored)</li>
+ *     <li>sizes - the number of MS1 scans per generated file (default: 300,600)</li>
+ *     <li>files - the number of files in each run, at least 2 (default: 2,4)</li>
+ *     <li>cores - the number of cores to make available (default: 1 and all of them)</li>
+ *     <li>baseline - the baseline report to compare against (optional)</li>
+ *     <li>threshold - the allowed slowdown as a fraction of the baseline (default: 0.1)</li>
+ *     <li>report - where to write the report (default: work/report.csv)</li>
+ *     <li>jvmArgs - extra arguments for the forked JVMs, separated by spaces (default: -Xmx2g)</li>
+ * </ul>
+ */
+public class ScalingBenchmark {
+
+    private final static int NOISE_POINTS_PER_SCAN = 400;
+    private final static int FEATURES = 200;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for(String arg : args){
+            String[] pair = arg.split("=", 2);
+            if(pair.length != 2){
+                throw new IllegalArgumentException("Arguments must be given as key=value, found " + arg);
+            }
+            options.put(pair[0], pair[1]);
+        }
+        File work = new File(options.getOrDefault("work", "benchmark-work"));
+        int[] fileCounts = parseInts(options.getOrDefault("files", "2,4"));
+        int[] cores = parseInts(options.getOrDefault("cores", "1," + Runtime.getRuntime().availableProcessors()));
+        double threshold = Double.parseDouble(options.getOrDefault("threshold", "0.1"));
+        File report = new File(options.getOrDefault("report", new File(work, "report.csv").getPath()));
+        List<String> jvmArgs = Arrays.asList(options.getOrDefault("jvmArgs", "-Xmx2g").trim().split("\\s+"));
+        if(Arrays.stream(fileCounts).anyMatch(n -> n < 2)){
+            //alignPeaks uses files.size()-2 as the minimum number of points for DBSCAN
+            throw new IllegalArgumentException("Every run needs at least 2 files");
+        }
+        if(!work.exists() && !work.mkdirs()){
+            throw new IOException("Could not create " + work.getAbsolutePath());
+        }
+
+        //the data sets to sweep over, keyed by their label
+        LinkedHashMap<String, File[]> dataSets = new LinkedHashMap<>();
+        File adductFile = new File(work, "Adducts.csv");
+        File compoundFile = new File(work, "Database.csv");
+        int maxFiles = Arrays.stream(fileCounts).max().getAsInt();
+        if(options.containsKey("fixtures")){
+            File[] fixtures = new File(options.get("fixtures")).listFiles(f -> f.getName().endsWith(".mzXML"));
+            if(fixtures == null || fixtures.length < maxFiles){
+                throw new IllegalArgumentException("The fixtures folder needs at least " + maxFiles + " mzXML files");
+            }
+            Arrays.sort(fixtures);
+            dataSets.put("fixtures", fixtures);
+            new SyntheticMzXMLWriter(1, 0, FEATURES).writeDatabaseFiles(adductFile, compoundFile);
+        } else {
+            for(int size : parseInts(options.getOrDefault("sizes", "300,600"))){
+                SyntheticMzXMLWriter writer = new SyntheticMzXMLWriter(size, NOISE_POINTS_PER_SCAN, FEATURES);
+                File[] generated = new File[maxFiles];
+                for(int i=0; i<maxFiles; i++){
+                    generated[i] = new File(work, "synthetic_" + size + "_" + i + ".mzXML");
+                    if(!generated[i].exists()){
+                        writer.writeMzXML(generated[i], i);
+                    }
+                }
+                dataSets.put("scans=" + size, generated);
+                //the features don't depend on the size, so any writer can write the database files
+                writer.writeDatabaseFiles(adductFile, compoundFile);
+            }
+        }
+        String databaseDir = new File(work, "database").getAbsolutePath();
+
+        Map<String, BenchmarkResult> baseline = options.containsKey("baseline") ? readResults(new File(options.get("baseline"))) : new HashMap<>();
+        ArrayList<BenchmarkResult> results = new ArrayList<>();
+        for(Map.Entry<String, File[]> dataSet : dataSets.entrySet()){
+            for(int fileCount : fileCounts){
+                for(int coreCount : cores){
+                    String configuration = BenchmarkResult.configuration(dataSet.getKey(), fileCount, coreCount);
+                    System.out.println("Running " + configuration);
+                    results.add(runConfiguration(configuration, coreCount, jvmArgs, databaseDir, adductFile, compoundFile, Arrays.copyOf(dataSet.getValue(), fileCount)));
+                }
+            }
+        }
+
+        boolean passed = writeReport(results, baseline, threshold, report);
+        System.out.println("Report written to " + report.getAbsolutePath());
+        if(!passed){
+            System.out.println("FAILED: at least one configuration is more than " + (threshold*100) + "% slower than the baseline");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Forks a new JVM to run the pipeline once for the given configuration and parses its result
+     * @return the measurements of the run
+     * @throws IOException If the forked JVM fails or doesn't report a result
+     * @throws InterruptedException If interrupted whilst waiting for the forked JVM
+     */
+    private static BenchmarkResult runConfiguration(String configuration, int cores, List<String> jvmArgs, String databaseDir,
+                                                    File adductFile, File compoundFile, File[] mzXMLFiles) throws IOException, InterruptedException {
+        ArrayList<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(jvmArgs);
+        command.add("-XX:ActiveProcessorCount=" + cores);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(PipelineRun.class.getName());
+        command.add(configuration);
+        command.add(databaseDir);
+        command.add(adductFile.getAbsolutePath());
+        command.add(compoundFile.getAbsolutePath());
+        for(File file : mzXMLFiles){
+            command.add(file.getAbsolutePath());
+        }
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        BenchmarkResult result = null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while((line = reader.readLine()) != null){
+                if(line.startsWith(PipelineRun.RESULT_PREFIX)){
+                    result = BenchmarkResult.fromStringArray(line.substring(PipelineRun.RESULT_PREFIX.length()).split(","));
+                }
+            }
+        }
+        int exitCode = process.waitFor();
+        if(exitCode != 0 || result == null){
+            throw new IOException("The benchmark run for " + configuration + " failed with exit code " + exitCode);
+        }
+        return result;
+    }
+
+    /**
+     * Reads a previously written report so that it can be used as the baseline
+     * @param file The report file
+     * @return the results in the report, keyed by configuration
+     * @throws IOException If there is an error reading the file
+     */
+    private static Map<String, BenchmarkResult> readResults(File file) throws IOException {
+        Map<String, BenchmarkResult> results = new HashMap<>();
+        CSVReader reader = new CSVReader(new BufferedReader(new FileReader(file)));
+        String[] line;
+        while((line = reader.readNext()) != null){
+            if(!line[0].equals(BenchmarkResult.HEADER[0])){ //to ignore the first (title) line
+                BenchmarkResult result = BenchmarkResult.fromStringArray(Arrays.copyOf(line, BenchmarkResult.HEADER.length));
+                results.put(result.configuration, result);
+            }
+        }
+        reader.close();
+        return results;
+    }
+
+    /**
+     * Writes the results (and their comparison with the baseline) to the report file and prints a summary
+     * @return true if no configuration regressed past the threshold, otherwise false
+     * @throws IOException If there is an error writing the file
+     */
+    private static boolean writeReport(List<BenchmarkResult> results, Map<String, BenchmarkResult> baseline, double threshold, File report) throws IOException {
+        boolean passed = true;
+        CSVWriter csvWriter = new CSVWriter(new BufferedWriter(new FileWriter(report)));
+        String[] header = Arrays.copyOf(BenchmarkResult.HEADER, BenchmarkResult.HEADER.length + 3);
+        header[header.length-3] = "baselineWallMillis";
+        header[header.length-2] = "change";
+        header[header.length-1] = "status";
+        csvWriter.writeNext(header);
+        System.out.printf("%-32s %10s %10s %10s %10s %10s %8s %9s %8s%n", "configuration", "read", "align", "map", "wall", "cpu", "gc", "rssMB", "status");
+        for(BenchmarkResult result : results){
+            BenchmarkResult base = baseline.get(result.configuration);
+            String change = "";
+            String status = "NEW";
+            if(base != null){
+                double fraction = (result.wallMillis - base.wallMillis)/(double) Math.max(1, base.wallMillis);
+                change = String.format("%+.1f%%", fraction*100);
+                status = fraction > threshold ? "FAIL" : "PASS";
+                passed &= fraction <= threshold;
+            }
+            String[] line = Arrays.copyOf(result.toStringArray(), header.length);
+            line[header.length-3] = base == null ? "" : String.valueOf(base.wallMillis);
+            line[header.length-2] = change;
+            line[header.length-1] = status;
+            csvWriter.writeNext(line);
+            System.out.printf("%-32s %10d %10d %10d %10d %10d %8d %9.1f %8s%n", result.configuration, result.readMillis,
+                    result.alignMillis, result.mapMillis, result.wallMillis, result.cpuMillis, result.gcMillis,
+                    result.peakRssMB, status + (change.isEmpty() ? "" : " " + change));
+        }
+        csvWriter.close();
+        return passed;
+    }
+
+    private static int[] parseInts(String list){
+        return Arrays.stream(list.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+    }
+}
@@ -0,0 +1,199 @@
+package lsi.sling.benchmarking;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Writes small, fully indexed IDA mzXML files (plus matching adduct and compound .csv files) so that the whole pipeline
+ * can be benchmarked without needing real sample data. Every file generated with the same feature seed contains the
+ * same set of compounds (with their M+1 and M+2 isotopes) at slightly jittered retention times on top of random noise,
+ * so the alignment and adduct mapping stages have realistic work to do.
+ */
+class SyntheticMzXMLWriter {
+
+    private final static double PROTON_MASS = 1.007276;
+    private final static double ISOTOPE_SPACING = 1.00335;
+    private final static int FEATURE_SEED = 42;
+
+    private final int ms1ScanCount;
+    private final int noisePointsPerScan;
+    private final int featureCount;
+    private final double[] featureMZs;
+    private final double[] featureRTs;
+    private final double[] featureHeights;
+
+    /**
+     * Creates a writer for files of the given size. The features themselves are generated here (from a fixed seed) so
+     * that every file written by this object describes the same compounds.
+     * @param ms1ScanCount The number of MS1 scans per file. Each MS1 scan is followed by up to two MS2 scans
+     * @param noisePointsPerScan The number of random noise data points in each MS1 scan
+     * @param featureCount The number of compounds in each file
+     */
+    SyntheticMzXMLWriter(int ms1ScanCount, int noisePointsPerScan, int featureCount){
+        this.ms1ScanCount = ms1ScanCount;
+        this.noisePointsPerScan = noisePointsPerScan;
+        this.featureCount = featureCount;
+        featureMZs = new double[featureCount];
+        featureRTs = new double[featureCount];
+        featureHeights = new double[featureCount];
+        Random random = new Random(FEATURE_SEED);
+        for(int i=0; i<featureCount; i++){
+            featureMZs[i] = 150 + random.nextDouble()*850;
+            //keeps the features away from the edges of the run so that the whole peak is always recorded
+            featureRTs[i] = (0.1 + random.nextDouble()*0.8) * runLengthSeconds();
+            featureHeights[i] = 1e5 + random.nextDouble()*1e7;
+        }
+    }
+
+    /**
+     * The length of the simulated run in seconds, assuming one MS1 scan every second
+     * @return the run length in seconds
+     */
+    private double runLengthSeconds(){
+        return ms1ScanCount;
+    }
+
+    /**
+     * Writes a single mzXML file. The sample seed controls the noise and the retention time jitter, so files written
+     * with different sample seeds look like different injections of the same sample.
+     * @param file The file to write
+     * @param sampleSeed The seed used for the per-sample randomness
+     * @throws IOException If there is an error writing the file
+     */
+    void writeMzXML(File file, long sampleSeed) throws IOException {
+        Random random = new Random(sampleSeed);
+        double[] rtShift = new double[featureCount];
+        for(int i=0; i<featureCount; i++){
+            rtShift[i] = random.nextGaussian()*1.5;
+        }
+        //all of the content is ASCII, so the character count is also the byte offset used by the index
+        ArrayList<Long> offsets = new ArrayList<>();
+        long position = 0;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII))) {
+            position += write(writer, "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n"
+                    + "<mzXML xmlns=\"http://sashimi.sourceforge.net/schema_revision/mzXML_3.2\">\n"
+                    + "  <msRun startTime=\"PT0S\" endTime=\"PT" + runLengthSeconds() + "S\">\n");
+            int scanNum = 1;
+            for(int s=0; s<ms1ScanCount; s++){
+                double rt = s;
+                ArrayList<double[]> points = new ArrayList<>();
+                for(int n=0; n<noisePointsPerScan; n++){
+                    points.add(new double[]{100 + random.nextDouble()*1000, random.nextDouble()*2000});
+                }
+                //the two most intense features in this scan are selected for fragmentation
+                int first = -1;
+                int second = -1;
+                double firstIntensity = 0;
+                double secondIntensity = 0;
+                for(int f=0; f<featureCount; f++){
+                    double width = 4;
+                    double delta = rt - (featureRTs[f] + rtShift[f]);
+                    double intensity = featureHeights[f]*Math.exp(-(delta*delta)/(2*width*width));
+                    if(intensity > 100){
+                        double jitter = featureMZs[f]*2e-6*random.nextGaussian();
+                        points.add(new double[]{featureMZs[f] + jitter, intensity});
+                        points.add(new double[]{featureMZs[f] + ISOTOPE_SPACING + jitter, intensity*0.35});
+                        points.add(new double[]{featureMZs[f] + 2*ISOTOPE_SPACING + jitter, intensity*0.08});
+                        if(intensity > firstIntensity){
+                            second = first;
+                            secondIntensity = firstIntensity;
+                            first = f;
+                            firstIntensity = intensity;
+                        } else if(intensity > secondIntensity){
+                            second = f;
+                            secondIntensity = intensity;
+                        }
+                    }
+                }
+                points.sort((a, b) -> Double.compare(a[0], b[0]));
+                int ms1Num = scanNum;
+                offsets.add(position);
+                position += write(writer, scan(scanNum++, 1, rt, points, null, 0));
+                for(int target : new int[]{first, second}){
+                    if(target != -1){
+                        ArrayList<double[]> fragments = new ArrayList<>();
+                        for(int k=1; k<=5; k++){
+                            fragments.add(new double[]{featureMZs[target]*k/6.0 + 0.001*random.nextGaussian(), featureHeights[target]*0.01*k});
+                        }
+                        offsets.add(position);
+                        position += write(writer, scan(scanNum++, 2, rt + 0.3, fragments, featureMZs[target], ms1Num));
+                    }
+                }
+            }
+            position += write(writer, "  </msRun>\n");
+            long indexOffset = position;
+            StringBuilder index = new StringBuilder("  <index name=\"scan\">\n");
+            for(int i=0; i<offsets.size(); i++){
+                index.append("    <offset id=\"").append(i+1).append("\">").append(offsets.get(i)).append("</offset>\n");
+            }
+            index.append("  </index>\n  <indexOffset>").append(indexOffset).append("</indexOffset>\n</mzXML>\n");
+            write(writer, index.toString());
+        }
+    }
+
+    /**
+     * Builds the xml for a single (un-nested) scan element
+     * @param num The scan number
+     * @param msLevel The ms level of the scan
+     * @param rt The retention time in seconds
+     * @param points The (m/z, intensity) pairs of the spectrum, sorted by m/z
+     * @param precursorMZ The precursor m/z of an ms2 scan, ignored for ms1 scans
+     * @param precursorScanNum The scan number of the parent ms1 scan, ignored for ms1 scans
+     * @return the scan element as a String
+     */
+    private static String scan(int num, int msLevel, double rt, ArrayList<double[]> points, Double precursorMZ, int precursorScanNum){
+        ByteBuffer buffer = ByteBuffer.allocate(points.size()*8); //big-endian (network order) by default
+        for(double[] point : points){
+            buffer.putFloat((float) point[0]);
+            buffer.putFloat((float) point[1]);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("    <scan num=\"").append(num).append("\" msLevel=\"").append(msLevel)
+                .append("\" peaksCount=\"").append(points.size()).append("\" polarity=\"+\" centroided=\"1\" retentionTime=\"PT")
+                .append(rt).append("S\">\n");
+        if(msLevel == 2){
+            sb.append("      <precursorMz precursorScanNum=\"").append(precursorScanNum)
+                    .append("\" activationMethod=\"CID\">").append(precursorMZ).append("</precursorMz>\n");
+        }
+        sb.append("      <peaks compressionType=\"none\" compressedLen=\"0\" precision=\"32\" byteOrder=\"network\" contentType=\"m/z-int\">")
+                .append(Base64.getEncoder().encodeToString(buffer.array())).append("</peaks>\n");
+        sb.append("    </scan>\n");
+        return sb.toString();
+    }
+
+    private static int write(Writer writer, String text) throws IOException {
+        writer.write(text);
+        return text.length();
+    }
+
+    /**
+     * Writes an adduct file (containing [M+H]+, [M+2H]2+ and [M+3H]3+) and a compound file containing one compound for
+     * each of the generated features, in the same .csv layout as the real database files.
+     * @param adductFile The adduct .csv file to write
+     * @param compoundFile The compound .csv file to write
+     * @throws IOException If there is an error writing the files
+     */
+    void writeDatabaseFiles(File adductFile, File compoundFile) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(adductFile), StandardCharsets.US_ASCII))) {
+            writer.write("Ion,Ion name,Ion mass,Charge,Mult,Mass\n");
+            writer.write("1,M+H,M+" + PROTON_MASS + ",1+,1," + PROTON_MASS + "\n");
+            writer.write("2,M+2H,(M+" + 2*PROTON_MASS + ")/2,2+,0.5," + PROTON_MASS + "\n");
+            writer.write("3,M+3H,(M+" + 3*PROTON_MASS + ")/3,3+,0.33," + PROTON_MASS + "\n");
+        }
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(compoundFile), StandardCharsets.US_ASCII))) {
+            writer.write("formula,exactMass,commonName,systemicName\n");
+            for(int i=0; i<featureCount; i++){
+                writer.write("C" + i + "," + (featureMZs[i] - PROTON_MASS) + ",compound" + i + ",synthetic compound " + i + "\n");
+            }
+        }
+    }
+}
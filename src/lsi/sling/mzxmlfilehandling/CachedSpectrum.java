@@ -0,0 +1,72 @@
+package lsi.sling.mzxmlfilehandling;
+
+/**
+ * A decoded (and optionally centroided) MS1 spectrum held by the SpectrumCache. Unlike the spectra stored in the ScanCollection (which are only
+ * softly referenced), these stay in memory until the cache evicts them.
+ */
+public class CachedSpectrum {
+
+    private double[] mzs;
+    private double[] intensities;
+
+    /**
+     * Creates a cached spectrum from the (ascending) m/z values and the intensities of a spectrum
+     * @param mzs The m/z values
+     * @param intensities The intensities
+     */
+    CachedSpectrum(double[] mzs, double[] intensities){
+        this.mzs = mzs;
+        this.intensities = intensities;
+    }
+
+    public double[] getMZs() {
+        return mzs;
+    }
+
+    public double[] getIntensities() {
+        return intensities;
+    }
+
+    /**
+     * Finds the range of points whose m/z is within the ppm tolerance of the given m/z (using the same tolerance as
+     * ISpectrum.findMzIdxsWithinPpm, i.e. (mz/1e6)*ppm either side)
+     * @param mz The m/z to search around
+     * @param ppm The tolerance in ppm
+     * @return {first index, last index} of the points within the tolerance, or null if there aren't any
+     */
+    public int[] findMzIdxsWithinPpm(double mz, double ppm){
+        double tolerance = (mz/1e6)*ppm;
+        int lo = lowerBound(mz - tolerance);
+        if(lo == mzs.length || mzs[lo] > mz + tolerance){
+            return null;
+        }
+        int hi = lowerBound(Math.nextUp(mz + tolerance)) - 1;
+        return new int[]{lo, hi};
+    }
+
+    /**
+     * @return the index of the first point with m/z >= value (or the length of the array if there isn't one)
+     */
+    private int lowerBound(double value){
+        int lo = 0;
+        int hi = mzs.length;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(mzs[mid] < value){
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the approximate amount of memory used by the spectrum (used for the budget of the cache)
+     * @return the size in bytes
+     */
+    long sizeInBytes(){
+        //the two arrays plus the object and array headers
+        return 16L*mzs.length + 64;
+    }
+}
@@ -0,0 +1,120 @@
+package lsi.sling.mzxmlfilehandling;
+
+import java.util.Arrays;
+
+/**
+ * Turns a profile-mode spectrum into a centroided one, so that each peak becomes a single point rather than the 10-50
+ * raw points which sample its profile. A peak is a local maximum of the spectrum together with the points on either
+ * side of it which don't increase away from it (stopping at a valley, a zero or a gap in the sampling). The centroid
+ * has the summed intensity of the points of the peak, and its m/z is the apex of a Gaussian fitted through the
+ * maximum and its two neighbours (the vertex of a parabola through the log intensities), which is much closer to the
+ * true m/z than the most intense raw point. A flat-topped (e.g. saturated) peak is centred on the middle of its top.
+ * <p>
+ * This only works on the primitive arrays of the spectrum and keeps no state, so the scans can be centroided in
+ * parallel. It is deterministic, so a spectrum which is decoded again (e.g. by the SpectrumCache) always gives exactly
+ * the same centroids.
+ */
+public final class Centroider {
+
+    //the largest m/z gap (as a multiple of the sampling interval at the apex) between two points of the same peak, as
+    //profile spectra often leave out the zero intensity points between peaks
+    private static final double MAX_GAP_FACTOR = 3;
+
+    private Centroider(){
+    }
+
+    /**
+     * Centroids a profile-mode spectrum
+     * @param mzs The (ascending) m/z values of the spectrum
+     * @param intensities The intensities of the spectrum
+     * @return the centroided spectrum, in ascending order of m/z
+     */
+    static CachedSpectrum centroid(double[] mzs, double[] intensities){
+        int n = intensities.length;
+        double[] centroidMZs = new double[n];
+        double[] centroidIntensities = new double[n];
+        int peaks = 0;
+        int lastEnd = -1; //the last point of the previous peak, so that the valley between two peaks is only counted once
+        for(int i = 0; i < n; i++){
+            if(intensities[i] <= 0){
+                continue;
+            }
+            double maxGap = spacing(mzs, i)*MAX_GAP_FACTOR;
+            //a maximum starts above its left neighbour (a flat top is only counted once, from its first point)
+            if(i > 0 && mzs[i] - mzs[i-1] <= maxGap && intensities[i-1] >= intensities[i]){
+                continue;
+            }
+            //finds the end of a flat top, and checks that the spectrum falls (rather than rises) after it
+            int top = i;
+            while(top+1 < n && intensities[top+1] == intensities[i] && mzs[top+1] - mzs[top] <= maxGap){
+                top++;
+            }
+            if(top+1 < n && mzs[top+1] - mzs[top] <= maxGap && intensities[top+1] > intensities[top]){
+                continue;
+            }
+            //extends the peak down both sides of the maximum (across any shoulders of equal intensity)
+            int start = i;
+            while(start-1 > lastEnd && intensities[start-1] > 0 && intensities[start-1] <= intensities[start]
+                    && mzs[start] - mzs[start-1] <= maxGap){
+                start--;
+            }
+            int end = top;
+            while(end+1 < n && intensities[end+1] > 0 && intensities[end+1] <= intensities[end]
+                    && mzs[end+1] - mzs[end] <= maxGap){
+                end++;
+            }
+            double sum = 0;
+            for(int j = start; j <= end; j++){
+                sum += intensities[j];
+            }
+            if(top > i){
+                //the apex of a flat top is its middle
+                centroidMZs[peaks] = 0.5*(mzs[i] + mzs[top]);
+            } else {
+                centroidMZs[peaks] = start < i && end > i ? apex(mzs, intensities, i) : mzs[i];
+            }
+            centroidIntensities[peaks] = sum;
+            peaks++;
+            lastEnd = end;
+            i = end;
+        }
+        return new CachedSpectrum(Arrays.copyOf(centroidMZs, peaks), Arrays.copyOf(centroidIntensities, peaks));
+    }
+
+    /**
+     * Returns the sampling interval at a point (the smaller of the gaps to its neighbours)
+     */
+    private static double spacing(double[] mzs, int i){
+        double spacing = Double.MAX_VALUE;
+        if(i > 0){
+            spacing = mzs[i] - mzs[i-1];
+        }
+        if(i < mzs.length-1){
+            spacing = Math.min(spacing, mzs[i+1] - mzs[i]);
+        }
+        return spacing;
+    }
+
+    /**
+     * Interpolates the m/z of the apex of a peak by fitting a parabola through the log intensities of the maximum and
+     * its two neighbours (which is exact for a Gaussian peak, even if the points aren't evenly spaced)
+     * @return the m/z of the apex, or the m/z of the maximum if the fit is degenerate
+     */
+    private static double apex(double[] mzs, double[] intensities, int i){
+        double x0 = mzs[i-1] - mzs[i];
+        double x2 = mzs[i+1] - mzs[i];
+        double y0 = Math.log(intensities[i-1]);
+        double y1 = Math.log(intensities[i]);
+        double y2 = Math.log(intensities[i+1]);
+        double denominator = x0*(y1 - y2) - x2*(y1 - y0);
+        if(denominator == 0){
+            return mzs[i];
+        }
+        double offset = 0.5*(x0*x0*(y1 - y2) - x2*x2*(y1 - y0))/denominator;
+        //the vertex of a peak can't lie outside its neighbours
+        if(Double.isNaN(offset) || offset <= x0 || offset >= x2){
+            return mzs[i];
+        }
+        return mzs[i] + offset;
+    }
+}
@@ -0,0 +1,179 @@
+package lsi.sling.mzxmlfilehandling;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Accumulates the intensity distribution of the MS1 peaks in a file so that the noise threshold (mu+3sigma) can be
+ * calculated before any LocalPeak objects are created. The mean and variance are calculated with Welford's algorithm.
+ * <p>
+ * Accumulators are mergeable, so each scan can be accumulated separately (in parallel) and the results combined. If an
+ * m/z bin width or RT window is given, the mean and variance are also accumulated for each (m/z bin, RT window) cell,
+ * which allows an adaptive threshold to be used for different regions of the run.
+ */
+public class IntensityAccumulator {
+
+    //the minimum number of points in a cell before its own threshold is used instead of the global one
+    private static final int MIN_LOCAL_POINTS = 100;
+
+    private long count;
+    private double mean;
+    private double m2;
+
+    private double mzBinWidth;
+    private double rtWindow;
+    private HashMap<Long, double[]> cells; //{count, mean, m2} for each (m/z bin, RT window)
+
+    /**
+     * Creates an accumulator which only calculates the global statistics
+     */
+    public IntensityAccumulator(){
+        this(0, 0);
+    }
+
+    /**
+     * Creates an accumulator which also calculates the statistics for each (m/z bin, RT window) cell. If either value is
+     * 0, that dimension isn't split up.
+     * @param mzBinWidth The width of the m/z bins (in m/z)
+     * @param rtWindow The width of the RT windows (in the same units as the scan RTs)
+     */
+    public IntensityAccumulator(double mzBinWidth, double rtWindow){
+        this.mzBinWidth = mzBinWidth;
+        this.rtWindow = rtWindow;
+        if(isAdaptive()){
+            cells = new HashMap<>();
+        }
+    }
+
+    /**
+     * Adds every point of a spectrum to the accumulator
+     * @param mzs The m/z values of the spectrum
+     * @param intensities The intensities of the spectrum
+     * @param rt The RT of the scan
+     */
+    public void addSpectrum(double[] mzs, double[] intensities, double rt){
+        for(int i=0; i<intensities.length; i++){
+            add(intensities[i], mzs[i], rt);
+        }
+    }
+
+    /**
+     * Adds a single point to the accumulator
+     * @param intensity The intensity of the point
+     * @param mz The m/z of the point
+     * @param rt The RT of the point
+     */
+    public void add(double intensity, double mz, double rt){
+        count++;
+        double delta = intensity - mean;
+        mean += delta/count;
+        m2 += delta*(intensity - mean);
+        if(cells != null){
+            double[] cell = cells.computeIfAbsent(cellKey(mz, rt), k -> new double[3]);
+            cell[0]++;
+            double cellDelta = intensity - cell[1];
+            cell[1] += cellDelta/cell[0];
+            cell[2] += cellDelta*(intensity - cell[1]);
+        }
+    }
+
+    /**
+     * Combines the statistics of another accumulator (with the same bin sizes) into this one
+     * @param other The accumulator to merge into this one
+     * @return this accumulator, so that it can be used to reduce a stream
+     */
+    public IntensityAccumulator merge(IntensityAccumulator other){
+        double[] merged = merge(count, mean, m2, other.count, other.mean, other.m2);
+        count += other.count;
+        mean = merged[0];
+        m2 = merged[1];
+        if(cells != null && other.cells != null){
+            for(Map.Entry<Long, double[]> entry : other.cells.entrySet()){
+                double[] otherCell = entry.getValue();
+                double[] cell = cells.get(entry.getKey());
+                if(cell == null){
+                    cells.put(entry.getKey(), otherCell.clone());
+                } else {
+                    double[] mergedCell = merge((long) cell[0], cell[1], cell[2], (long) otherCell[0], otherCell[1], otherCell[2]);
+                    cell[0] += otherCell[0];
+                    cell[1] = mergedCell[0];
+                    cell[2] = mergedCell[1];
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Chan et al.'s formula for combining the mean and sum of squared differences of two sets
+     * @return {mean, m2} of the combined set
+     */
+    private static double[] merge(long countA, double meanA, double m2A, long countB, double meanB, double m2B){
+        long total = countA + countB;
+        if(countB == 0){
+            return new double[]{meanA, m2A};
+        }
+        if(countA == 0){
+            return new double[]{meanB, m2B};
+        }
+        double delta = meanB - meanA;
+        return new double[]{meanA + delta*countB/total, m2A + m2B + delta*delta*((double) countA*countB/total)};
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     * Returns the (sample) standard deviation of the intensities
+     * @return the standard deviation
+     */
+    public double getStandardDeviation() {
+        return Math.sqrt(m2/(count-1));
+    }
+
+    /**
+     * Returns the global threshold mean+sigmas*standardDeviation
+     * @param sigmas The number of standard deviations above the mean
+     * @return the threshold
+     */
+    public double getThreshold(double sigmas){
+        return mean + sigmas*getStandardDeviation();
+    }
+
+    /**
+     * Returns the threshold for the cell which contains the given point. If this accumulator isn't adaptive, or the cell
+     * doesn't contain enough points to estimate the noise, the global threshold is returned instead.
+     * @param mz The m/z of the point
+     * @param rt The RT of the point
+     * @param sigmas The number of standard deviations above the mean
+     * @return the threshold
+     */
+    public double getThreshold(double mz, double rt, double sigmas){
+        if(cells != null){
+            double[] cell = cells.get(cellKey(mz, rt));
+            if(cell != null && cell[0] >= MIN_LOCAL_POINTS){
+                return cell[1] + sigmas*Math.sqrt(cell[2]/(cell[0]-1));
+            }
+        }
+        return getThreshold(sigmas);
+    }
+
+    /**
+     * Whether this accumulator calculates a separate threshold for each (m/z bin, RT window)
+     * @return true if the thresholds are adaptive
+     */
+    public boolean isAdaptive(){
+        return mzBinWidth > 0 || rtWindow > 0;
+    }
+
+    private long cellKey(double mz, double rt){
+        long mzBin = mzBinWidth > 0 ? (long) Math.floor(mz/mzBinWidth) : 0;
+        long rtBin = rtWindow > 0 ? (long) Math.floor(rt/rtWindow) : 0;
+        return (mzBin << 32) ^ (rtBin & 0xFFFFFFFFL);
+    }
+}
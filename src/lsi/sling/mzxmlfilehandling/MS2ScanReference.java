@@ -0,0 +1,85 @@
+package lsi.sling.mzxmlfilehandling;
+
+import lsi.sling.FragmentHandling.FragmentArena;
+import umich.ms.datatypes.spectrum.ISpectrum;
+import umich.ms.fileio.exceptions.FileParsingException;
+
+/**
+ * A lightweight reference to an MS2 scan which has been assigned to a LocalPeak. Only the scan number, precursor m/z and
+ * RT are kept in memory; the fragments themselves are only decoded (from the file) when they are requested. Most MS1
+ * peaks are discarded by the thresholding step, so this avoids parsing and storing the majority of the MS2 data.
+ * <p>
+ * Once decoded, the fragments are stored in the FragmentArena of the file and this object remembers their range.
+ */
+public class MS2ScanReference {
+
+    private MS2SpectrumReader reader;
+    private int scanNum;
+    private double precursorMZ;
+    private double RT;
+    private int arenaOffset; //-1 until the scan has been decoded
+    private int arenaLength;
+
+    /**
+     * Creates a reference to an MS2 scan. In normal use, this should only be called whilst assigning the MS2 scans to
+     * their precursor peaks (in the ScanCombination class).
+     * @param reader The reader for the file which contains the scan
+     * @param scanNum The scan number (as written in the file) of the MS2 scan
+     * @param precursorMZ The target precursor m/z of the MS2 scan
+     * @param rt The RT of the MS2 scan
+     */
+    MS2ScanReference(MS2SpectrumReader reader, int scanNum, double precursorMZ, double rt){
+        this.reader = reader;
+        this.scanNum = scanNum;
+        this.precursorMZ = precursorMZ;
+        RT = rt;
+        arenaOffset = -1;
+    }
+
+    public int getScanNum() {
+        return scanNum;
+    }
+
+    public double getPrecursorMZ() {
+        return precursorMZ;
+    }
+
+    public double getRT() {
+        return RT;
+    }
+
+    /**
+     * Decodes the MS2 scan from the file into the FragmentArena, if that hasn't already been done. The scan is only
+     * ever decoded once, so this should only be called when the fragments are actually needed (i.e. when clustering
+     * the fragments).
+     * @throws FileParsingException if there is an error parsing the scan
+     */
+    public synchronized void decode() throws FileParsingException {
+        if(arenaOffset == -1){
+            ISpectrum spectrum = reader.readSpectrum(scanNum);
+            //Should it use the ms1 or ms2 RT?
+            arenaLength = spectrum.getMZs().length;
+            arenaOffset = reader.getArena().append(spectrum.getMZs(), spectrum.getIntensities(), RT);
+        }
+    }
+
+    /**
+     * Returns the offset of the first fragment of this scan in the arena
+     * @return the offset, or -1 if the scan hasn't been decoded
+     */
+    public synchronized int getArenaOffset() {
+        return arenaOffset;
+    }
+
+    /**
+     * Returns the number of fragments in this scan
+     * @return the number of fragments, or 0 if the scan hasn't been decoded
+     */
+    public synchronized int getArenaLength() {
+        return arenaOffset == -1 ? 0 : arenaLength;
+    }
+
+    public FragmentArena getArena() {
+        return reader.getArena();
+    }
+}
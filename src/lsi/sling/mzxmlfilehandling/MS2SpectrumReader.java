@@ -0,0 +1,46 @@
+package lsi.sling.mzxmlfilehandling;
+
+import lsi.sling.FragmentHandling.FragmentArena;
+import umich.ms.datatypes.spectrum.ISpectrum;
+import umich.ms.fileio.exceptions.FileParsingException;
+import umich.ms.fileio.filetypes.mzxml.MZXMLFile;
+
+/**
+ * Reads individual MS2 spectra from an mzXML file on demand. The MS2 spectra are not parsed when the file is loaded;
+ * instead, the scan offsets in the mzXML index are used to seek directly to (and decode) a single scan whenever its
+ * fragments are actually needed. One reader is shared by all of the MS2ScanReference objects from the same file, and
+ * the decoded fragments are stored in the FragmentArena of that file.
+ */
+public class MS2SpectrumReader {
+
+    private MZXMLFile source;
+    private FragmentArena arena;
+
+    /**
+     * Creates a reader for the given (already indexed) mzXML file
+     * @param source The mzXML file to read from
+     */
+    MS2SpectrumReader(MZXMLFile source){
+        this.source = source;
+        arena = new FragmentArena();
+    }
+
+    /**
+     * Parses the spectrum of a single scan using the offset index of the file. This method is synchronised as the
+     * fragments of different LCPeakClusters may be requested concurrently.
+     * @param scanNum The scan number (as written in the file) of the scan to read
+     * @return The spectrum of the scan
+     * @throws FileParsingException if there is an error parsing the scan
+     */
+    synchronized ISpectrum readSpectrum(int scanNum) throws FileParsingException {
+        return source.parseSpectrum(scanNum);
+    }
+
+    /**
+     * Returns the arena which stores the fragments decoded by this reader
+     * @return the FragmentArena for this file
+     */
+    FragmentArena getArena() {
+        return arena;
+    }
+}
@@ -0,0 +1,116 @@
+package lsi.sling.mzxmlfilehandling;
+
+import lsi.sling.peakextraction.LocalPeak;
+import lsi.sling.peakextraction.PeakTable;
+import lsi.sling.statistics.PrimitiveStatistics;
+
+import java.util.List;
+
+/**
+ * Estimates the mass accuracy of a file from the data itself, so that the ppm windows used to extract the
+ * chromatograms, find the isotopes and annotate the clusters can be as tight as the instrument allows. The m/z of an
+ * ion is followed through the scans either side of a seed LocalPeak (the same way a chromatogram is built, but without
+ * marking any peaks as used), and the spread of the points of each trace around the mean m/z of the trace is then
+ * estimated robustly from their median absolute deviation.
+ * <p>
+ * The seeds are spread across the whole range of intensities (the LocalPeaks are split into equal strata of intensity
+ * rank, and one trace is taken from each), so that the estimate reflects the weaker ions as well as the few dominant
+ * ones whose m/z is measured best. A seed which is already part of an earlier trace is skipped, so each trace is a
+ * different ion.
+ */
+public final class MassAccuracyEstimator {
+
+    //the number of traces (one per stratum of intensity rank) to follow
+    private static final int SAMPLE_SIZE = 1000;
+    //the number of seeds of a stratum to try before giving up on it
+    private static final int MAX_ATTEMPTS = 10;
+    //the number of scans to look at on each side of a seed
+    private static final int TRACE_SCANS = 5;
+    //the minimum number of points (including the seed) of a trace, so that traces of noise are left out
+    private static final int MIN_TRACE_POINTS = 5;
+    //the minimum number of deviations needed for an estimate
+    private static final int MIN_DEVIATIONS = 100;
+    //the tolerance is this many standard deviations of the m/z
+    private static final double SIGMAS = 3;
+    //the smallest tolerance which will be returned (in ppm)
+    private static final double MIN_PPM = 2;
+
+    private MassAccuracyEstimator(){
+    }
+
+    /**
+     * Estimates the ppm tolerance of a file
+     * @param peakTable The LocalPeaks of the file (in scan order)
+     * @param byIntensity The same LocalPeaks in descending order of intensity
+     * @param maxPPM The widest tolerance (in ppm) to look for the traces in, which is also returned if the tolerance
+     *               can't be estimated
+     * @return the estimated tolerance (in ppm), between MIN_PPM and maxPPM
+     */
+    public static double estimate(PeakTable peakTable, List<LocalPeak> byIntensity, double maxPPM){
+        int strata = Math.min(SAMPLE_SIZE, byIntensity.size());
+        double[] deviations = new double[strata*(2*TRACE_SCANS + 1)];
+        int count = 0;
+        boolean[] traced = new boolean[peakTable.size()]; //the peaks which are already part of a trace
+        int[] trace = new int[2*TRACE_SCANS + 1];
+        for(int s=0; s<strata; s++){
+            int stratumEnd = (int) ((long) byIntensity.size()*(s+1)/strata);
+            int attempts = 0;
+            for(int i=(int) ((long) byIntensity.size()*s/strata); i<stratumEnd && attempts<MAX_ATTEMPTS; i++){
+                LocalPeak seed = byIntensity.get(i);
+                int seedIndex = peakTable.indexOf(seed.getScanNumber(), seed.getMZ());
+                if(seedIndex == -1 || traced[seedIndex]){
+                    continue;
+                }
+                attempts++;
+                int points = trace(peakTable, seed, seedIndex, maxPPM, trace);
+                if(points < MIN_TRACE_POINTS){
+                    continue;
+                }
+                double mean = 0;
+                for(int p=0; p<points; p++){
+                    traced[trace[p]] = true;
+                    mean += peakTable.get(trace[p]).getMZ();
+                }
+                mean /= points;
+                //the deviations from the mean of the trace are smaller than those from the true m/z by a factor of
+                //sqrt((n-1)/n), which is corrected for
+                double correction = Math.sqrt(points/(points - 1.0));
+                for(int p=0; p<points; p++){
+                    deviations[count++] = (peakTable.get(trace[p]).getMZ() - mean)/mean*1e6*correction;
+                }
+                break;
+            }
+        }
+        if(count < MIN_DEVIATIONS){
+            return maxPPM;
+        }
+        //the median absolute deviation (scaled to the standard deviation of a normal distribution)
+        double[] absolute = new double[count];
+        for(int i=0; i<count; i++){
+            absolute[i] = Math.abs(deviations[i]);
+        }
+        double standardDeviation = 1.4826*PrimitiveStatistics.median(absolute);
+        return Math.max(MIN_PPM, Math.min(maxPPM, SIGMAS*standardDeviation));
+    }
+
+    /**
+     * Follows the m/z of a seed through the scans either side of it
+     * @param trace Filled with the indices of the points of the trace (starting with the seed)
+     * @return the number of points in the trace
+     */
+    private static int trace(PeakTable peakTable, LocalPeak seed, int seedIndex, double maxPPM, int[] trace){
+        int points = 0;
+        trace[points++] = seedIndex;
+        int scan = seed.getScanNumber();
+        for(int d=-TRACE_SCANS; d<=TRACE_SCANS; d++){
+            if(d == 0 || scan+d < 0 || scan+d >= peakTable.getScanCount()){
+                continue;
+            }
+            int match = peakTable.closest(scan+d, seed.getMZ(), maxPPM);
+            if(match != -1){
+                trace[points++] = match;
+            }
+        }
+        return points;
+    }
+}
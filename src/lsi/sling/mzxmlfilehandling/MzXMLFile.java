@@ -1,9 +1,12 @@
 package lsi.sling.mzxmlfilehandling;
 
-import lsi.sling.FragmentHandling.LCMS2Fragment;
 import lsi.sling.peakextraction.Chromatogram;
 import lsi.sling.peakextraction.LCPeakCluster;
 import lsi.sling.peakextraction.LocalPeak;
+import lsi.sling.peakextraction.OrderedClaimer;
+import lsi.sling.peakextraction.PeakIntegrator;
+import lsi.sling.peakextraction.PeakTable;
+import lsi.sling.statistics.PrimitiveSort;
 import umich.ms.datatypes.LCMSDataSubset;
 import umich.ms.datatypes.scan.IScan;
 import umich.ms.datatypes.scan.StorageStrategy;
@@ -14,9 +17,12 @@ import umich.ms.fileio.filetypes.mzxml.MZXMLFile;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.TreeMap;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * This class represents an mzXMLFile and the data within it. The intended use for this class is to store the data from multiple
@@ -26,17 +32,62 @@ import java.util.stream.Collectors;
 public class MzXMLFile {
 
     private ArrayList<LocalPeak> localPeakList;
+    private PeakTable peakTable;
     private ArrayList<Chromatogram> chromatograms;
     private ArrayList<LCPeakCluster> LCPeakClusters;
     private String fileLocation;
     private ArrayList<ScanCombination> scanCombinations;
+    private SpectrumCache spectrumCache;
+    private boolean centroid; //whether the ms1 spectra are in profile mode and have to be centroided
+
+    //the widest ppm tolerance used for the file (the mass accuracy is estimated within it)
+    private static final double MAX_PPM = 20;
 
     double threshold = 0;
+    double ppm = MAX_PPM; //the estimated mass accuracy of the file, used for the chromatograms and isotopes
+    double noiseLevel = 0; //the standard deviation of the ms1 intensities, used for the signal to noise ratios
 
     public MzXMLFile(String location) throws FileParsingException, InterruptedException, IOException, ClassNotFoundException {
+        this(location, 0, 0);
+    }
+
+    /**
+     * Reads the mzXML file, optionally using an adaptive noise threshold which is calculated separately for each
+     * (m/z bin, RT window) of the run rather than once for the whole file
+     * @param location The location of the mzXML file
+     * @param noiseMZBinWidth The width of the m/z bins for the adaptive threshold (0 to not split by m/z)
+     * @param noiseRTWindow The width of the RT windows for the adaptive threshold (0 to not split by RT)
+     */
+    public MzXMLFile(String location, double noiseMZBinWidth, double noiseRTWindow) throws FileParsingException, InterruptedException, IOException, ClassNotFoundException {
+        this(location, noiseMZBinWidth, noiseRTWindow, new PrecursorAssigner(20, 0, false));
+    }
+
+    /**
+     * Reads the mzXML file, optionally using an adaptive noise threshold and a different way of assigning the ms2 scans
+     * to their precursors
+     * @param location The location of the mzXML file
+     * @param noiseMZBinWidth The width of the m/z bins for the adaptive threshold (0 to not split by m/z)
+     * @param noiseRTWindow The width of the RT windows for the adaptive threshold (0 to not split by RT)
+     * @param precursorAssigner Used to assign the ms2 scans to their precursors
+     */
+    public MzXMLFile(String location, double noiseMZBinWidth, double noiseRTWindow, PrecursorAssigner precursorAssigner) throws FileParsingException, InterruptedException, IOException, ClassNotFoundException {
+        this(location, noiseMZBinWidth, noiseRTWindow, precursorAssigner, false);
+    }
+
+    /**
+     * Reads the mzXML file, optionally centroiding the ms1 spectra first (for files acquired in profile mode)
+     * @param location The location of the mzXML file
+     * @param noiseMZBinWidth The width of the m/z bins for the adaptive threshold (0 to not split by m/z)
+     * @param noiseRTWindow The width of the RT windows for the adaptive threshold (0 to not split by RT)
+     * @param precursorAssigner Used to assign the ms2 scans to their precursors
+     * @param centroid Whether the ms1 spectra are in profile mode, in which case each peak is reduced to a single point
+     *                 before any LocalPeaks are created
+     */
+    public MzXMLFile(String location, double noiseMZBinWidth, double noiseRTWindow, PrecursorAssigner precursorAssigner, boolean centroid) throws FileParsingException, InterruptedException, IOException, ClassNotFoundException {
         MZXMLFile source = new MZXMLFile(location);
         long time = System.currentTimeMillis();
         fileLocation = location;
+        this.centroid = centroid;
         scanCombinations = new ArrayList<>();
         // This is a data structure used to store scans and to navigate around the run
         ScanCollectionDefault scans = new ScanCollectionDefault();
@@ -52,16 +103,16 @@ public class MzXMLFile {
         // Set number of threads for multi-threaded parsing.
         // null means use as many cores as reported by Runtime.getRuntime().availableProcessors()
         source.setNumThreadsForParsing(null);
-        // load the meta-data about the whole run, with forced parsing of MS1 spectra
-        // as we have enabled auto-loading, then if we ever invoke IScan#fetchSpectrum()
-        // on an MS2 spectrum, for which the spectrum has not been parsed, it will be
-        // obtained from disk automatically. And because of Soft referencing, the GC
-        // will be able to reclaim it.
+        // load the meta-data about the whole run (including the MS2 precursors), but only parse the MS1 spectra.
+        // The MS2 spectra are only decoded (through the file index) if their fragments are actually needed, which
+        // is only the case for the precursors which end up in a valid LCPeakCluster
         try {
-            scans.loadData(LCMSDataSubset.WHOLE_RUN);
+            scans.loadData(LCMSDataSubset.STRUCTURE_ONLY);
+            scans.loadData(LCMSDataSubset.MS1_WITH_SPECTRA);
         } catch (FileParsingException e){
             System.out.println("FileParsingException line 51");
         }
+        MS2SpectrumReader ms2Reader = new MS2SpectrumReader(source);
         // let's traverse the data-structure
         TreeMap<Integer, IScan> num2scanMap = scans.getMapNum2scan();
         int i = 0; //to iterate through the arraylist of ScanCombinations
@@ -71,10 +122,10 @@ public class MzXMLFile {
             //    System.out.println("null");
             //}
             if (spectrum != null && scan.getMsLevel() == 1) {
-                scanCombinations.add(new ScanCombination(scan, 20, i));
+                scanCombinations.add(new ScanCombination(scan, i, ms2Reader));
                 i++;
                 //ms1scanArrayList.add(scan);
-            } if(spectrum != null && scan.getMsLevel() == 2){
+            } if(scan.getMsLevel() == 2 && scan.getPrecursor() != null && i > 0){ //the ms2 spectra haven't been parsed yet
                 //sanity check to help prevent runtime bugs
                 if(scanCombinations.get(i-1).getMs1ScanNumber()==scan.getPrecursor().getParentScanNum()){
                     scanCombinations.get(i-1).addMs2Scan(scan);
@@ -87,11 +138,59 @@ public class MzXMLFile {
         //creates an ArrayList containing only the spectrum data from ms1scanArrayList
         //ArrayList<ISpectrum> ms1SpectrumArrayList = new ArrayList<>();
 
-        localPeakList = new ArrayList<>();
-        for(ScanCombination combination : scanCombinations){
-            localPeakList.addAll(combination.createLocalPeaks());
+        //profile spectra are centroided (each scan in parallel) before anything else, so the noise threshold, the peak
+        //table and the precursor assignment only ever see one point per peak
+        if(centroid){
+            scanCombinations.parallelStream().forEach(ScanCombination::centroid);
+        }
+
+        //accumulates the intensity distribution of every ms1 point (each scan in parallel) to find the noise threshold
+        //before any LocalPeaks are created
+        IntensityAccumulator noise = scanCombinations.parallelStream().collect(
+                () -> new IntensityAccumulator(noiseMZBinWidth, noiseRTWindow),
+                (accumulator, combination) -> combination.accumulateIntensities(accumulator),
+                IntensityAccumulator::merge);
+        //sets the (global) threshold to be mu+3sigma for future steps
+        threshold = noise.getThreshold(3);
+        noiseLevel = noise.getStandardDeviation();
+        //only the LocalPeaks with intensity>(mu+3sigma) are created for further analysis.
+        //Filtering the LocalPeaks here significantly improves downstream performance (when extracting the EICs)
+        //each cycle is independent, so the peaks (and precursor assignments) of every cycle are created in parallel into
+        //their own segment, and the segments are then copied (in parallel) into a single pre-sized peak table
+        LocalPeak[][] segments = new LocalPeak[scanCombinations.size()][];
+        IntStream.range(0, segments.length).parallel().forEach(c ->
+                segments[c] = scanCombinations.get(c).createLocalPeaks(noise, 3, precursorAssigner).toArray(new LocalPeak[0]));
+        int[] segmentOffsets = new int[segments.length+1];
+        for(int c = 0; c < segments.length; c++){
+            segmentOffsets[c+1] = segmentOffsets[c] + segments[c].length;
         }
-        Collections.sort(localPeakList);
+        LocalPeak[] peaks = new LocalPeak[segmentOffsets[segments.length]];
+        IntStream.range(0, segments.length).parallel().forEach(c ->
+                System.arraycopy(segments[c], 0, peaks, segmentOffsets[c], segments[c].length));
+        double[] scanRTs = new double[scanCombinations.size()];
+        for(int c = 0; c < scanRTs.length; c++){
+            scanRTs[c] = scanCombinations.get(c).getMS1SCAN().getRt();
+        }
+        peakTable = new PeakTable(peaks, segmentOffsets, scanRTs);
+        //optionally tries to assign the ms2 scans whose precursor wasn't found to the closest neighbouring ms1 scans
+        if(precursorAssigner.getNeighbourScans() > 0){
+            for(int c = 0; c < scanCombinations.size(); c++){
+                for(IScan ms2Scan : scanCombinations.get(c).getUnassignedMs2Scans()){
+                    for(int d = 1; d <= precursorAssigner.getNeighbourScans(); d++){
+                        if((c-d >= 0 && scanCombinations.get(c-d).assignFromNeighbour(ms2Scan, precursorAssigner))
+                                || (c+d < scanCombinations.size() && scanCombinations.get(c+d).assignFromNeighbour(ms2Scan, precursorAssigner))){
+                            break;
+                        }
+                    }
+                }
+            }
+            scanCombinations.forEach(ScanCombination::release);
+        }
+        //the chromatograms are seeded in descending order of intensity
+        localPeakList = sortByDescendingIntensity(Arrays.asList(peaks));
+        //estimates the mass accuracy from the m/z spread of traces across the range of intensities, so the windows are
+        //only as wide as they need to be
+        ppm = MassAccuracyEstimator.estimate(peakTable, localPeakList, MAX_PPM);
 
         //for(IScan scan : ms1scanArrayList){
         //    ms1SpectrumArrayList.add(scan.fetchSpectrum());
@@ -103,14 +202,6 @@ public class MzXMLFile {
             ms2SpectrumArrayList.add(scan.fetchSpectrum());
         }*/
 
-        //calculates the mean intensity of the LocalPeak objects and the value of mu+2sigma
-        double mean = meanIntensity();
-        //sets the threshold to be mu+2sigma for future steps
-        threshold = mean + 3*intensityStandardDeviation(mean);
-        //filters the localPeakList so that only LocalPeaks with intensity>(mu+3sigma) are kept for further analysis.
-        //Filtering the LocalPeaks here significantly improves downstream performance (when extracting the EICs)
-        localPeakList = (ArrayList<LocalPeak>) localPeakList.stream().filter(localPeak -> localPeak.getIntensity()>threshold).collect(Collectors.toList());
-
         /*for(IScan ms1Scan : ms1scanArrayList){
             ArrayList<IScan> relevantMS2Scans = (ArrayList<IScan>) ms2scanArrayList.stream().filter(ms2Scan -> ms2Scan.getPrecursor().getParentScanNum()==ms1Scan.getNum()).collect(Collectors.toList());
             System.out.println("test");
@@ -130,15 +221,21 @@ public class MzXMLFile {
         //iterates through localPeakList (which contains LocalPeak objects) to form the chromatograms. Note that they are in descending order (of max intensity)
         setChromatograms(new ArrayList<>());
         createChromatograms();
+        //splits every chromatogram into isobars and integrates them in parallel
+        getChromatograms().parallelStream().forEach(chromatogram -> {
+            chromatogram.findIsobars();
+            chromatogram.integrate(noiseLevel, PeakIntegrator.Method.TRAPEZOID);
+        });
 
         LCPeakClusters = new ArrayList<>(); //the arraylist which contains the LCPeakCluster objects
         LCPeakClusters = createPeakClusters();
 
         //LCPeakClusters = (ArrayList<LCPeakCluster>) LCPeakClusters.stream().filter(peakCluster -> peakCluster.getMainIntensity() > threshold).collect(Collectors.toList());
 
-        //Clears up some memory after it's done using the scanCombinations objects
+        //Clears up some memory after it's done using the scanCombinations objects and the cached spectra
         scanCombinations.clear();
         scanCombinations.trimToSize();
+        spectrumCache.clear();
         System.gc();
 
 
@@ -171,29 +268,36 @@ public class MzXMLFile {
     }
 
     /**
-     * Given an ms2Scan and it's corresponding ms1Scan, this method converts the scan data into an arraylist of LCMS2Fragment
-     * items which can be added to the relevant LocalPeak object.
-     * @param ms2Scan The ms2Scan to "convert"
-     * @param ms1Peak The corresponding ms1LocalPeak
-     * @return and ArrayList containing the generated LCMS2Fragment objects
-     * @throws FileParsingException if there is an error fetching the spectra
+     * Sorts the LocalPeaks into descending order of intensity, giving exactly the same order as Collections.sort (i.e.
+     * equal intensities stay in their original order). Rather than sorting the objects with the comparator, the
+     * intensities are sorted as a primitive column.
+     * @param peaks The peaks to sort
+     * @return A new list containing the peaks in descending order of intensity
      */
-    private static ArrayList<LCMS2Fragment> generateMS2Peaks(IScan ms2Scan, LocalPeak ms1Peak) throws FileParsingException {
-        ArrayList<LCMS2Fragment> ms2LocalPeaks = new ArrayList<>();
-        ISpectrum spectrum = ms2Scan.fetchSpectrum();
-        for(int i=0; i<spectrum.getIntensities().length; i++){
-            ms2LocalPeaks.add(new LCMS2Fragment(spectrum.getIntensities()[i], spectrum.getMZs()[i],ms1Peak.getRT()));
+    private static ArrayList<LocalPeak> sortByDescendingIntensity(List<LocalPeak> peaks){
+        double[] intensities = new double[peaks.size()];
+        for(int i=0; i<intensities.length; i++){
+            intensities[i] = peaks.get(i).getIntensity();
         }
-        return ms2LocalPeaks;
+        ArrayList<LocalPeak> sorted = new ArrayList<>(intensities.length);
+        for(int i : PrimitiveSort.order(intensities, true)){
+            sorted.add(peaks.get(i));
+        }
+        return sorted;
     }
 
     private void createChromatograms() throws FileParsingException {
+        //the ms1 spectra are read through a bounded cache rather than the (softly referenced) ScanCollection, so they
+        //aren't silently re-parsed when the GC discards them. The files are processed concurrently (one per core), so
+        //each file gets an equal share of a quarter of the heap as its budget
+        ArrayList<IScan> scanList = (ArrayList<IScan>) scanCombinations.stream().map(ScanCombination::getMS1SCAN).collect(Collectors.toList());
+        spectrumCache = new SpectrumCache(scanList, Runtime.getRuntime().maxMemory()/(4L*Runtime.getRuntime().availableProcessors()), 2, centroid);
         for(LocalPeak localPeak : localPeakList){
             if(!localPeak.getIsUsed()){
                 //iteratively creates recursive chromatograms from all localPeaks
                 //intensities below mu+5sigma should have already been filtered out
-                ArrayList<IScan> scanList = (ArrayList<IScan>) scanCombinations.stream().map(ScanCombination::getMS1SCAN).collect(Collectors.toList());
-                getChromatograms().add(new Chromatogram(scanList, localPeak, 20, threshold, localPeakList));
+                int startingPeak = peakTable.indexOf(localPeak.getScanNumber(), localPeak.getMZ());
+                getChromatograms().add(new Chromatogram(spectrumCache, peakTable, startingPeak, ppm, threshold));
                 //chromatograms.add(new Chromatogram(ms1scanArrayList, localPeak, 20, threshold, localPeakList));
             }
         }
@@ -206,50 +310,36 @@ public class MzXMLFile {
      */
     private ArrayList<LCPeakCluster> createPeakClusters() {
         ArrayList<Chromatogram> chromatograms = this.getChromatograms();
-        ArrayList<LCPeakCluster> clusters = new ArrayList<>();
-        for(Chromatogram chromatogram : chromatograms){
-            //iteratively loops through each unused chromatogram so that eventually every chromatogram is used
-            if(!chromatogram.getInCluster()){
-                chromatogram.setInCluster();
-                clusters.add(new LCPeakCluster(chromatogram, 20, this));
-            }
-        }
-        //filters out the invalid LCPeakClusters (based on starting point)
-        //this filtering happens at the end to ensure low-abundance isotopes aren't missed
-        clusters = (ArrayList<LCPeakCluster>) clusters.stream().filter(peakCluster -> peakCluster.getChromatograms().get(peakCluster.getStartingPointIndex()).isValidStartingPoint()).collect(Collectors.toList());
-        return clusters;
+        //creating a LCPeakCluster doesn't depend on (or change) which chromatograms are already in a cluster, so the
+        //clusters are created in parallel and then claimed in the order of the chromatograms (descending intensity),
+        //which gives exactly the same clusters as creating them one at a time
+        //invalid starting points are skipped before the (expensive) isotope search, but they aren't marked as used
+        //so that they can still be picked up as low-abundance isotopes of a later LCPeakCluster
+        List<LCPeakCluster> clusters = OrderedClaimer.build(chromatograms.size(),
+                i -> chromatograms.get(i).getInCluster(),
+                i -> chromatograms.get(i).isValidStartingPoint() ? new LCPeakCluster(chromatograms.get(i), ppm, this) : null,
+                LCPeakCluster::claim);
+        return new ArrayList<>(clusters);
     }
 
-    /**
-     * Calculates the meanIntensity of ALL LocalPeaks in this file. This value is later used to calculate mu+5sigma which
-     * is used as the noise/signal ration
-     * @return the mean intensity
-     */
-    private double meanIntensity(){
-        double sum = 0;
-        for(LocalPeak peak : localPeakList){
-            sum += peak.getIntensity();
-        }
-        return sum/ localPeakList.size();
+    public ArrayList<LocalPeak> getLocalPeakList() {
+        return localPeakList;
     }
 
     /**
-     * Calculates the meanIntensity of ALL LocalPeaks in this file. This value is later used to calculate mu+5sigma which
-     * is used as the noise/signal ration
-     * @return the mean intensity
+     * Returns the LocalPeaks of the file in scan order, which the chromatograms refer to
+     * @return the peak table
      */
-    private double intensityStandardDeviation(double mean){
-        double sum = 0;
-        for(LocalPeak peak : localPeakList){
-            sum += (peak.getIntensity()-mean)*(peak.getIntensity()-mean);
-        }
-        sum = sum/(localPeakList.size()-1);
-
-        return Math.sqrt(sum);
+    public PeakTable getPeakTable() {
+        return peakTable;
     }
 
-    public ArrayList<LocalPeak> getLocalPeakList() {
-        return localPeakList;
+    /**
+     * Returns the mass accuracy estimated from the file, which was used to create the chromatograms and LCPeakClusters
+     * @return the ppm tolerance of the file
+     */
+    public double getPPM() {
+        return ppm;
     }
 
     /**
@@ -264,6 +354,112 @@ public class MzXMLFile {
         return LCPeakClusters;
     }
 
+    /**
+     * Returns the location of the mzXML file which this object represents. This is also used to identify the sample
+     * when aligning samples.
+     * @return the file location
+     */
+    public String getFileLocation() {
+        return fileLocation;
+    }
+
+    /**
+     * Extracts the ion chromatograms (XICs) of a list of targets in a single pass over the ms1 scans. Each point of a
+     * trace is the highest intensity within the ppm tolerance of the target m/z in that scan (the same as the points of
+     * a Chromatogram), or 0 if there isn't one. The targets are sorted by the lower edge of their m/z window, so within
+     * each scan the spectrum and the active targets can be merge-walked together rather than searching the spectrum for
+     * every target. The spectra are read through the spectrum cache of the file, so this can be called after the file
+     * has been processed.
+     * @param targetMZs The m/z of each target
+     * @param ppms The tolerance (in ppm) of each target
+     * @param rtStarts The start of the RT window of each target
+     * @param rtEnds The end of the RT window of each target
+     * @return the traces, in the same order as the targets
+     * @throws FileParsingException if a spectrum has to be re-parsed and there is an error parsing it
+     */
+    public TraceMatrix extractXICs(double[] targetMZs, double[] ppms, double[] rtStarts, double[] rtEnds) throws FileParsingException {
+        int targets = targetMZs.length;
+        int scanCount = spectrumCache.size();
+        double[] scanRTs = new double[scanCount];
+        for(int i=0; i<scanCount; i++){
+            scanRTs[i] = spectrumCache.getRT(i);
+        }
+        //the scans in the RT window of each target (found from the RT axis, without reading any spectra)
+        int[] firstScans = new int[targets];
+        int[] offsets = new int[targets+1];
+        double[] lower = new double[targets];
+        double[] upper = new double[targets];
+        for(int t=0; t<targets; t++){
+            int first = lowerBound(scanRTs, rtStarts[t]);
+            int end = lowerBound(scanRTs, Math.nextUp(rtEnds[t]));
+            firstScans[t] = first;
+            offsets[t+1] = offsets[t] + Math.max(0, end - first);
+            double tolerance = (targetMZs[t]/1e6)*ppms[t];
+            lower[t] = targetMZs[t] - tolerance;
+            upper[t] = targetMZs[t] + tolerance;
+        }
+        float[] intensities = new float[offsets[targets]];
+        int[] order = PrimitiveSort.order(lower, false);
+        //only the scans covered by at least one target need to be read
+        int minScan = scanCount;
+        int maxScan = -1;
+        for(int t=0; t<targets; t++){
+            if(offsets[t+1] > offsets[t]){
+                minScan = Math.min(minScan, firstScans[t]);
+                maxScan = Math.max(maxScan, firstScans[t] + offsets[t+1] - offsets[t] - 1);
+            }
+        }
+        for(int scan=minScan; scan<=maxScan; scan++){
+            CachedSpectrum spectrum = spectrumCache.get(scan);
+            double[] mzs = spectrum.getMZs();
+            double[] inten = spectrum.getIntensities();
+            int p = 0; //only moves forwards, as the lower edges of the targets are in ascending order
+            for(int t : order){
+                int point = scan - firstScans[t];
+                if(point < 0 || point >= offsets[t+1] - offsets[t]){
+                    continue; //this scan is outside the RT window of the target
+                }
+                while(p < mzs.length && mzs[p] < lower[t]){
+                    p++;
+                }
+                double max = 0;
+                for(int i=p; i<mzs.length && mzs[i] <= upper[t]; i++){
+                    if(inten[i] > max){
+                        max = inten[i];
+                    }
+                }
+                intensities[offsets[t] + point] = (float) max;
+            }
+        }
+        return new TraceMatrix(offsets, firstScans, intensities, scanRTs);
+    }
+
+    /**
+     * @return the index of the first value >= key in the (ascending) array, or the length of the array if there isn't one
+     */
+    private static int lowerBound(double[] values, double key){
+        int lo = 0;
+        int hi = values.length;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(values[mid] < key){
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the cache used to read the ms1 spectra whilst creating the chromatograms. The spectra themselves are
+     * cleared once the file has been processed, but the hit/miss/re-parse counters are kept.
+     * @return the SpectrumCache for this file
+     */
+    public SpectrumCache getSpectrumCache() {
+        return spectrumCache;
+    }
+
     public ArrayList<Chromatogram> getChromatograms() {
         return chromatograms;
     }
@@ -0,0 +1,114 @@
+package lsi.sling.mzxmlfilehandling;
+
+/**
+ * Assigns the MS2 scans of a cycle to the points of an (m/z sorted) MS1 spectrum. Each precursor is found with a
+ * binary search of the spectrum, and all of the MS2 scans of a cycle are assigned in a single call.
+ * <p>
+ * By default the precursor is the closest MS1 point to the target m/z (within the ppm tolerance) in the parent scan,
+ * which is how the MS2 scans have always been assigned. Optionally:
+ * <ul>
+ *     <li>the most intense MS1 point within the isolation window of the MS2 scan can be used instead (which is the ion
+ *     which dominates the fragment spectrum), if the file records the isolation window</li>
+ *     <li>MS2 scans which can't be assigned in their parent scan can be assigned to the neighbouring MS1 scans (e.g. if
+ *     the precursor was just below the noise threshold in the parent scan)</li>
+ * </ul>
+ */
+public class PrecursorAssigner {
+
+    private int ppm;
+    private int neighbourScans;
+    private boolean useIsolationWindow;
+
+    /**
+     * Creates an assigner
+     * @param ppm The tolerance (in ppm) between the target m/z and the precursor
+     * @param neighbourScans The number of MS1 scans either side of the parent scan to try if the precursor can't be
+     *                       assigned in the parent scan (0 to only use the parent scan)
+     * @param useIsolationWindow Whether to use the most intense point within the isolation window, rather than the
+     *                           closest point to the target m/z
+     */
+    public PrecursorAssigner(int ppm, int neighbourScans, boolean useIsolationWindow){
+        this.ppm = ppm;
+        this.neighbourScans = neighbourScans;
+        this.useIsolationWindow = useIsolationWindow;
+    }
+
+    /**
+     * Finds the precursor of every MS2 scan of a cycle in an MS1 spectrum
+     * @param mzs The (ascending) m/z values of the MS1 spectrum
+     * @param intensities The intensities of the MS1 spectrum
+     * @param targets The target precursor m/z of each MS2 scan
+     * @param windowStarts The start of the isolation window of each MS2 scan (NaN if it isn't known)
+     * @param windowEnds The end of the isolation window of each MS2 scan (NaN if it isn't known)
+     * @return the index of the precursor of each MS2 scan in the spectrum, or -1 if it couldn't be found
+     */
+    int[] assign(double[] mzs, double[] intensities, double[] targets, double[] windowStarts, double[] windowEnds){
+        int[] precursors = new int[targets.length];
+        for(int i=0; i<targets.length; i++){
+            precursors[i] = -1;
+            if(useIsolationWindow && !Double.isNaN(windowStarts[i]) && !Double.isNaN(windowEnds[i])){
+                precursors[i] = mostIntenseWithin(mzs, intensities, windowStarts[i], windowEnds[i]);
+            }
+            if(precursors[i] == -1){
+                precursors[i] = closestWithinPpm(mzs, targets[i]);
+            }
+        }
+        return precursors;
+    }
+
+    int getNeighbourScans(){
+        return neighbourScans;
+    }
+
+    /**
+     * Finds the closest point to the target m/z. If two points are equally close, the lower one is used.
+     * @return the index of the closest point if it is within the ppm tolerance, otherwise -1
+     */
+    private int closestWithinPpm(double[] mzs, double target){
+        if(mzs.length == 0){
+            return -1;
+        }
+        //the closest point is either side of the insertion point
+        int lo = lowerBound(mzs, target);
+        int closest;
+        if(lo == mzs.length || (lo > 0 && target - mzs[lo-1] <= mzs[lo] - target)){
+            closest = lo - 1;
+        } else {
+            closest = lo;
+        }
+        //of several points with the same m/z, the first one is used (as the original linear search did)
+        while(closest > 0 && mzs[closest-1] == mzs[closest]){
+            closest--;
+        }
+        double ppmTolerance = (target/1e6)*ppm;
+        return Math.abs(mzs[closest]-target) < ppmTolerance ? closest : -1;
+    }
+
+    /**
+     * Finds the most intense point with start <= m/z <= end
+     * @return the index of the most intense point, or -1 if there are no points in the window
+     */
+    private static int mostIntenseWithin(double[] mzs, double[] intensities, double start, double end){
+        int best = -1;
+        for(int i=lowerBound(mzs, start); i<mzs.length && mzs[i] <= end; i++){
+            if(best == -1 || intensities[i] > intensities[best]){
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static int lowerBound(double[] mzs, double value){
+        int lo = 0;
+        int hi = mzs.length;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(mzs[mid] < value){
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -1,14 +1,11 @@
 package lsi.sling.mzxmlfilehandling;
 
-import lsi.sling.FragmentHandling.LCMS2Fragment;
 import lsi.sling.peakextraction.LocalPeak;
 import umich.ms.datatypes.scan.IScan;
+import umich.ms.datatypes.scan.props.PrecursorInfo;
 import umich.ms.datatypes.spectrum.ISpectrum;
-import umich.ms.fileio.exceptions.FileParsingException;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.stream.Collectors;
 
 /**
  * This class represents an MS1 scan with it's corresponding MS2 scans. This class is only used in the MzXML File class
@@ -19,23 +16,32 @@ import java.util.stream.Collectors;
 class ScanCombination {
 
     private IScan MS1SCAN;
+    //the ms1 spectrum, kept until the ms2 scans have been assigned so it is only fetched once
+    private double[] mzs;
+    private double[] intensities;
     private ArrayList<IScan> ms2Scans;
-    private int ppm;
+    //used to assign ms2 scans from the neighbouring cycles, until release() is called
+    private ArrayList<LocalPeak> peakList;
+    private int[] peakIndex;
+    private ArrayList<IScan> unassignedMs2Scans;
     private int orderedNumber; //used to create the localPeaks
+    private MS2SpectrumReader ms2Reader; //used to decode the ms2 spectra when they are needed
 
     /**
-     * Initialises the object with the ms1Scan and the ppm to use when mapping the ms2 peaks. The intention is for the
-     * ms1Scans to be added later on.
+     * Initialises the object with the ms1Scan. The intention is for the ms2Scans to be added later on.
      * @param ms1scan The initial ms1 scan which all ms2Scans 'belong' to
-     * @param ppm The ppm to use when mapping the ms2Peaks
      * @param ms1ScanNum The 'corrected' scan number of the ms1 scan (ignoring the ms2 scan numbers). This is used when creating the chromatograms.
+     * @param ms2Reader The reader used to decode the ms2 spectra (lazily) once they have been assigned to their precursors
      */
-    ScanCombination(IScan ms1scan, int ppm, int ms1ScanNum){
+    ScanCombination(IScan ms1scan, int ms1ScanNum, MS2SpectrumReader ms2Reader){
         assert ms1scan.getNum() == 1; //checks that the scan really is a ms1 scan
         MS1SCAN = ms1scan;
+        ISpectrum spectrum = ms1scan.getSpectrum();
+        mzs = spectrum.getMZs();
+        intensities = spectrum.getIntensities();
         ms2Scans = new ArrayList<>();
-        this.ppm = ppm;
         orderedNumber = ms1ScanNum;
+        this.ms2Reader = ms2Reader;
     }
 
     /**
@@ -56,53 +62,120 @@ class ScanCombination {
     }
 
     /**
-     * Creates a list of the LocalPeak objects stored in the scans in this object. The LocalPeak objects in the returned
-     * ArrayList contain both the ms1 and ms2 peaks as described in the LocalPeak class
+     * Replaces the (profile-mode) ms1 spectrum with its centroids, so that only one LocalPeak is created for each peak
+     * rather than one for every point of its profile. This has to be called before the noise threshold is accumulated.
+     */
+    void centroid(){
+        CachedSpectrum centroided = Centroider.centroid(mzs, intensities);
+        mzs = centroided.getMZs();
+        intensities = centroided.getIntensities();
+    }
+
+    /**
+     * Adds the intensities of the ms1 spectrum to the accumulator used to calculate the noise threshold
+     * @param accumulator The accumulator to add the intensities to
+     */
+    void accumulateIntensities(IntensityAccumulator accumulator){
+        accumulator.addSpectrum(mzs, intensities, MS1SCAN.getRt());
+    }
+
+    /**
+     * Creates a list of the LocalPeak objects stored in the scans in this object. Only the ms1 points above the noise
+     * threshold are turned into LocalPeak objects. The LocalPeak objects in the returned ArrayList contain the ms1 peaks
+     * along with references to the ms2 scans whose precursor they are. The ms2 spectra themselves aren't read here
+     * @param noise The accumulated intensity distribution of the file, used to find the threshold for each point
+     * @param sigmas The number of standard deviations above the mean intensity a point must be to be kept
+     * @param assigner Used to find the precursors of the ms2 scans
      * @return An ArrayList containing LocalPeaks with both ms1 and ms2 data
-     * @throws FileParsingException if there is a problem fetching the spectrum
      */
-    ArrayList<LocalPeak> createLocalPeaks() throws FileParsingException {
-        ArrayList<LocalPeak> peakList = new ArrayList<>();
-        ISpectrum spectrum = MS1SCAN.fetchSpectrum();
-        //for loop to create all the MS1 Peaks
-        for(int i = 0; i < spectrum.getIntensities().length; i++){
-            //peakList.add(new LocalPeak(MS1SCAN.getNum(), spectrum.getIntensities()[i], spectrum.getMZs()[i], MS1SCAN.getRt()));
-            peakList.add(new LocalPeak(orderedNumber, spectrum.getIntensities()[i], spectrum.getMZs()[i], MS1SCAN.getRt()));
+    ArrayList<LocalPeak> createLocalPeaks(IntensityAccumulator noise, double sigmas, PrecursorAssigner assigner) {
+        peakList = new ArrayList<>();
+        double threshold = noise.getThreshold(sigmas);
+        //the position of each point in peakList (or -1 if it was below the threshold)
+        peakIndex = new int[intensities.length];
+        //for loop to create the MS1 Peaks which are above the threshold
+        for(int i = 0; i < intensities.length; i++){
+            if(noise.isAdaptive()){
+                threshold = noise.getThreshold(mzs[i], MS1SCAN.getRt(), sigmas);
+            }
+            if(intensities[i] > threshold){
+                peakIndex[i] = peakList.size();
+                peakList.add(new LocalPeak(orderedNumber, intensities[i], mzs[i], MS1SCAN.getRt()));
+            } else {
+                peakIndex[i] = -1;
+            }
         }
-        //for loop to create and assign the MS2 Peaks
-        for(IScan scan : ms2Scans){
-            ISpectrum ms2Spectrum = scan.fetchSpectrum();
-            double[] ms2MZs = ms2Spectrum.getMZs();
-            double ms2PrecursorMZ = scan.getPrecursor().getMzTarget();
-            double[] ms2Intensities = ms2Spectrum.getIntensities();
-            int closestMS1Peak = findClosestMS1Peak(ms2PrecursorMZ, peakList);
-            if(closestMS1Peak != -1) {
-                for (int i = 0; i < ms2MZs.length; i++) {
-                    //Should it use the ms1 or ms2 RT?
-                    //peakList.get(closestMS1Peak).addFragment(new LCMS2Fragment(ms2Intensities[i], ms2MZs[i], scan.getRt()));
-                    peakList.get(closestMS1Peak).addFragment(new LCMS2Fragment(ms2Intensities[i], ms2MZs[i], scan.getRt()));
-                }
+        //assigns all of the MS2 scans of this cycle at once. Only a reference is stored, the ms2 spectra are decoded later
+        //if they are needed. The precursor is matched against all of the ms1 points, but is only attached if that point
+        //survived the threshold
+        unassignedMs2Scans = new ArrayList<>();
+        int[] precursors = findPrecursors(ms2Scans, assigner);
+        for(int i = 0; i < precursors.length; i++){
+            if(!attach(ms2Scans.get(i), precursors[i])){
+                unassignedMs2Scans.add(ms2Scans.get(i));
             }
         }
+        if(assigner.getNeighbourScans() == 0){
+            release();
+        }
         return peakList;
     }
 
     /**
-     * Finds the closest MS1 Peak to the given ms2 m/z so that the ms2 peak can be assigned to the corresponding LocalPeak object.
-     * @param ms2MZ The ms2 m/z value to compare against
-     * @param peakList The list of ms1 LocalPeak objects to search in
-     * @return -1 if nothing is found, otherwise the index of the corresponding ms1 LocalPeak in peakList
+     * Tries to assign an ms2 scan (which couldn't be assigned in its own cycle) to a LocalPeak in this scan. This can
+     * only be used before release() is called.
+     * @param ms2scan The ms2 scan to assign
+     * @param assigner Used to find the precursor of the ms2 scan
+     * @return true if the ms2 scan was assigned, otherwise false
+     */
+    boolean assignFromNeighbour(IScan ms2scan, PrecursorAssigner assigner){
+        ArrayList<IScan> scans = new ArrayList<>(1);
+        scans.add(ms2scan);
+        return attach(ms2scan, findPrecursors(scans, assigner)[0]);
+    }
+
+    /**
+     * Returns the ms2 scans whose precursor couldn't be found in this scan
+     * @return the unassigned ms2 scans
+     */
+    ArrayList<IScan> getUnassignedMs2Scans(){
+        return unassignedMs2Scans;
+    }
+
+    /**
+     * Releases the ms1 spectrum and the lookup from spectrum points to LocalPeaks once all of the ms2 scans have been
+     * assigned
+     */
+    void release(){
+        mzs = null;
+        intensities = null;
+        peakIndex = null;
+        peakList = null;
+        unassignedMs2Scans = null;
+    }
+
+    private int[] findPrecursors(ArrayList<IScan> scans, PrecursorAssigner assigner){
+        double[] targets = new double[scans.size()];
+        double[] windowStarts = new double[scans.size()];
+        double[] windowEnds = new double[scans.size()];
+        for(int i = 0; i < targets.length; i++){
+            PrecursorInfo precursor = scans.get(i).getPrecursor();
+            targets[i] = precursor.getMzTarget();
+            windowStarts[i] = precursor.getMzRangeStart() == null ? Double.NaN : precursor.getMzRangeStart();
+            windowEnds[i] = precursor.getMzRangeEnd() == null ? Double.NaN : precursor.getMzRangeEnd();
+        }
+        return assigner.assign(mzs, intensities, targets, windowStarts, windowEnds);
+    }
+
+    /**
+     * Attaches an ms2 scan to the LocalPeak of the given spectrum point, if that point survived the threshold
+     * @return true if the ms2 scan was attached, otherwise false
      */
-    private int findClosestMS1Peak(double ms2MZ, ArrayList<LocalPeak> peakList){
-        //uses a stream to narrow down the list of LocalPeaks which need to be checked
-        ArrayList<Double> distances = (ArrayList<Double>) peakList.stream().mapToDouble(p -> Math.abs(p.getMZ()-ms2MZ)).boxed().collect(Collectors.toList());
-        double ppmTolerance = (ms2MZ/1e6)*ppm;
-        //finds the minimum distance and compares it to the ppmtolerance to return the appropriate value
-        int minIndex = distances.indexOf(Collections.min(distances));
-        if(distances.get(minIndex)<ppmTolerance){
-            return minIndex;
-        } else {
-            return -1;
+    private boolean attach(IScan ms2scan, int point){
+        if(point != -1 && peakIndex[point] != -1){
+            peakList.get(peakIndex[point]).addMS2Scan(new MS2ScanReference(ms2Reader, ms2scan.getNum(), ms2scan.getPrecursor().getMzTarget(), ms2scan.getRt()));
+            return true;
         }
+        return false;
     }
 }
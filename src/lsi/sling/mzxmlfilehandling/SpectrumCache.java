@@ -0,0 +1,176 @@
+package lsi.sling.mzxmlfilehandling;
+
+import umich.ms.datatypes.scan.IScan;
+import umich.ms.datatypes.spectrum.ISpectrum;
+import umich.ms.fileio.exceptions.FileParsingException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of decoded MS1 spectra with a fixed memory budget. The ScanCollection only keeps soft references to the
+ * spectra, so under memory pressure the GC discards them and every later access silently re-parses the scan from the
+ * file. This cache keeps the most recently used spectra in memory (up to the budget) and evicts the least recently used
+ * ones first.
+ * <p>
+ * The chromatograms are built by walking through neighbouring scans, so when a scan isn't in the cache the adjacent
+ * scans are loaded at the same time. The hits, misses, re-parses (misses where the ScanCollection had also lost the
+ * spectrum), prefetches and evictions are counted so that the budget can be tuned.
+ */
+public class SpectrumCache {
+
+    private List<IScan> scans;
+    private long budget;
+    private int prefetch;
+    private boolean centroid;
+    private long usedBytes;
+    private LinkedHashMap<Integer, CachedSpectrum> cache;
+
+    private long hits;
+    private long misses;
+    private long reparses;
+    private long prefetches;
+    private long evictions;
+
+    /**
+     * Creates an empty cache over the given ms1 scans
+     * @param scans The ms1 scans, in order (the spectra are requested by their position in this list)
+     * @param budget The maximum number of bytes of spectra to keep in memory
+     * @param prefetch The number of adjacent scans (on each side) to load whenever there is a miss
+     */
+    public SpectrumCache(List<IScan> scans, long budget, int prefetch){
+        this(scans, budget, prefetch, false);
+    }
+
+    /**
+     * Creates an empty cache over the given ms1 scans, optionally centroiding the spectra as they are loaded (so that
+     * the cached spectra match the LocalPeaks of a profile-mode file)
+     * @param scans The ms1 scans, in order (the spectra are requested by their position in this list)
+     * @param budget The maximum number of bytes of spectra to keep in memory
+     * @param prefetch The number of adjacent scans (on each side) to load whenever there is a miss
+     * @param centroid Whether to centroid the spectra when they are loaded
+     */
+    public SpectrumCache(List<IScan> scans, long budget, int prefetch, boolean centroid){
+        this.scans = new ArrayList<>(scans);
+        this.budget = budget;
+        this.prefetch = prefetch;
+        this.centroid = centroid;
+        //access order, so that iteration starts at the least recently used spectrum
+        cache = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the decoded spectrum of a scan, loading it (and its neighbours) if it isn't in the cache
+     * @param index The position of the scan in the list of ms1 scans
+     * @return the decoded spectrum
+     * @throws FileParsingException if the spectrum has to be re-parsed and there is an error parsing it
+     */
+    public synchronized CachedSpectrum get(int index) throws FileParsingException {
+        CachedSpectrum spectrum = cache.get(index);
+        if(spectrum != null){
+            hits++;
+            return spectrum;
+        }
+        misses++;
+        spectrum = load(index);
+        for(int i=1; i<=prefetch; i++){
+            prefetch(index + i);
+            prefetch(index - i);
+        }
+        //makes sure the requested spectrum is the most recently used
+        cache.get(index);
+        return spectrum;
+    }
+
+    /**
+     * Returns the RT of a scan (which doesn't need the spectrum to be loaded)
+     * @param index The position of the scan in the list of ms1 scans
+     * @return the RT of the scan
+     */
+    public double getRT(int index){
+        return scans.get(index).getRt();
+    }
+
+    /**
+     * Returns the number of ms1 scans (whether they are cached or not)
+     * @return the number of scans
+     */
+    public int size(){
+        return scans.size();
+    }
+
+    private void prefetch(int index) throws FileParsingException {
+        if(index >= 0 && index < scans.size() && !cache.containsKey(index)){
+            prefetches++;
+            load(index);
+        }
+    }
+
+    private CachedSpectrum load(int index) throws FileParsingException {
+        IScan scan = scans.get(index);
+        if(scan.getSpectrum() == null){
+            //the ScanCollection has lost the spectrum, so fetching it means parsing it from the file again
+            reparses++;
+        }
+        ISpectrum spectrum = scan.fetchSpectrum();
+        CachedSpectrum cached = centroid ? Centroider.centroid(spectrum.getMZs(), spectrum.getIntensities())
+                : new CachedSpectrum(spectrum.getMZs(), spectrum.getIntensities());
+        cache.put(index, cached);
+        usedBytes += cached.sizeInBytes();
+        evict();
+        return cached;
+    }
+
+    /**
+     * Evicts the least recently used spectra until the cache is within its budget (always keeping at least the most
+     * recent spectrum)
+     */
+    private void evict(){
+        Iterator<Map.Entry<Integer, CachedSpectrum>> iterator = cache.entrySet().iterator();
+        while(usedBytes > budget && cache.size() > 1 && iterator.hasNext()){
+            usedBytes -= iterator.next().getValue().sizeInBytes();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes every spectrum from the cache (the counters are kept)
+     */
+    public synchronized void clear(){
+        cache.clear();
+        usedBytes = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getReparses() {
+        return reparses;
+    }
+
+    public synchronized long getPrefetches() {
+        return prefetches;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hits=" + hits + ", misses=" + misses + ", reparses=" + reparses + ", prefetches=" + prefetches + ", evictions=" + evictions + ", usedBytes=" + usedBytes;
+    }
+}
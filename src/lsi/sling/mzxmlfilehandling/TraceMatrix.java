@@ -0,0 +1,94 @@
+package lsi.sling.mzxmlfilehandling;
+
+/**
+ * The extracted ion chromatograms (XICs) for a list of targets, stored as a compact matrix. Every trace covers the ms1
+ * scans within the RT window of its target, so the traces are stored one after another in a single intensity array
+ * (with the offset of each trace, as in a compressed sparse row matrix). The RTs aren't stored per point: each trace
+ * only records its first scan, and the RTs come from the RT axis of the file which is shared by every trace.
+ */
+public class TraceMatrix {
+
+    private int[] offsets; //trace t is stored in [offsets[t], offsets[t+1])
+    private int[] firstScans;
+    private float[] intensities;
+    private double[] scanRTs;
+
+    TraceMatrix(int[] offsets, int[] firstScans, float[] intensities, double[] scanRTs){
+        this.offsets = offsets;
+        this.firstScans = firstScans;
+        this.intensities = intensities;
+        this.scanRTs = scanRTs;
+    }
+
+    /**
+     * Returns the number of traces (which is the same as the number of targets)
+     * @return the number of traces
+     */
+    public int getTraceCount(){
+        return firstScans.length;
+    }
+
+    /**
+     * Returns the number of points (scans) in a trace
+     * @param trace The index of the trace (the same as the index of its target)
+     * @return the number of points
+     */
+    public int getTraceLength(int trace){
+        return offsets[trace+1] - offsets[trace];
+    }
+
+    /**
+     * Returns the position (in the list of ms1 scans) of a point in a trace
+     * @param trace The index of the trace
+     * @param point The index of the point within the trace
+     * @return the ms1 scan index of the point
+     */
+    public int getScanIndex(int trace, int point){
+        return firstScans[trace] + point;
+    }
+
+    public double getRT(int trace, int point){
+        return scanRTs[firstScans[trace] + point];
+    }
+
+    public double getIntensity(int trace, int point){
+        return intensities[offsets[trace] + point];
+    }
+
+    /**
+     * Copies the intensities of a trace into a new array
+     * @param trace The index of the trace
+     * @return the intensities of the trace
+     */
+    public double[] getIntensities(int trace){
+        double[] values = new double[getTraceLength(trace)];
+        for(int i=0; i<values.length; i++){
+            values[i] = intensities[offsets[trace] + i];
+        }
+        return values;
+    }
+
+    /**
+     * Copies the RTs of a trace into a new array
+     * @param trace The index of the trace
+     * @return the RTs of the trace
+     */
+    public double[] getRTs(int trace){
+        double[] values = new double[getTraceLength(trace)];
+        System.arraycopy(scanRTs, firstScans[trace], values, 0, values.length);
+        return values;
+    }
+
+    /**
+     * Returns the highest intensity in a trace
+     * @param trace The index of the trace
+     * @return the maximum intensity, or 0 if the trace is empty
+     */
+    public double getMaxIntensity(int trace){
+        double max = 0;
+        for(int i=offsets[trace]; i<offsets[trace+1]; i++){
+            max = Math.max(max, intensities[i]);
+        }
+        return max;
+    }
+}
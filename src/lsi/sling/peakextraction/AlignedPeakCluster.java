@@ -3,14 +3,16 @@ package lsi.sling.peakextraction;
 import lsi.sling.FragmentHandling.AlignedFragmentCluster;
 import lsi.sling.FragmentHandling.ClusteredAlignedFragmentCluster;
 import lsi.sling.FragmentHandling.LCMS2Cluster;
+import lsi.sling.FragmentHandling.SortedSweepClusterer;
 import lsi.sling.databasehandling.Adduct;
-import org.apache.commons.math3.ml.clustering.Cluster;
-import org.apache.commons.math3.ml.clustering.DBSCANClusterer;
+import lsi.sling.statistics.PrimitiveStatistics;
 import org.apache.commons.math3.stat.StatUtils;
-import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This Class represents a cluster of PeakClusters which can be 'aligned' to correct for RT and m/z drifts. The intention
@@ -31,6 +33,9 @@ public class AlignedPeakCluster {
     private double targetMZAbove;
     private double targetMZBelow;
 
+    //the intensities re-extracted from the samples where no LCPeakCluster was found (by file location)
+    private ConcurrentHashMap<String, Double> gapFilledIntensities;
+
     /**
      * Creates an AlignedPeakCluster given a list of PeakClusters which belong to this specific cluster. The intention is
      * for the clustering algorithm to be run elsewhere (this class should be used to store the resulting data afterwards).
@@ -39,11 +44,17 @@ public class AlignedPeakCluster {
      * @param clusterList A list off all the LCPeakCluster objects which correspond to this cluster
      * @param ppm The ppm tolerance to use when mapping the adducts
      */
-    public AlignedPeakCluster(List<LCPeakCluster> clusterList, int ppm){
+    public AlignedPeakCluster(List<LCPeakCluster> clusterList, double ppm){
         clusters = (ArrayList<LCPeakCluster>) clusterList;
-        //Aligns the m/z and RT values
-        medianMZ = new DescriptiveStatistics(clusters.stream().mapToDouble(LCPeakCluster::getMainMZ).toArray()).getPercentile(50);
-        medianRT = new DescriptiveStatistics(clusters.stream().mapToDouble(LCPeakCluster::getMainRT).toArray()).getPercentile(50);
+        //Aligns the m/z and RT values (the RTs after the drift of each sample has been corrected)
+        double[] mzs = new double[clusters.size()];
+        double[] rts = new double[clusters.size()];
+        for(int i=0; i<mzs.length; i++){
+            mzs[i] = clusters.get(i).getMainMZ();
+            rts[i] = clusters.get(i).getCorrectedRT();
+        }
+        medianMZ = PrimitiveStatistics.median(mzs);
+        medianRT = PrimitiveStatistics.median(rts);
 
         //medianMZ = clusters.stream().mapToDouble(LCPeakCluster::getMainMZ).average().orElse(-1); //if there is an error in the stream, return -1
         //medianRT = clusters.stream().mapToDouble(LCPeakCluster::getMainRT).average().orElse(-1); //if there is an error in the stream, return -1
@@ -58,6 +69,7 @@ public class AlignedPeakCluster {
         targetMZAbove = medianMZ + (medianMZ /1e6)*ppm;
         targetMZBelow = medianMZ - (medianMZ /1e6)*ppm;
         adductList = new ArrayList<>();
+        gapFilledIntensities = new ConcurrentHashMap<>();
         System.gc();
     }
 
@@ -87,15 +99,56 @@ public class AlignedPeakCluster {
             }
         }
         //Now let's cluster them based only on the M/Z (in 1 dimension)
-        DBSCANClusterer<AlignedFragmentCluster> clusterer = new DBSCANClusterer<>(1, 0); //0 means only a single point
-        List<Cluster<AlignedFragmentCluster>> clusterResults = clusterer.cluster(alignedFragmentClusters);
+        //this gives the same clusters as DBSCAN with eps=1 and minPts=0, but only needs a single sort and sweep
+        SortedSweepClusterer<AlignedFragmentCluster> clusterer = new SortedSweepClusterer<>(1, AlignedFragmentCluster::getAlignedMZ);
+        List<List<AlignedFragmentCluster>> clusterResults = clusterer.cluster(alignedFragmentClusters);
         //And store the clusters
-        characteristicFragments = new ArrayList<>();
-        for(Cluster<AlignedFragmentCluster> cluster : clusterResults){
+        characteristicFragments = new ArrayList<>(clusterResults.size());
+        for(List<AlignedFragmentCluster> cluster : clusterResults){
             characteristicFragments.add(new ClusteredAlignedFragmentCluster(cluster));
         }
     }
 
+    /**
+     * Stores the intensity re-extracted (by gap filling) from a sample which doesn't have a member in this cluster.
+     * This may be called concurrently for different samples.
+     * @param fileLocation The location of the mzXML file the intensity was extracted from
+     * @param intensity The extracted intensity
+     */
+    public void setGapFilledIntensity(String fileLocation, double intensity){
+        gapFilledIntensities.put(fileLocation, intensity);
+    }
+
+    /**
+     * Returns the intensities which were gap filled, by the location of the file they were extracted from
+     * @return an unmodifiable map of file location to intensity
+     */
+    public Map<String, Double> getGapFilledIntensities(){
+        return Collections.unmodifiableMap(gapFilledIntensities);
+    }
+
+    /**
+     * Returns the intensity of this cluster in a sample, using the main intensity of the member from that sample if
+     * there is one, otherwise the gap filled intensity
+     * @param fileLocation The location of the mzXML file
+     * @return the intensity, or 0 if the sample has no member and hasn't been gap filled
+     */
+    public double getIntensity(String fileLocation){
+        double intensity = 0;
+        boolean found = false;
+        for(LCPeakCluster cluster : clusters){
+            if(cluster.getFileLocation().equals(fileLocation)){
+                //if a sample has more than one member, the most intense one is used
+                intensity = found ? Math.max(intensity, cluster.getMainIntensity()) : cluster.getMainIntensity();
+                found = true;
+            }
+        }
+        if(!found){
+            intensity = gapFilledIntensities.getOrDefault(fileLocation, 0.0);
+        }
+        return intensity;
+    }
+
     public ArrayList<AlignedFragmentCluster> getAlignedFragmentClusters(){
         return alignedFragmentClusters;
     }
@@ -112,6 +165,11 @@ public class AlignedPeakCluster {
         return medianMZ;
     }
 
+    /**
+     * Returns the median RT of the clusters, on the RT axis of the reference sample if the RT drift has been corrected
+     * (RTWarp.inverse maps it back onto the RTs of a sample)
+     * @return the median (corrected) RT
+     */
     public double getMedianRT() {
         return medianRT;
     }
@@ -0,0 +1,348 @@
+package lsi.sling.peakextraction;
+
+import lsi.sling.statistics.PrimitiveSort;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The persistent state of a sample alignment, which allows new samples to be aligned against the existing features
+ * without re-clustering every sample from scratch. Each feature stores its centroid and summary statistics of its
+ * members (rather than the members themselves), and the features are indexed by a grid over (log m/z, RT) so that a new
+ * LCPeakCluster only needs to be compared to the features in the neighbouring grid cells. Adding a sample therefore
+ * takes time proportional to the number of LCPeakClusters in that sample.
+ * <p>
+ * Unlike the DBSCAN alignment (which rescales the m/z and RT by the global min/max, so adding a sample changes the
+ * distance between every pair of clusters), the tolerances here are absolute: a ppm window in m/z and a window in
+ * minutes in RT. The state is Serializable so that it can be saved between batches.
+ */
+public class AlignmentState implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private double ppm;
+    private double rtTolerance;
+    private ArrayList<Feature> features;
+    private HashMap<Long, ArrayList<Feature>> grid;
+    private HashSet<String> samples;
+    private RTAligner rtAligner; //the reference the RT drift of the samples is corrected against (null if it isn't)
+
+    /**
+     * Creates an empty alignment
+     * @param ppm The m/z tolerance (in ppm) within which a LCPeakCluster can join a feature
+     * @param rtTolerance The RT tolerance (in minutes) within which a LCPeakCluster can join a feature
+     */
+    public AlignmentState(double ppm, double rtTolerance){
+        this.ppm = ppm;
+        this.rtTolerance = rtTolerance;
+        features = new ArrayList<>();
+        grid = new HashMap<>();
+        samples = new HashSet<>();
+    }
+
+    /**
+     * Adds the LCPeakClusters from a new sample to the alignment. Each LCPeakCluster joins the closest feature within
+     * the tolerances (which doesn't already have a member from this sample), or creates a new feature if there isn't
+     * one. The LCPeakClusters are assigned in descending order of intensity, so the most intense peak gets the first
+     * choice of feature. The clusters are matched on their corrected RT, so the RT drift of the sample should be
+     * corrected first (the measured RT is used if it hasn't been).
+     * @param sample The name of the sample (e.g. the file location)
+     * @param clusters The LCPeakClusters found in the sample
+     * @return The id of the feature each LCPeakCluster was assigned to (in the same order as the input list)
+     * @throws IllegalArgumentException if the sample has already been added
+     */
+    public int[] addSample(String sample, List<LCPeakCluster> clusters){
+        int n = clusters.size();
+        double[] mzs = new double[n];
+        double[] rts = new double[n];
+        double[] intensities = new double[n];
+        int[] charges = new int[n];
+        for(int i=0; i<n; i++){
+            LCPeakCluster cluster = clusters.get(i);
+            mzs[i] = cluster.getMainMZ();
+            rts[i] = cluster.getCorrectedRT();
+            intensities[i] = cluster.getMainIntensity();
+            charges[i] = cluster.getCharge();
+        }
+        return addSample(sample, mzs, rts, intensities, charges);
+    }
+
+    /**
+     * Adds the LCPeakClusters of a new sample, given as columns of their main m/z, corrected RT, main intensity and
+     * charge
+     * @see #addSample(String, List)
+     */
+    int[] addSample(String sample, double[] mzs, double[] rts, double[] intensities, int[] charges){
+        if(!samples.add(sample)){
+            throw new IllegalArgumentException(sample + " has already been aligned");
+        }
+        int[] featureIds = new int[mzs.length];
+        HashSet<Feature> usedInSample = new HashSet<>();
+        for(int i : PrimitiveSort.order(intensities, true)){
+            Feature feature = findClosestFeature(mzs[i], rts[i], usedInSample);
+            if(feature == null){
+                feature = new Feature(features.size());
+                features.add(feature);
+            } else {
+                removeFromGrid(feature);
+            }
+            feature.addMember(sample, mzs[i], rts[i], intensities[i], charges[i]);
+            addToGrid(feature);
+            usedInSample.add(feature);
+            featureIds[i] = feature.id;
+        }
+        return featureIds;
+    }
+
+    /**
+     * Adds an existing aligned feature (e.g. from the DBSCAN alignment) as a new feature, so that later samples can be
+     * aligned against it.
+     * @param alignedPeakCluster The aligned cluster to add
+     * @return the id of the new feature
+     */
+    public int addFeature(AlignedPeakCluster alignedPeakCluster){
+        Feature feature = new Feature(features.size());
+        for(LCPeakCluster cluster : alignedPeakCluster.getClusters()){
+            samples.add(cluster.getFileLocation());
+            feature.addMember(cluster.getFileLocation(), cluster.getMainMZ(), cluster.getCorrectedRT(),
+                    cluster.getMainIntensity(), cluster.getCharge());
+        }
+        features.add(feature);
+        addToGrid(feature);
+        return feature.id;
+    }
+
+    /**
+     * Finds the feature closest to the given location, measured in units of the tolerances (so that a distance of 1
+     * is the edge of the tolerance window)
+     * @return the closest feature within the tolerances, or null if there isn't one
+     */
+    private Feature findClosestFeature(double mz, double rt, HashSet<Feature> excluded){
+        long mzBin = mzBin(mz);
+        long rtBin = rtBin(rt);
+        Feature closest = null;
+        double closestDistance = 1;
+        for(long m=mzBin-1; m<=mzBin+1; m++){
+            for(long r=rtBin-1; r<=rtBin+1; r++){
+                ArrayList<Feature> cell = grid.get(key(m, r));
+                if(cell == null){
+                    continue;
+                }
+                for(Feature feature : cell){
+                    double dmz = (mz - feature.meanMZ)/((feature.meanMZ/1e6)*ppm);
+                    double drt = (rt - feature.meanRT)/rtTolerance;
+                    double distance = dmz*dmz + drt*drt;
+                    if(distance <= closestDistance && !excluded.contains(feature)){
+                        closest = feature;
+                        closestDistance = distance;
+                    }
+                }
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * The m/z bins are one ppm-tolerance wide (on a log scale), so any feature within the tolerance is in the same or
+     * an adjacent bin
+     */
+    private long mzBin(double mz){
+        return (long) Math.floor(Math.log(mz)/Math.log1p(ppm/1e6));
+    }
+
+    private long rtBin(double rt){
+        return (long) Math.floor(rt/rtTolerance);
+    }
+
+    private static long key(long mzBin, long rtBin){
+        return (mzBin << 24) ^ (rtBin & 0xFFFFFF);
+    }
+
+    private void addToGrid(Feature feature){
+        grid.computeIfAbsent(key(mzBin(feature.meanMZ), rtBin(feature.meanRT)), k -> new ArrayList<>()).add(feature);
+    }
+
+    private void removeFromGrid(Feature feature){
+        long key = key(mzBin(feature.meanMZ), rtBin(feature.meanRT));
+        ArrayList<Feature> cell = grid.get(key);
+        cell.remove(feature);
+        if(cell.isEmpty()){
+            grid.remove(key);
+        }
+    }
+
+    public List<Feature> getFeatures(){
+        return Collections.unmodifiableList(features);
+    }
+
+    public double getPpm(){
+        return ppm;
+    }
+
+    public double getRtTolerance(){
+        return rtTolerance;
+    }
+
+    /**
+     * Sets the reference which the RT drift of the samples was corrected against, so that samples added later (including
+     * after the state has been saved and loaded) can be corrected against the same reference
+     * @param rtAligner The aligner for the reference sample (or null if the drift isn't corrected)
+     */
+    public void setRTAligner(RTAligner rtAligner){
+        this.rtAligner = rtAligner;
+    }
+
+    /**
+     * Returns the reference which the RT drift of the samples is corrected against
+     * @return the aligner for the reference sample, or null if the drift isn't corrected
+     */
+    public RTAligner getRTAligner(){
+        return rtAligner;
+    }
+
+    /**
+     * Writes the alignment to a file so that it can be used for the next batch of samples
+     * @param file The file to write
+     * @throws IOException If there is an error writing the file
+     */
+    public void save(File file) throws IOException {
+        try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            oos.writeObject(this);
+        }
+    }
+
+    /**
+     * Reads an alignment previously written with save(File)
+     * @param file The file to read
+     * @return the AlignmentState stored in the file
+     * @throws IOException If there is an error reading the file
+     * @throws ClassNotFoundException If the file doesn't contain an AlignmentState
+     */
+    public static AlignmentState load(File file) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return (AlignmentState) ois.readObject();
+        }
+    }
+
+    /**
+     * A single aligned feature. Only the summary statistics of the members are stored (using Welford's algorithm for
+     * the mean and variance), along with the samples which contain the feature and their intensities.
+     */
+    public static class Feature implements Serializable {
+
+        private static final long serialVersionUID = 2L;
+
+        private int id;
+        private int count;
+        private double meanMZ;
+        private double meanRT;
+        private double m2MZ;
+        private double m2RT;
+        private double minRT;
+        private double maxRT;
+        private int[] chargeCounts;
+        private ArrayList<String> samples;
+        private double[] intensities; //the intensity of each member (the first count values are used)
+
+        private Feature(int id){
+            this.id = id;
+            minRT = Double.MAX_VALUE;
+            maxRT = -Double.MAX_VALUE;
+            chargeCounts = new int[4];
+            samples = new ArrayList<>();
+            intensities = new double[4];
+        }
+
+        private void addMember(String sample, double mz, double rt, double intensity, int charge){
+            count++;
+            double deltaMZ = mz - meanMZ;
+            meanMZ += deltaMZ/count;
+            m2MZ += deltaMZ*(mz - meanMZ);
+            double deltaRT = rt - meanRT;
+            meanRT += deltaRT/count;
+            m2RT += deltaRT*(rt - meanRT);
+            minRT = Math.min(minRT, rt);
+            maxRT = Math.max(maxRT, rt);
+            if(charge >= chargeCounts.length){
+                chargeCounts = Arrays.copyOf(chargeCounts, charge+1);
+            }
+            chargeCounts[charge]++;
+            samples.add(sample);
+            if(count > intensities.length){
+                intensities = Arrays.copyOf(intensities, intensities.length*2);
+            }
+            intensities[count-1] = intensity;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getMeanMZ() {
+            return meanMZ;
+        }
+
+        public double getMeanRT() {
+            return meanRT;
+        }
+
+        public double getMZStandardDeviation() {
+            return count > 1 ? Math.sqrt(m2MZ/(count-1)) : 0;
+        }
+
+        public double getRTStandardDeviation() {
+            return count > 1 ? Math.sqrt(m2RT/(count-1)) : 0;
+        }
+
+        public double getMinRT() {
+            return minRT;
+        }
+
+        public double getMaxRT() {
+            return maxRT;
+        }
+
+        /**
+         * Returns the most common charge of the members
+         * @return the modal charge
+         */
+        public int getCharge() {
+            int charge = 1;
+            for(int i=1; i<chargeCounts.length; i++){
+                if(chargeCounts[i] > chargeCounts[charge]){
+                    charge = i;
+                }
+            }
+            return charge;
+        }
+
+        public List<String> getSamples() {
+            return Collections.unmodifiableList(samples);
+        }
+
+        /**
+         * Returns the intensities of the members, in the same order as getSamples()
+         * @return a copy of the intensities
+         */
+        public double[] getIntensities() {
+            return Arrays.copyOf(intensities, count);
+        }
+    }
+}
@@ -1,15 +1,18 @@
 package lsi.sling.peakextraction;
 
 import flanagan.analysis.CurveSmooth;
-import lsi.sling.FragmentHandling.LCMS2Fragment;
-import umich.ms.datatypes.scan.IScan;
-import umich.ms.datatypes.spectrum.ISpectrum;
+import lsi.sling.FragmentHandling.FragmentArena;
+import lsi.sling.FragmentHandling.FragmentView;
+import lsi.sling.mzxmlfilehandling.CachedSpectrum;
+import lsi.sling.mzxmlfilehandling.MS2ScanReference;
+import lsi.sling.mzxmlfilehandling.SpectrumCache;
 import umich.ms.fileio.exceptions.FileParsingException;
 
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.List;
 
 
 /**
@@ -23,163 +26,192 @@ import java.util.Collections;
  */
 public class Chromatogram{
 
-    private ArrayList<LocalPeak> intensityScanPairs;
-    private ArrayList<LocalPeak> intensityScanPairsBelow;
-    private ArrayList<Integer> pointsOfInflection;
-    private ArrayList<Isobar> isobars;
+    //the chromatogram covers the consecutive scans startScan to startScan+intensities.length-1
+    private PeakTable peakTable; //shared by every chromatogram of the file, it also holds the RT axis
+    private int startScan;
+    private float[] intensities;
+    private int[] peaks; //the index of each point in the peak table (-1 if the point isn't in the table)
+    private int[] isobarBounds; //the index of the first point of each isobar, followed by the number of points
+    private PeakIntegration[] isobarIntegrations;
     private double meanMZ;
     private double tolerance;
     private double threshold; //used to define noise to signal ratio
-    private int startingPointIndex; //index of the max peak within the ArrayList (max intensity)
-    private double startingPointRT;
+    private int startingPointIndex; //index of the max peak within the chromatogram (max intensity)
     private double startingPointIntensity;
-    private double[] smoothData;
-    private boolean inCluster;
+    private volatile boolean inCluster; //read by the threads building the LCPeakClusters whilst clusters are claimed
+    private PeakIntegration integration;
+    //a summary of the points (calculated once the chromatogram has been created) used to check its validity
+    private double minIntensity;
+    private double maxIntensity;
+    private double rtWidth;
 
     /**
      * Constructor which creates a new Chromatogram. This class is designed so that in normal use, a user only every needs
      * to call the constructor which acts as a wrapper for everything.
-     * i.e. Once called, the constructor initialises all the relevant variables and runs the recursive algorithm to
+     * i.e. Once called, the constructor initialises all the relevant variables and runs the iterative algorithm to
      * find the edges of the peak (where it stops being significant) Note: at the moment significance is determined by
      * a constant (thresh).
+     * <p>
+     * The points are only held in temporary buffers whilst the edges are found, after which they are stored as a float
+     * array of intensities and an int array of indices into the peak table.
      *
-     * @param scanList      An ArrayList of all the scans (as IScan objects)
-     * @param startingPoint The LocalPeak to use as the starting point for the larger peak
+     * @param spectra       The cache of the decoded ms1 spectra (in scan order)
+     * @param peakTable     The LocalPeaks of the file (the LocalPeaks used by the chromatogram are marked as used)
+     * @param startingPeak  The index in the peak table of the LocalPeak to use as the starting point for the larger peak
      * @param tol           The tolerance (in ppm) to account for the jitter
      * @param thresh        The threshold to determine the end points of the peak. This value is used to determine the
      *                      validity of a chromatogram (within the scope of a peak cluster)
-     * @throws FileParsingException Thrown when the recursive loops try to access the scan data
+     * @throws FileParsingException Thrown when the loops try to access the scan data
      */
-    public Chromatogram(ArrayList<IScan> scanList, LocalPeak startingPoint, double tol, double thresh, ArrayList<LocalPeak> pos) throws FileParsingException {
+    public Chromatogram(SpectrumCache spectra, PeakTable peakTable, int startingPeak, double tol, double thresh) throws FileParsingException {
         //assigns most variables
-        startingPointRT = startingPoint.getRT();
+        LocalPeak startingPoint = peakTable.get(startingPeak);
+        this.peakTable = peakTable;
         startingPointIntensity = startingPoint.getIntensity();
-        intensityScanPairs = new ArrayList<>();
-        intensityScanPairsBelow = new ArrayList<>();
-        pointsOfInflection = new ArrayList<>();
         tolerance = tol;
         threshold = thresh;
         inCluster = false;
         meanMZ = startingPoint.getMZ();
-        if (startingPoint.getScanNumber() > 0) { //checks if the startingpoint is at the bottom of the file
-            //recursively creates the chromatogram below the starting point
-            createPeakBelow(scanList, meanMZ, tol, startingPoint.getScanNumber() - 1, pos);
+        minIntensity = startingPointIntensity;
+        maxIntensity = startingPointIntensity;
+        int scan = startingPoint.getScanNumber();
+        PointBuffer below = new PointBuffer();
+        PointBuffer above = new PointBuffer();
+        if (scan > 0) { //checks if the startingpoint is at the bottom of the file
+            //creates the chromatogram below the starting point
+            createPeakBelow(spectra, below, tol, scan - 1);
         }
-        for (int i = intensityScanPairsBelow.size(); i > 0; i--) {
-            //adds the points below the starting point to the "global" list
-            intensityScanPairs.add(intensityScanPairsBelow.get(i - 1));
+        if (scan + 1 < spectra.size()) {
+            //the average m/z of the points below and the starting point, summed in scan order
+            double total = 0;
+            for (int i = below.size; i > 0; i--) {
+                total = total + below.mzs[i - 1];
+            }
+            total = total + startingPoint.getMZ();
+            //creates the chromatogram above the starting point
+            createPeakAbove(spectra, above, total, below.size + 1, tol, scan + 1);
         }
-        intensityScanPairs.add(startingPoint);
-        if (startingPoint.getScanNumber() + 1 < scanList.size()) {
-            //recursively creates the chromatogram above the starting point
-            createPeakAbove(scanList, averageMZ(), tol, startingPoint.getScanNumber() + 1, pos);
+        //copies the points into the compact arrays (in scan order)
+        startScan = scan - below.size;
+        startingPointIndex = below.size;
+        int n = below.size + 1 + above.size;
+        intensities = new float[n];
+        peaks = new int[n];
+        for (int i = 0; i < below.size; i++) {
+            intensities[below.size - 1 - i] = below.intensities[i];
+            peaks[below.size - 1 - i] = below.peaks[i];
         }
-        startingPointIndex = intensityScanPairsBelow.size();
+        intensities[startingPointIndex] = (float) startingPointIntensity;
+        peaks[startingPointIndex] = startingPeak;
+        System.arraycopy(above.intensities, 0, intensities, startingPointIndex + 1, above.size);
+        System.arraycopy(above.peaks, 0, peaks, startingPointIndex + 1, above.size);
+        minIntensity = Math.min(minIntensity, Math.min(below.minIntensity, above.minIntensity));
+        maxIntensity = Math.max(maxIntensity, Math.max(below.maxIntensity, above.maxIntensity));
+        rtWidth = peakTable.getRT(startScan + n - 1) - peakTable.getRT(startScan);
+    }
+
+    /**
+     * Smooths the chromatogram to find the minima, and splits it into isobars at those minima. This is done separately
+     * from the constructor so that the chromatograms of a file can be processed together (in parallel) once they have
+     * all been created. It has to be called before the chromatogram is integrated.
+     */
+    public void findIsobars() {
         //performs smoothing to try to find isobars NOTE: THIS IS STILL HIGHLY EXPERIMENTAL
-        if (intensityScanPairs.size() > 4) {
-            //uses a savitzky-golay filter if possible
-            smoothToFindMinima();
+        //only chromatograms with more than 4 points are smoothed (and split), the rest are kept as a single isobar
+        if (intensities.length > 4) {
+            int[] minima = smoothToFindMinima();
+            isobarBounds = new int[minima.length + 2];
+            System.arraycopy(minima, 0, isobarBounds, 1, minima.length);
         } else {
-            findLocalMinima();
-        }
-        isobars = new ArrayList<>();
-        pointsOfInflection.add(0, 0);
-        pointsOfInflection.add(pointsOfInflection.size(), intensityScanPairs.size());
-        //tries to split to chromatogram based on the smoothed-minima
-        //the resulting Isobar objects are then stored
-        if (intensityScanPairs.size() > 4 && pointsOfInflection.size() > 2) { //only performs the following code if the data has been smoothed
-            for (int i = 0; i < pointsOfInflection.size() - 1; i++) {
-                ArrayList<LocalPeak> pairs = new ArrayList<>();
-                double[] smooth = null;
-                try {
-                    smooth = new double[pointsOfInflection.get(i + 1) - pointsOfInflection.get(i)];
-                } catch (NegativeArraySizeException e) {
-                    e.printStackTrace();
-                    System.out.println("test");
-                }
-                int x = 0;
-                for (int j = pointsOfInflection.get(i); j < pointsOfInflection.get(i + 1); j++) {
-                    pairs.add(intensityScanPairs.get(j));
-                    assert smooth != null;
-                    smooth[x] = smoothData[j];
-                    x++;
-                }
-                isobars.add(new Isobar(pairs, meanMZ, tolerance, threshold, smooth, inCluster));
-            }
-        } else {
-            isobars.add(new Isobar(intensityScanPairs, meanMZ, tolerance, threshold, smoothData, inCluster));
+            isobarBounds = new int[2];
         }
+        isobarBounds[isobarBounds.length - 1] = intensities.length;
+        isobarIntegrations = new PeakIntegration[isobarBounds.length - 1];
     }
 
     /**
-     * Recursive loop which 'looks' at the scans above the starting points (higher RT) to find where the peak ends.
+     * Looks at the scans above the starting points (higher RT) to find where the peak ends. The average m/z of all the
+     * points so far is used to find the next point, to account for the jitter.
      *
-     * @param scanList  An ArrayList of all the scans (as IScan objects)
-     * @param average   The average m/z value of the peak. This is used to account for the jitter and is re-calculated
-     *                  once for each recursive iteration.
+     * @param spectra   The cache of the decoded ms1 spectra (in scan order)
+     * @param points    The buffer to add the points to
+     * @param total     The sum of the m/z values of the points below (and including) the starting point
+     * @param count     The number of points below (and including) the starting point
      * @param toler     The tolerance (in ppm) to account for the jitter
-     * @param increment Used to iterate through one of the loops is a semi-recursive manner
+     * @param increment The first scan to look at
      * @return the integer 1 if the operation was carried out successfully. The integer 2 is returned if the scans
      * reach the end of the file
-     * @throws FileParsingException Thrown when the recursive loops try to access the scan data
-     */
-    private int createPeakAbove(ArrayList<IScan> scanList, double average, double toler, int increment, ArrayList<LocalPeak> pos) throws FileParsingException {
-        ISpectrum temp = scanList.get(increment).fetchSpectrum();
-        if (temp.findMzIdxsWithinPpm(average, toler) != null) {
-            LocalPeak tempPeak = maxIntWithinTol(temp, average, toler, increment, scanList.get(increment).getRt());
-            if (tempPeak.getIntensity() > threshold) {
-                int tempInt = pos.indexOf(tempPeak);
-                if (tempInt == -1) {
-                    tempPeak.setIsUsed();
-                    tempInt = pos.indexOf(tempPeak);
-                }
-                tempPeak.setIsUsed();
-                intensityScanPairs.add(tempPeak);
-                pos.get(tempInt).setIsUsed();
-                if (increment < scanList.size() - 2) {
-                    return createPeakAbove(scanList, averageMZ(), toler, increment + 1, pos);
-                } else {
-                    return 2;
-                }
+     * @throws FileParsingException Thrown when the loop tries to access the scan data
+     */
+    private int createPeakAbove(SpectrumCache spectra, PointBuffer points, double total, int count, double toler, int increment) throws FileParsingException {
+        double average = total / count;
+        meanMZ = average;
+        while (addPoint(spectra, points, average, toler, increment)) {
+            if (increment < spectra.size() - 2) {
+                total = total + points.mzs[points.size - 1];
+                count++;
+                average = total / count;
+                meanMZ = average;
+                increment++;
+            } else {
+                return 2;
             }
         }
         return 1;
     }
 
     /**
-     * Recursive loop which 'looks' at the scans below the starting points (lower RT) to find where the peak ends.
+     * Looks at the scans below the starting points (lower RT) to find where the peak ends. Note: unlike createPeakAbove,
+     * the average m/z only includes the points below the starting point.
      *
-     * @param scanList  An ArrayList of all the scans (as IScan objects)
-     * @param average   The average m/z value of the peak. This is used to account for the jitter and is re-calculated
-     *                  once for each recursive iteration.
+     * @param spectra   The cache of the decoded ms1 spectra (in scan order)
+     * @param points    The buffer to add the points to (in descending order of scan)
      * @param toler     The tolerance (in ppm) to account for the jitter
-     * @param increment Used to iterate through one of the loops is a semi-recursive manner
+     * @param increment The first scan to look at
      * @return the integer 1 if the operation was carried out successfully, 2 if the scans reached the end of the file
-     * @throws FileParsingException Thrown when the recursive loops try to access the scan data
-     */
-    private int createPeakBelow(ArrayList<IScan> scanList, double average, double toler, int increment, ArrayList<LocalPeak> pos) throws FileParsingException {
-        ISpectrum temp = scanList.get(increment).fetchSpectrum();
-        if (temp.findMzIdxsWithinPpm(average, toler) != null) {
-            LocalPeak tempPeak = maxIntWithinTol(temp, average, toler, increment, scanList.get(increment).getRt());
-            if (tempPeak.getIntensity() > this.threshold) {
-                int tempInt = pos.indexOf(tempPeak);
-                if (tempInt == -1) {
-                    tempPeak.setIsUsed();
-                    tempInt = pos.indexOf(tempPeak);
-                }
-                tempPeak.setIsUsed();
-                intensityScanPairsBelow.add(tempPeak);
-                pos.get(tempInt).setIsUsed();
-                if (increment > 1) {
-                    return createPeakBelow(scanList, averageMZBelow(), toler, increment - 1, pos);
-                } else {
-                    return 2;
-                }
+     * @throws FileParsingException Thrown when the loop tries to access the scan data
+     */
+    private int createPeakBelow(SpectrumCache spectra, PointBuffer points, double toler, int increment) throws FileParsingException {
+        double average = meanMZ;
+        double total = 0;
+        while (addPoint(spectra, points, average, toler, increment)) {
+            if (increment > 1) {
+                total = total + points.mzs[points.size - 1];
+                average = total / points.size;
+                meanMZ = average;
+                increment--;
+            } else {
+                return 2;
             }
         }
         return 1;
     }
 
+    /**
+     * Adds the most intense point of a scan within the tolerance to the buffer, if it is above the threshold. The
+     * LocalPeak of the point is marked as used (so it isn't used as the starting point of another chromatogram).
+     *
+     * @return true if a point was added, false if the peak has ended
+     */
+    private boolean addPoint(SpectrumCache spectra, PointBuffer points, double average, double toler, int increment) throws FileParsingException {
+        CachedSpectrum temp = spectra.get(increment);
+        int[] range = temp.findMzIdxsWithinPpm(average, toler);
+        if (range == null) {
+            return false;
+        }
+        int maxIndex = maxIntWithinTol(temp, range);
+        if (maxIndex == -1 || temp.getIntensities()[maxIndex] <= threshold) {
+            return false;
+        }
+        double intensity = temp.getIntensities()[maxIndex];
+        double mz = temp.getMZs()[maxIndex];
+        int peak = peakTable.indexOf(increment, mz);
+        if (peak != -1) {
+            peakTable.get(peak).setIsUsed();
+        }
+        points.add(intensity, mz, peak);
+        return true;
+    }
 
     /**
      * Finds the highest single peak within a given tolerance in a individual spectrum(to account for jitter).
@@ -187,27 +219,21 @@ public class Chromatogram{
      * NOTE: This function is crucial to the operation of the Chromatogram data structure and is
      * called by several other functions at higher levels so be careful when modifying it
      *
-     * @param spec      The single spectrum from which to extract a single LocalPeak
-     * @param mean      The value around which the tolerance is centered (this partly defines where the single peak will
-     *                  be extracted from
-     * @param tol       The tolerance to jitter
-     * @param increment The scan number (from the parent IScan object) which is then used to create a LocalPeak object
-     *                  containing the relevant information
-     * @param RT        The RT of the scan which is used to create a LocalPeak object containing the relevant information
-     * @return A LocalPeak object containing all of the relvant information
-     */
-    private static LocalPeak maxIntWithinTol(ISpectrum spec, double mean, double tol, int increment, double RT) {
-        int[] temp = spec.findMzIdxsWithinPpm(mean, tol);   //according to source code tolerance is calculated as (mean/1e6)*tol
+     * @param spec  The single spectrum from which to extract a single point
+     * @param range The first and last indices of the points within the tolerance (from findMzIdxsWithinPpm)
+     * @return The index of the most intense point within the range, or -1 if none of them have a positive intensity
+     */
+    private static int maxIntWithinTol(CachedSpectrum spec, int[] range) {
         double[] inten = spec.getIntensities();
-        int maxIndex = 0;
+        int maxIndex = -1;
         double maxIntensity = 0;
-        for (int i = temp[0]; i <= temp[1]; i++) {
+        for (int i = range[0]; i <= range[1]; i++) {
             if (inten[i] > maxIntensity) {
                 maxIntensity = inten[i];
                 maxIndex = i;
             }
         }
-        return new LocalPeak(increment, maxIntensity, spec.getMZs()[maxIndex], RT);
+        return maxIndex;
     }
 
     /**
@@ -217,18 +243,15 @@ public class Chromatogram{
      * - maxIntensity/minIntensity > 5
      * - maxIntensity > 5* threshold
      * - peak width is less than 30 seconds (0.5 units)
+     * The checks only use the summary calculated when the chromatogram was created, so this doesn't modify the points.
      *
      * @return true if it is valid, otherwise false
      */
     public boolean isValidStartingPoint() {
-        if (intensityScanPairs.size() > 5) {
-            ArrayList<LocalPeak> tempList = intensityScanPairs;
-            Collections.sort(tempList);
-            double maxIntensity = tempList.get(0).getIntensity();
-            double minIntensity = tempList.get(tempList.size() - 1).getIntensity();
+        if (intensities.length > 5) {
             if (maxIntensity / minIntensity > 5) {
                 if (maxIntensity > 5 * threshold) {
-                    if(intensityScanPairs.get(intensityScanPairs.size()-1).getRT()-intensityScanPairs.get(0).getRT()<0.5){
+                    if (rtWidth < 0.5) {
                         return true;
                     }
                 }
@@ -238,86 +261,74 @@ public class Chromatogram{
     }
 
     /**
-     * Finds the local minima within the peak (based on intensities). This information is directly related to separating
-     * isobars. Note: This method finds the minimas by comparing adjacent intensities and therefore picks up a lot of
-     * noise. It has been replaced by the smoothToFindMinima method but is retained for potential use in cases where
-     * the smoothing doesnt work properly.
+     * Returns the LocalPeak objects of the chromatogram (in scan order). The list is created each time this is called:
+     * the points which are in the peak table are returned as the LocalPeaks from the table, and the rest (which were
+     * below the noise threshold of their region when the table was created) as new LocalPeaks at the mean m/z.
+     *
+     * @return An ArrayList containing the LocalPeak objects of the chromatogram
      */
-    @Deprecated
-    private void findLocalMinima() {
-        pointsOfInflection.clear();
-        double[] intensityArray = new double[intensityScanPairs.size()];
-        for (int i = 0; i < intensityArray.length; i++)
-            intensityArray[i] = intensityScanPairs.get(i).getIntensity();
-        for (int i = 1; i < intensityArray.length - 1; i++) {
-            if (intensityArray[i - 1] > intensityArray[i] && intensityArray[i] < intensityArray[i + 1])
-                pointsOfInflection.add(i);
+    public ArrayList<LocalPeak> getIntensityScanPairs() {
+        ArrayList<LocalPeak> intensityScanPairs = new ArrayList<>(intensities.length);
+        for (int i = 0; i < intensities.length; i++) {
+            if (peaks[i] != -1) {
+                intensityScanPairs.add(peakTable.get(peaks[i]));
+            } else {
+                intensityScanPairs.add(new LocalPeak(startScan + i, intensities[i], meanMZ, peakTable.getRT(startScan + i)));
+            }
         }
+        return intensityScanPairs;
     }
 
     /**
-     * Calculates the average m/z value of all the LocalPeak objects in the intensityScanPairs ArrayList. This method
-     * returns the value as a double for use in the recursive loops and saves the value to the class field medianMZ
+     * Returns the boundaries of the isobars (the indices of the smoothed minima, along with 0 and the number of points)
      *
-     * @return The average m/z value as a double
+     * @return the boundaries of the isobars, or null if findIsobars() hasn't been called
      */
-    private double averageMZ() {
-        int i = 0;
-        double total = 0;
-        for (LocalPeak intensityScanPair : intensityScanPairs) {
-            total = total + intensityScanPair.getMZ();
-            i++;
+    public ArrayList<Integer> getPointsOfInflection() {
+        if (isobarBounds == null) {
+            return null;
         }
-        double average = total / i;
-        meanMZ = average;
-        return average;
+        ArrayList<Integer> pointsOfInflection = new ArrayList<>(isobarBounds.length);
+        for (int bound : isobarBounds) {
+            pointsOfInflection.add(bound);
+        }
+        return pointsOfInflection;
     }
 
     /**
-     * The average m/z value of all the LocalPeak objects in the intensityScanPairsBelow ArrayList. Note: This method
-     * is very similar to the averageMZ() method except that it iis specifically intended for use in the
-     * createPeakBelow() method. The calculated value also gets saved to the class field medianMZ
+     * Returns the mean m/z for the Chromatogram
      *
-     * @return the average m/z value from intensityScanPairsBelow
+     * @return the mean m/z value as a double
      */
-    private double averageMZBelow() {
-        int i = 0;
-        double total = 0;
-        for (LocalPeak anIntensityScanPairsBelow : intensityScanPairsBelow) {
-            total = total + anIntensityScanPairsBelow.getMZ();
-            i++;
-        }
-        double average = total / i;
-        meanMZ = average;
-        return average;
+    public double getMeanMZ() {
+        return meanMZ;
     }
 
     /**
-     * Returns the intensityScanPairs ArrayList
+     * Returns the lowest intensity of the points in the chromatogram
      *
-     * @return An ArrayList containing the LocalPeak objects from intensityScanPairs
+     * @return the minimum intensity as a double
      */
-    public ArrayList<LocalPeak> getIntensityScanPairs() {
-        return intensityScanPairs;
+    public double getMinIntensity() {
+        return minIntensity;
     }
 
     /**
-     * Returns the points of inflection (turning points) for the peak. Specifically, this method returns the indices of
-     * the turning points in the ArrayList
+     * Returns the highest intensity of the points in the chromatogram
      *
-     * @return the locations of the turning points
+     * @return the maximum intensity as a double
      */
-    public ArrayList<Integer> getPointsOfInflection() {
-        return pointsOfInflection;
+    public double getMaxIntensity() {
+        return maxIntensity;
     }
 
     /**
-     * Returns the mean m/z for the Chromatogram
+     * Returns the difference between the RTs of the last and first points in the chromatogram
      *
-     * @return the mean m/z value as a double
+     * @return the RT width as a double
      */
-    public double getMeanMZ() {
-        return meanMZ;
+    public double getRTWidth() {
+        return rtWidth;
     }
 
     /**
@@ -353,7 +364,7 @@ public class Chromatogram{
      * @return the RT of the starting point as a double
      */
     public double getStartingPointRT() {
-        return startingPointRT;
+        return peakTable.getRT(startScan + startingPointIndex);
     }
 
     /**
@@ -365,15 +376,53 @@ public class Chromatogram{
         return startingPointIntensity;
     }
 
+    /**
+     * Returns the scan number of the first point of the chromatogram
+     *
+     * @return the first scan number
+     */
+    public int getStartScan() {
+        return startScan;
+    }
+
+    /**
+     * Returns the number of points (i.e. consecutive scans) in the chromatogram
+     *
+     * @return the number of points
+     */
+    public int size() {
+        return intensities.length;
+    }
+
+    /**
+     * Returns the intensity of a single point, without copying the intensities
+     *
+     * @param index The index of the point (0 is the point in the first scan)
+     * @return the intensity of the point
+     */
+    public double getIntensity(int index) {
+        return intensities[index];
+    }
+
+    /**
+     * Returns the retention time of a single point, without copying the retention times
+     *
+     * @param index The index of the point (0 is the point in the first scan)
+     * @return the retention time of the point
+     */
+    public double getRT(int index) {
+        return peakTable.getRT(startScan + index);
+    }
+
     /**
      * Returns only the intensities in an array
      *
      * @return only the intensities from the ion chromatogram
      */
     public double[] getIntensities() {
-        double[] val = new double[intensityScanPairs.size()];
-        for (int i = 0; i < intensityScanPairs.size(); i++) {
-            val[i] = intensityScanPairs.get(i).getIntensity();
+        double[] val = new double[intensities.length];
+        for (int i = 0; i < intensities.length; i++) {
+            val[i] = intensities[i];
         }
         return val;
     }
@@ -384,9 +433,9 @@ public class Chromatogram{
      * @return only the retention times from the ion chromatogram
      */
     public double[] getRT() {
-        double[] val = new double[intensityScanPairs.size()];
-        for (int i = 0; i < intensityScanPairs.size(); i++) {
-            val[i] = intensityScanPairs.get(i).getRT();
+        double[] val = new double[intensities.length];
+        for (int i = 0; i < intensities.length; i++) {
+            val[i] = peakTable.getRT(startScan + i);
         }
         return val;
     }
@@ -410,47 +459,17 @@ public class Chromatogram{
     }
 
     /**
-     * Smooths out the curve using a savitzky-Golay Plot (from the Michael Thomas Flanagan's java scientific library).
-     * The the number of points to use is calculated as 6*log(ArrayList.size). The smoothed data is then stored into
-     * the class variable double[] smoothData. The indices of the smoothed-minima are also stored into pointsOfInflection,
-     * replacing whatever values were there.
-     */
-    public void smoothToFindMinima() {
-        CurveSmooth curveSmooth = new CurveSmooth(this.getRT(), this.getIntensities());
-        //At the moment the flanagan plotting program is also called to help evaluate the performance of the filter
-        smoothData = curveSmooth.savitzkyGolay((int) (10 * Math.log(this.getRT().length)));
-        //smoothData = curveSmooth.savitzkyGolayPlot(15);
-        //smoothData = curveSmooth.savitzkyGolayPlot((int) (Math.ceil(getRT()[getRT().length-1]-getRT()[0])*8));
-        double[][] minima = curveSmooth.getMinimaSavitzkyGolay();
-        //pointsOfInflection.clear();
-        ArrayList<Double> temp = new ArrayList<>();
-        for (int i = 0; i < getRT().length; i++) {
-            temp.add(getRT()[i]);
-        }
-        for (int i = 0; i < minima[0].length; i++) {
-            pointsOfInflection.add(temp.indexOf(search(minima[0][i], this.getRT())));
-        }
-    }
-
-    /**
-     * finds the value of an array which is closest to the given value. This method is used in the smoothToFindMinima()
-     * method when the position of the minima isn't exactly the same as the RT of one of the scans
+     * Smooths out the curve using a savitzky-Golay filter (with the cached coefficients from SavitzkyGolayFilter, which
+     * gives the same results as the flanagan CurveSmooth) and finds the minima of the smoothed data. The number of
+     * points to use is calculated as 10*log(size).
      *
-     * @param myNumber The number to compare against
-     * @param numbers  The array of numbers to search in
-     * @return The closest number in the array
+     * @return the indices of the smoothed-minima
      */
-    private static double search(double myNumber, double[] numbers) {
-        int idx = 0;
-        double distance = Math.abs(myNumber - numbers[0]);
-        for (int c = 1; c < numbers.length; c++) {
-            double cdistance = Math.abs(myNumber - numbers[c]);
-            if (cdistance < distance) {
-                idx = c;
-                distance = cdistance;
-            }
-        }
-        return numbers[idx];
+    private int[] smoothToFindMinima() {
+        double[] smoothData = getSmoothData();
+        int[] minima = new int[smoothData.length];
+        int count = SavitzkyGolayFilter.findMinima(smoothData, minima);
+        return Arrays.copyOf(minima, count);
     }
 
     /**
@@ -465,11 +484,17 @@ public class Chromatogram{
     }
 
     /**
-     * Returns the smoothed dataset as calculated in smoothToFindMinima() (using a Savitzky-Golay filter)
+     * Returns the smoothed dataset (using a Savitzky-Golay filter). The smoothed data isn't stored, so it is
+     * recalculated each time this is called.
      *
-     * @return the smoothed dataset as doubles
+     * @return the smoothed dataset as doubles, or null if the chromatogram is too short to be smoothed (4 points or less)
      */
     public double[] getSmoothData() {
+        if (intensities.length <= 4) {
+            return null;
+        }
+        double[] smoothData = new double[intensities.length];
+        SavitzkyGolayFilter.smooth(getIntensities(), smoothData, (int) (10 * Math.log(intensities.length)), 4);
         return smoothData;
     }
 
@@ -491,11 +516,19 @@ public class Chromatogram{
     }
 
     /**
-     * Returns the isobars found in this chromatogram.
+     * Returns the isobars found in this chromatogram. The Isobar objects are only views of the chromatogram, so they
+     * are created each time this is called.
      *
-     * @return an ArrayList<Isobar> containing the isobars
+     * @return an ArrayList<Isobar> containing the isobars, or null if findIsobars() hasn't been called
      */
     public ArrayList<Isobar> getIsobars() {
+        if (isobarBounds == null) {
+            return null;
+        }
+        ArrayList<Isobar> isobars = new ArrayList<>(isobarBounds.length - 1);
+        for (int i = 0; i < isobarBounds.length - 1; i++) {
+            isobars.add(new Isobar(this, i));
+        }
         return isobars;
     }
 
@@ -508,12 +541,98 @@ public class Chromatogram{
         return inCluster;
     }
 
-    public ArrayList<LCMS2Fragment> getFragments(){
-        ArrayList<LCMS2Fragment> toReturn = new ArrayList<>();
-        for(LocalPeak localPeak : intensityScanPairs){
-            toReturn.addAll(localPeak.getFragments());
+    /**
+     * Integrates the whole chromatogram and each of its isobars. The RT and intensity arrays are only created once, and
+     * the isobars are integrated as ranges of them. This has to be called after findIsobars().
+     *
+     * @param noise  The noise level of the file, used for the signal to noise ratio
+     * @param method The rule to use for the area
+     */
+    public void integrate(double noise, PeakIntegrator.Method method) {
+        double[] rt = getRT();
+        double[] intensities = getIntensities();
+        integration = PeakIntegrator.integrate(rt, intensities, 0, rt.length, noise, method);
+        for (int i = 0; i < isobarIntegrations.length; i++) {
+            if (isobarBounds[i + 1] > isobarBounds[i]) {
+                isobarIntegrations[i] = PeakIntegrator.integrate(rt, intensities, isobarBounds[i], isobarBounds[i + 1], noise, method);
+            }
+        }
+    }
+
+    /**
+     * Returns the integration of the whole chromatogram
+     *
+     * @return the PeakIntegration, or null if the chromatogram hasn't been integrated
+     */
+    public PeakIntegration getIntegration() {
+        return integration;
+    }
+
+    int getIsobarStart(int isobar) {
+        return isobarBounds[isobar];
+    }
+
+    int getIsobarEnd(int isobar) {
+        return isobarBounds[isobar + 1];
+    }
+
+    PeakIntegration getIsobarIntegration(int isobar) {
+        return isobarIntegrations[isobar];
+    }
+
+    /**
+     * Returns the fragments of the starting point of this chromatogram (the other points are found by re-reading the
+     * spectra rather than taken from the LocalPeaks of the file, so they have never carried any ms2 scans). The ms2
+     * scans are decoded into the FragmentArena of the file if that hasn't already been done; the returned view
+     * references the arena directly.
+     *
+     * @return a FragmentView over the fragments
+     */
+    public FragmentView getFragments(){
+        FragmentArena arena = null;
+        List<MS2ScanReference> ms2Scans = peakTable.get(peaks[startingPointIndex]).getMS2Scans();
+        int[] offsets = new int[ms2Scans.size()];
+        int[] lengths = new int[ms2Scans.size()];
+        int range = 0;
+        for(MS2ScanReference ms2Scan : ms2Scans){
+            try {
+                ms2Scan.decode(); //the fragments are decoded from the file here
+                arena = ms2Scan.getArena();
+                offsets[range] = ms2Scan.getArenaOffset();
+                lengths[range] = ms2Scan.getArenaLength();
+                range++;
+            } catch (FileParsingException e) {
+                e.printStackTrace();
+            }
+        }
+        return new FragmentView(arena, offsets, lengths, range);
+    }
+
+    /**
+     * A growable buffer of the points found whilst walking through the scans in one direction from the starting point
+     */
+    private static class PointBuffer {
+
+        private int size;
+        private float[] intensities = new float[16];
+        private double[] mzs = new double[16];
+        private int[] peaks = new int[16];
+        private double minIntensity = Double.MAX_VALUE;
+        private double maxIntensity = -Double.MAX_VALUE;
+
+        private void add(double intensity, double mz, int peak) {
+            if (size == intensities.length) {
+                intensities = Arrays.copyOf(intensities, size * 2);
+                mzs = Arrays.copyOf(mzs, size * 2);
+                peaks = Arrays.copyOf(peaks, size * 2);
+            }
+            intensities[size] = (float) intensity;
+            mzs[size] = mz;
+            peaks[size] = peak;
+            size++;
+            minIntensity = Math.min(minIntensity, intensity);
+            maxIntensity = Math.max(maxIntensity, intensity);
         }
-        return toReturn;
     }
 
 }
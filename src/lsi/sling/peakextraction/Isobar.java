@@ -1,6 +1,7 @@
 package lsi.sling.peakextraction;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * This class represents a isobar within a chromatogram. In normal usage, this should only ever be called from within
@@ -11,46 +12,34 @@ import java.util.ArrayList;
  */
 public class Isobar {
 
-    private ArrayList<LocalPeak> intensityScanPairs;
-    private double meanMZ;
-    private double tolerance;
-    private double threshold; //used to define noise to signal ratio
-    private int maxIntensityIndex; //index of the max peak within the ArrayList (max intensity)
-    private double maxIntensityRT;
-    private double maxIntensity;
-    private double[] smoothData;
-    private boolean inCluster;
+    private Chromatogram chromatogram;
+    private int index; //the position of the isobar within the parent Chromatogram
+    private int startIndex; //the index of the first point of the isobar in the parent Chromatogram
+    private int endIndex;
+    private int maxIntensityIndex; //index of the max peak within the isobar (max intensity)
     private boolean isValid;
 
     /**
      * This constructor creates Isobar objects which represent isobars in the origin Chromatogram. By definition
-     * these isobars are subsets of the original chromatograms. In normal use, this should only ever be called from within
-     * the Chromatogram constructor.
-     * @param scanPairs The ArrayList of LocalPeak objects which are used in this isobar
-     * @param mz the m/z value (passed from the parent Chromatogram)
-     * @param tol the m/z tolerance used to extract the peak (passed from the parent Chromatogram)
-     * @param thresh the threshold used to extract the peak (passed from the parent Chromatogram)
-     * @param smooth the smoothed data points corresponding to this isobar
-     * @param cluster flag representing whether or not it is part of a cluster (passed from the parent Chromatogram)
+     * these isobars are subsets of the original chromatograms, so an Isobar is only a view of a range of the points of
+     * the Chromatogram. In normal use, this should only ever be called from within the Chromatogram class.
+     * @param parent The Chromatogram which contains the isobar
+     * @param isobar The index of the isobar within the parent Chromatogram
      */
-    Isobar(ArrayList<LocalPeak> scanPairs, double mz, double tol, double thresh, double[] smooth, boolean cluster){
-        intensityScanPairs = scanPairs;
-        meanMZ = mz;
-        tolerance = tol;
-        threshold = thresh;
-        int index = 0;
+    Isobar(Chromatogram parent, int isobar){
+        chromatogram = parent;
+        index = isobar;
+        startIndex = parent.getIsobarStart(isobar);
+        endIndex = parent.getIsobarEnd(isobar);
+        int maxIndex = 0;
         double maxInt = 0;
-        for(int i=0; i<scanPairs.size(); i++){
-            if(scanPairs.get(i).getIntensity()>maxInt){
-                index = i;
-                maxInt = scanPairs.get(i).getIntensity();
+        for(int i=startIndex; i<endIndex; i++){
+            if(parent.getIntensity(i)>maxInt){
+                maxIndex = i - startIndex;
+                maxInt = parent.getIntensity(i);
             }
         }
-        maxIntensityIndex = index;
-        maxIntensityRT = scanPairs.get(index).getRT();
-        maxIntensity = scanPairs.get(index).getIntensity();
-        smoothData = smooth;
-        inCluster = cluster;
+        maxIntensityIndex = maxIndex;
         isValid = calculateIsValid(5); //play around with this constant
     }
 
@@ -62,26 +51,45 @@ public class Isobar {
      * @return true if the isobar is "valid", otherwise false
      */
     private boolean calculateIsValid(double thresh){
-        double max = maxIntensity;
-        double min = Math.min(intensityScanPairs.get(0).getIntensity(),intensityScanPairs.get(intensityScanPairs.size()-1).getIntensity());
+        double max = getMaxIntensity();
+        double min = Math.min(chromatogram.getIntensity(startIndex), chromatogram.getIntensity(endIndex-1));
         return max / min > thresh;
     }
 
-    public ArrayList<LocalPeak> getIntensityScanPairs() { return intensityScanPairs;}
+    public ArrayList<LocalPeak> getIntensityScanPairs() {
+        return new ArrayList<>(chromatogram.getIntensityScanPairs().subList(startIndex, endIndex));
+    }
 
-    public double getMeanMZ() { return meanMZ;}
+    public double getMeanMZ() { return chromatogram.getMeanMZ();}
 
-    public double getTolerance() { return tolerance;}
+    public double getTolerance() { return chromatogram.getTolerance();}
 
-    public double getThreshold() { return threshold;}
+    public double getThreshold() { return chromatogram.getThreshold();}
 
     public int getMaxIntensityIndex() { return maxIntensityIndex;}
 
-    public double getMaxIntensityRT() { return maxIntensityRT;}
+    public double getMaxIntensityRT() { return chromatogram.getRT(startIndex + maxIntensityIndex);}
+
+    public double getMaxIntensity() { return chromatogram.getIntensity(startIndex + maxIntensityIndex);}
 
-    public double getMaxIntensity() { return maxIntensity;}
+    /**
+     * Returns the smoothed data points of this isobar
+     * @return the smoothed data, or null if the parent Chromatogram is too short to be smoothed
+     */
+    public double[] getSmoothData() {
+        double[] smoothData = chromatogram.getSmoothData();
+        return smoothData == null ? null : Arrays.copyOfRange(smoothData, startIndex, endIndex);
+    }
 
-    public double[] getSmoothData() { return smoothData;}
+    public boolean getInCluster() { return chromatogram.getInCluster();}
 
-    public boolean getInCluster() { return inCluster;}
+    int getStartIndex() { return startIndex;}
+
+    int getEndIndex() { return endIndex;}
+
+    /**
+     * Returns the integration of this isobar (null until the parent Chromatogram has been integrated)
+     * @return the PeakIntegration of the isobar
+     */
+    public PeakIntegration getIntegration() { return chromatogram.getIsobarIntegration(index);}
 }
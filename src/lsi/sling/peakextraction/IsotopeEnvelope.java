@@ -0,0 +1,120 @@
+package lsi.sling.peakextraction;
+
+/**
+ * The expected isotope distributions of molecules by mass, using the averagine model (the average elemental composition
+ * of a peptide residue, scaled to the mass). The distributions are calculated once for every mass bin when the class is
+ * loaded, so looking up the largest expected intensity ratio between two neighbouring isotopes is O(1). This is used to
+ * reject candidate isotopes whose intensity can't possibly belong to the same envelope before the (much more expensive)
+ * chromatogram correlation is calculated.
+ * <p>
+ * This is only a coarse outlier filter. The isotopes of a LCPeakCluster are found by walking up and down from its most
+ * intense chromatogram, which needn't be the monoisotopic peak, so the position of a candidate within its envelope isn't
+ * known. The candidate is therefore compared with the largest ratio over all the isotope positions of its mass (times
+ * MAX_RATIO_FACTOR), which only rejects gross outliers such as a much more intense peak above a small molecule; the
+ * correlation of the chromatograms is still what decides whether a candidate is an isotope.
+ * <p>
+ * Averagine is a peptide model, and it is being applied to lipids here. Lipids have more carbon (and fewer N, O and S
+ * atoms) per Da than averagine, so their M+1 peak is somewhat larger than the model predicts (e.g. about 1.15 times for a
+ * phosphatidylcholine around 760 Da), which is well within MAX_RATIO_FACTOR.
+ */
+public final class IsotopeEnvelope {
+
+    //the width of the mass bins (in Da) and the largest mass in the table (heavier masses use the last bin)
+    private static final double BIN_WIDTH = 10;
+    private static final double MAX_MASS = 5000;
+    //the number of isotopes calculated for each mass
+    private static final int ISOTOPES = 6;
+    //how many times larger than expected the ratio between two neighbouring isotopes can be before it is impossible
+    private static final double MAX_RATIO_FACTOR = 3;
+
+    //the averagine composition (C, H, N, O, S) per residue and the mass of the residue
+    private static final double[] AVERAGINE = {4.9384, 7.7583, 1.3577, 1.4773, 0.0417};
+    private static final double AVERAGINE_MASS = 111.1254;
+    //the natural abundances of the isotopes of each element, by the number of extra neutrons
+    private static final double[][] ABUNDANCES = {
+            {0.9893, 0.0107},
+            {0.999885, 0.000115},
+            {0.99636, 0.00364},
+            {0.99757, 0.00038, 0.00205},
+            {0.9499, 0.0075, 0.0425, 0, 0.0001}
+    };
+
+    //the largest ratio of the intensity of an isotope to the one below it (I(k+1)/I(k) over every k) for each mass bin
+    private static final double[] MAX_RATIOS = new double[(int) (MAX_MASS/BIN_WIDTH) + 1];
+
+    static {
+        for(int bin=0; bin<MAX_RATIOS.length; bin++){
+            double[] distribution = distribution(bin*BIN_WIDTH);
+            for(int k=0; k<ISOTOPES-1; k++){
+                if(distribution[k] > 0){
+                    MAX_RATIOS[bin] = Math.max(MAX_RATIOS[bin], distribution[k+1]/distribution[k]);
+                }
+            }
+        }
+    }
+
+    private IsotopeEnvelope(){
+    }
+
+    /**
+     * Checks whether two chromatograms one neutron apart could be neighbouring isotopes of the same molecule, based on
+     * their intensities. The upper one is impossible if it is more than MAX_RATIO_FACTOR times the largest ratio between
+     * any two neighbouring isotopes of that mass (e.g. a much more intense peak above a small molecule, or a tiny peak
+     * below an intense one).
+     * @param mass The (neutral) mass of the lower isotope
+     * @param lowerIntensity The intensity of the lower isotope
+     * @param upperIntensity The intensity of the upper isotope
+     * @return false if the intensities can't belong to neighbouring isotopes, otherwise true
+     */
+    public static boolean isPlausible(double mass, double lowerIntensity, double upperIntensity){
+        return upperIntensity <= lowerIntensity*MAX_RATIOS[bin(mass)]*MAX_RATIO_FACTOR;
+    }
+
+    private static int bin(double mass){
+        int bin = (int) Math.round(mass/BIN_WIDTH);
+        return Math.max(0, Math.min(bin, MAX_RATIOS.length - 1));
+    }
+
+    /**
+     * Calculates the first ISOTOPES abundances of the averagine molecule of the given mass, by convolving the isotope
+     * distributions of each of its atoms
+     */
+    private static double[] distribution(double mass){
+        double residues = mass/AVERAGINE_MASS;
+        double[] distribution = new double[ISOTOPES];
+        distribution[0] = 1;
+        for(int e=0; e<AVERAGINE.length; e++){
+            long atoms = Math.round(AVERAGINE[e]*residues);
+            distribution = convolve(distribution, power(ABUNDANCES[e], atoms));
+        }
+        return distribution;
+    }
+
+    /**
+     * The distribution of n atoms of an element (by repeated squaring), truncated to ISOTOPES peaks
+     */
+    private static double[] power(double[] abundances, long n){
+        double[] result = new double[ISOTOPES];
+        result[0] = 1;
+        double[] base = new double[ISOTOPES];
+        System.arraycopy(abundances, 0, base, 0, Math.min(abundances.length, ISOTOPES));
+        while(n > 0){
+            if((n & 1) == 1){
+                result = convolve(result, base);
+            }
+            base = convolve(base, base);
+            n >>= 1;
+        }
+        return result;
+    }
+
+    private static double[] convolve(double[] a, double[] b){
+        double[] result = new double[ISOTOPES];
+        for(int i=0; i<ISOTOPES; i++){
+            for(int j=0; i+j<ISOTOPES; j++){
+                result[i+j] += a[i]*b[j];
+            }
+        }
+        return result;
+    }
+}
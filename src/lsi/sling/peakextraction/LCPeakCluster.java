@@ -1,16 +1,14 @@
 package lsi.sling.peakextraction;
 
 import com.google.common.collect.ArrayListMultimap;
+import lsi.sling.FragmentHandling.FragmentDBSCAN;
+import lsi.sling.FragmentHandling.FragmentView;
 import lsi.sling.FragmentHandling.LCMS2Cluster;
-import lsi.sling.FragmentHandling.LCMS2Fragment;
 import lsi.sling.databasehandling.Adduct;
 import lsi.sling.databasehandling.AdductDatabase;
 import lsi.sling.mzxmlfilehandling.MzXMLFile;
-import org.apache.commons.math3.exception.DimensionMismatchException;
 import org.apache.commons.math3.exception.MathIllegalArgumentException;
-import org.apache.commons.math3.ml.clustering.Cluster;
 import org.apache.commons.math3.ml.clustering.Clusterable;
-import org.apache.commons.math3.ml.clustering.DBSCANClusterer;
 import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
 
 import java.io.IOException;
@@ -43,18 +41,27 @@ public class LCPeakCluster implements Clusterable{
     //Used for the calculating the distance during the DBSCAN clustering
     private double normalisedMZ;
     private double normalisedRT;
+    //The RT after correcting for the drift between samples (NaN if it hasn't been corrected)
+    private double correctedRT = Double.NaN;
     //Stores the clustered Fragments
     private ArrayList<LCMS2Cluster> fragmentClusters;
+    //The location of the file this cluster was found in (used to identify the sample when aligning)
+    private String fileLocation;
+    //The ppm tolerance used to find the isotopes (the mass accuracy of the file)
+    private double ppm;
 
     /**
-     * Creates a new peakcluster from a given starting point. This includes estimating the charge and isotopes. Also, after
-     * a chromatogram has been used, it is marked as inPeakCluster in the MzXMLFile
+     * Creates a new peakcluster from a given starting point. This includes estimating the charge and isotopes. The
+     * chromatograms aren't marked as used here (call claim() once the cluster has been accepted), and none of the
+     * chromatograms in the file are modified, so clusters can be created in parallel.
      * @param startingPoint The Chromatogram to use as a starting point
      * @param ppm The precision to use
      * @param mzXMLFile The MzXMLFile to look through for isotopes
      */
     public LCPeakCluster(Chromatogram startingPoint, double ppm, MzXMLFile mzXMLFile) {
         inAlignedCluster = false;
+        fileLocation = mzXMLFile.getFileLocation();
+        this.ppm = ppm;
         fragmentClusters = new ArrayList<>();
         adductList = new ArrayList<>();
         chromatograms = new ArrayList<>();
@@ -75,14 +82,33 @@ public class LCPeakCluster implements Clusterable{
         targetMZBelow = ppmBelow(chromatograms.get(startingPointIndex).getMeanMZ(), ppm);
     }
 
+    /**
+     * Marks every chromatogram in this cluster as being in a cluster, so they aren't used as the starting point of
+     * another LCPeakCluster
+     */
+    public void claim() {
+        for(Chromatogram chromatogram : chromatograms){
+            chromatogram.setInCluster();
+        }
+    }
+
+    /**
+     * Returns the ppm tolerance which was used to create this cluster
+     * @return the ppm tolerance
+     */
+    public double getPPM() {
+        return ppm;
+    }
+
     public List<Adduct> getAdductList() {
         return adductList;
     }
 
     /**
      * This method recursively looks for the chromatograms adjacent to the starting point which can then be arranged
-     * into the Peak Cluster. Currently, it looks for chromatograms within 0.05 Da. If multiple chromatograms are found,
-     * the one closest to the expected theoretical value is used.
+     * into the Peak Cluster. Currently, it looks for chromatograms within 0.05 Da. Candidates whose intensity can't
+     * belong to the same isotope envelope (based on the averagine model) are rejected before the correlation is
+     * calculated. If multiple chromatograms are found, the one closest to the expected theoretical value is used.
      * @param previous The starting point used in the previous iteration of the recursive loop
      * @param above Whether to look above (high mz) or below (lower mz) the starting point. A value of true is interpreted
      *              as look above whilst a value of false is interpreted as look below
@@ -91,76 +117,77 @@ public class LCPeakCluster implements Clusterable{
      * @throws IllegalArgumentException if the number of valid peaks it finds is nonsensical (negative or not a number or something silly)
      */
     private int checkAboveOrBelow(Chromatogram previous, boolean above, double ppm, MzXMLFile mzXMLFile){
-        double RT = previous.getStartingPointRT();
-        double inten = previous.getStartingPointIntensity();
         double mz = previous.getMeanMZ();
+        //the m/z the next isotope should be at
+        double expectedMZ = above ? mz + NEUTRON_MASS/charge : mz - NEUTRON_MASS/charge;
         ArrayList<Chromatogram> temp = new ArrayList<>();
         //This loop looks for Chromatograms within the m/z value which correlate to the recursive starting point
         for (Chromatogram chromatogram : mzXMLFile.getChromatograms()){
             if(!chromatogram.equals(previous)) {
                 if (Math.abs(Math.abs(mz - chromatogram.getMeanMZ()) - neutronMassPpmAbove /charge) < 0.05 && recursiveCondition(above,chromatogram.getMeanMZ(),mz)) {
-                    if (correlateChromatograms(previous, chromatogram) > 0.8) { //uses the correlation function below to determine isobars. The constant still needs to be adjusted.
+                    if (isPlausibleIsotope(previous, chromatogram, above) && correlateChromatograms(previous, chromatogram) > 0.8) { //uses the correlation function below to determine isobars. The constant still needs to be adjusted.
                         temp.add(chromatogram);
                     }
                 }
             }
         }
         if(temp.size()==1){ //if only one possibility is found add it to tempChroma and repeat the recursive loop with it as a starting point
-            mzXMLFile.getChromatograms().get(mzXMLFile.getChromatograms().indexOf(temp.get(0))).setInCluster();
             tempChroma.add(temp.get(0));
             return checkAboveOrBelow(temp.get(0), above, ppm, mzXMLFile);
         } else if(temp.size()==0) { //if no possibilities are found, return 1
             return 1;
         } else if(temp.size()>1) { //if more than one possibility is found, use the one closest to the exact theoretical value
-            double minDistance = Math.abs(temp.get(0).getMeanMZ()-(previous.getMeanMZ()+NEUTRON_MASS));
+            double minDistance = Math.abs(temp.get(0).getMeanMZ()-expectedMZ);
             int index = 0;
             for(int i=1; i<temp.size(); i++){
-                if(Math.abs(temp.get(0).getMeanMZ()-(previous.getMeanMZ()+NEUTRON_MASS))<minDistance){
+                double distance = Math.abs(temp.get(i).getMeanMZ()-expectedMZ);
+                if(distance<minDistance){
+                    minDistance = distance;
                     index = i;
                 }
             }
-            mzXMLFile.getChromatograms().get(mzXMLFile.getChromatograms().indexOf(temp.get(index))).setInCluster();
             tempChroma.add(temp.get(index));
-            return checkAboveOrBelow(temp.get(0), above, ppm, mzXMLFile);
+            return checkAboveOrBelow(temp.get(index), above, ppm, mzXMLFile);
         } else {
             throw new IllegalArgumentException(); //thrown if temp.size()<1. If this is thrown there is a big problem
         }
     }
 
+    /**
+     * Checks whether the intensities of two chromatograms are consistent with them being neighbouring isotopes, using
+     * the expected isotope ratios from IsotopeEnvelope
+     * @param previous The chromatogram already in the cluster
+     * @param candidate The possible isotope
+     * @param above Whether the candidate is above (true) or below (false) the previous chromatogram
+     * @return false if the candidate is impossible, otherwise true
+     */
+    private boolean isPlausibleIsotope(Chromatogram previous, Chromatogram candidate, boolean above){
+        Chromatogram lower = above ? previous : candidate;
+        Chromatogram upper = above ? candidate : previous;
+        return IsotopeEnvelope.isPlausible(lower.getMeanMZ()*charge, lower.getMaxIntensity(), upper.getMaxIntensity());
+    }
+
     /**
      * Calculates the correlation between two chromatograms. If the ranges of the retention times aren't equal (and they
-     * usually aren't), only the overlapping datapoints are used to calculate the correlation. This method calculates the
-     * pearson correlation coefficient through the apache commons math library.
+     * usually aren't), only the overlapping datapoints are used to calculate the correlation. Every chromatogram covers
+     * a range of consecutive scans, so the overlap is found from the first and last scans rather than the RTs. This
+     * method calculates the pearson correlation coefficient through the apache commons math library.
      * @param a The first chromatogram
      * @param b The second chromatogram
      * @return The correlation coefficient between the two chromatograms
      */
     private static double correlateChromatograms(Chromatogram a, Chromatogram b){
         //finds the overlapping datapoints to correlate
-        double minPoint = Math.max(a.getIntensityScanPairs().get(0).getRT(),b.getIntensityScanPairs().get(0).getRT());
-        double maxPoint = Math.min(a.getIntensityScanPairs().get(a.getIntensityScanPairs().size()-1).getRT(),b.getIntensityScanPairs().get(b.getIntensityScanPairs().size()-1).getRT());
-        ArrayList<Double> aIntensities = new ArrayList<>();
-        for(int i=0; i<a.getIntensityScanPairs().size(); i++){
-            if(a.getIntensityScanPairs().get(i).getRT()>=minPoint && a.getIntensityScanPairs().get(i).getRT()<=maxPoint){
-                aIntensities.add(a.getIntensityScanPairs().get(i).getIntensity());
-            }
-        }
-        ArrayList<Double> bIntensities = new ArrayList<>();
-        for(int i=0; i<b.getIntensityScanPairs().size(); i++){
-            if(b.getIntensityScanPairs().get(i).getRT()>=minPoint && b.getIntensityScanPairs().get(i).getRT()<=maxPoint){
-                bIntensities.add(b.getIntensityScanPairs().get(i).getIntensity());
-            }
-        }
-        double[] aInten = new double[aIntensities.size()];
-        double[] bInten = new double[bIntensities.size()];
-        ///validates that both arrays have the same size
-        if(aInten.length!=bInten.length){
-            throw new DimensionMismatchException(bInten.length,aInten.length);
+        int firstScan = Math.max(a.getStartScan(), b.getStartScan());
+        int lastScan = Math.min(a.getStartScan() + a.size(), b.getStartScan() + b.size()) - 1;
+        if(lastScan < firstScan){
+            return 0; //the chromatograms don't overlap
         }
+        double[] aInten = new double[lastScan - firstScan + 1];
+        double[] bInten = new double[aInten.length];
         for(int i=0; i<aInten.length; i++){
-            aInten[i] = aIntensities.get(i);
-            bInten[i] = bIntensities.get(i);
-
+            aInten[i] = a.getIntensity(firstScan + i - a.getStartScan());
+            bInten[i] = b.getIntensity(firstScan + i - b.getStartScan());
         }
         double corr;
         try {
@@ -307,8 +334,9 @@ public class LCPeakCluster implements Clusterable{
         ArrayList<LCPeakCluster> clusters = new ArrayList<>();
         for(Chromatogram chromatogram : chromatograms){
             if(!chromatogram.getInCluster()){
-                chromatogram.setInCluster();
-                clusters.add(new LCPeakCluster(chromatogram, 20, file));
+                LCPeakCluster cluster = new LCPeakCluster(chromatogram, 20, file);
+                cluster.claim();
+                clusters.add(cluster);
             }
         }
         //filters out the invalid peakClusters (based on starting point)
@@ -355,7 +383,7 @@ public class LCPeakCluster implements Clusterable{
     public void setRescaledValues(double MZMax, double MZMin, double RTMax, double RTMin){
         double mz = chromatograms.get(startingPointIndex).getMeanMZ();
         normalisedMZ = (mz-MZMin)/(MZMax-MZMin);
-        double rt = chromatograms.get(startingPointIndex).getStartingPointRT();
+        double rt = getCorrectedRT();
         normalisedRT = (rt-RTMin)/(RTMax-RTMin);
     }
 
@@ -384,29 +412,51 @@ public class LCPeakCluster implements Clusterable{
         return chromatograms.get(startingPointIndex).getStartingPointRT();
     }
 
+    /**
+     * Sets the RT of this cluster after the RT drift of its sample has been corrected. The corrected RT is only used for
+     * the alignment, getMainRT() still returns the measured RT.
+     * @param rt the corrected RT
+     */
+    public void setCorrectedRT(double rt){
+        correctedRT = rt;
+    }
+
+    /**
+     * Returns the RT of this cluster after the RT drift of its sample has been corrected
+     * @return the corrected RT, or the measured RT if it hasn't been corrected
+     */
+    public double getCorrectedRT(){
+        return Double.isNaN(correctedRT) ? getMainRT() : correctedRT;
+    }
+
     /**
      * Returns all the fragments from the mono-isotopic chromatogram of this LCPeakCluster
-     * @return an ArrayList<LCMS2Fragment> containing all the fragments
+     * @return a FragmentView over the fragments (in the FragmentArena of the file)
      */
-    public ArrayList<LCMS2Fragment> getMainChromatogramFragments(){
-        ArrayList<LCMS2Fragment> toReturn = new ArrayList<>();
-        for(LocalPeak localPeak : this.chromatograms.get(startingPointIndex).getIntensityScanPairs()){
-            toReturn.addAll(localPeak.getFragments());
-        }
-        return toReturn;
+    public FragmentView getMainChromatogramFragments(){
+        return this.chromatograms.get(startingPointIndex).getFragments();
     }
 
     /**
      * This method clusters the fragments from the mono-isotopic XIC
      */
     public void clusterFragments(){
-        DBSCANClusterer<LCMS2Fragment> clusterer = new DBSCANClusterer<>(0.7, 10); //Refine these values
-        List<Cluster<LCMS2Fragment>> clusterResults = clusterer.cluster(this.getMainChromatogramFragments());
-        for(Cluster<LCMS2Fragment> cluster : clusterResults){
-            fragmentClusters.add(new LCMS2Cluster((ArrayList<LCMS2Fragment>) cluster.getPoints()));
+        FragmentDBSCAN clusterer = new FragmentDBSCAN(0.7, 10); //Refine these values
+        //clusters directly from the columns of the FragmentArena, so no objects are created per fragment
+        FragmentView fragments = this.getMainChromatogramFragments();
+        for(int[] cluster : clusterer.cluster(fragments)){
+            fragmentClusters.add(new LCMS2Cluster(fragments.getArena(), cluster));
         }
     }
 
+    /**
+     * Returns the location of the mzXML file (the sample) which this LCPeakCluster was found in
+     * @return the file location
+     */
+    public String getFileLocation(){
+        return fileLocation;
+    }
+
     public ArrayList<LCMS2Cluster> getFragmentClusters(){
         return fragmentClusters;
     }
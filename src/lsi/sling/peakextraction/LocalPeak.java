@@ -1,8 +1,10 @@
 package lsi.sling.peakextraction;
 
-import lsi.sling.FragmentHandling.LCMS2Fragment;
+import lsi.sling.mzxmlfilehandling.MS2ScanReference;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Represents a single peak from the MZXML as a single data structure containing the relevant information.
@@ -19,7 +21,7 @@ public class LocalPeak implements Comparable<LocalPeak> {
     private double MZ;
     private double RT;
     private boolean isUsed;
-    private ArrayList<LCMS2Fragment> fragments;
+    private ArrayList<MS2ScanReference> ms2Scans; //null until the first ms2 scan is assigned, most peaks never get one
 
     /**
      * Constructor which doesn't take the mslevel as one of its inputs. In this case, the msLevel is defaulted to 1.
@@ -35,20 +37,26 @@ public class LocalPeak implements Comparable<LocalPeak> {
         MZ = massCharge;
         RT = retentionTime;
         isUsed = false;
-        fragments = new ArrayList<>();
     }
 
     /**
-     * Adds the input fragment to the existing list. This logic prevents people from removing fragments accidentaly.
-     * @param fragments The fragment to append
+     * Adds a reference to an ms2 scan whose precursor is this peak. The fragments in the scan are only decoded when
+     * they are needed. This logic prevents people from removing fragments accidentaly.
+     * @param ms2Scan The reference to the ms2 scan to append
      */
-    public void addFragment(LCMS2Fragment fragments) {
-        //this.fragments = fragments;
-        this.fragments.add(fragments);
+    public void addMS2Scan(MS2ScanReference ms2Scan) {
+        if(ms2Scans == null){
+            ms2Scans = new ArrayList<>(1);
+        }
+        ms2Scans.add(ms2Scan);
     }
 
-    public ArrayList<LCMS2Fragment> getFragments() {
-        return fragments;
+    /**
+     * Returns the references to the ms2 scans whose precursor is this peak
+     * @return An unmodifiable list of the ms2 scans (empty if there aren't any)
+     */
+    public List<MS2ScanReference> getMS2Scans() {
+        return ms2Scans == null ? Collections.emptyList() : Collections.unmodifiableList(ms2Scans);
     }
 
     /**
@@ -0,0 +1,106 @@
+package lsi.sling.peakextraction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+/**
+ * Builds clusters from a list of seeds in parallel, giving exactly the same result as building them one at a time in
+ * order (where each accepted cluster claims its members, and a seed which has already been claimed is skipped).
+ * <p>
+ * The worker threads take the seeds in order, and a seed which has already been claimed by a committed cluster is
+ * skipped before its cluster is built. The built clusters are then committed strictly in the order of their seeds, and
+ * the seed is checked again when it is committed (as it may have been claimed by a cluster which was still being built
+ * when it was taken). Only the seeds claimed by one of the (at most one per thread) clusters in flight are ever built
+ * needlessly, so the work grows with the number of clusters rather than the number of seeds.
+ */
+public final class OrderedClaimer {
+
+    private OrderedClaimer(){
+    }
+
+    /**
+     * Builds and claims the clusters of the seeds
+     * @param seeds The number of seeds, which are processed in order (0 first)
+     * @param claimed Whether a seed has been claimed by a committed cluster. This is called concurrently with claim, so
+     *                the flag it reads must be safely published (e.g. volatile)
+     * @param build Builds the cluster of a seed, or returns null if the seed can't start a cluster. This is called
+     *              concurrently, so it mustn't depend on which seeds have been claimed
+     * @param claim Claims the members of an accepted cluster (only ever called by one thread at a time, in seed order)
+     * @param <T> The type of the clusters
+     * @return the accepted clusters, in the order of their seeds
+     */
+    public static <T> List<T> build(int seeds, IntPredicate claimed, IntFunction<T> build, Consumer<T> claim){
+        Committer<T> committer = new Committer<>(seeds, claimed, claim);
+        AtomicInteger next = new AtomicInteger();
+        int workers = Math.max(1, Math.min(seeds, ForkJoinPool.getCommonPoolParallelism()));
+        IntStream.range(0, workers).parallel().forEach(w -> {
+            for(int seed = next.getAndIncrement(); seed < seeds; seed = next.getAndIncrement()){
+                committer.finish(seed, claimed.test(seed) ? null : build.apply(seed));
+                //commits whatever is ready, unless another thread is already doing so
+                committer.commit(false);
+            }
+        });
+        //commits the clusters which finished after the last commit
+        committer.commit(true);
+        return committer.accepted;
+    }
+
+    /**
+     * Commits the built clusters in the order of their seeds
+     */
+    private static class Committer<T> {
+
+        private IntPredicate claimed;
+        private Consumer<T> claim;
+        private Object[] results;
+        private AtomicIntegerArray finished;
+        private ReentrantLock lock;
+        private int position; //the next seed to commit (guarded by the lock)
+        private ArrayList<T> accepted;
+
+        private Committer(int seeds, IntPredicate claimed, Consumer<T> claim){
+            this.claimed = claimed;
+            this.claim = claim;
+            results = new Object[seeds];
+            finished = new AtomicIntegerArray(seeds);
+            lock = new ReentrantLock();
+            accepted = new ArrayList<>();
+        }
+
+        private void finish(int seed, T result){
+            results[seed] = result;
+            //the volatile write publishes the result to the committing thread
+            finished.set(seed, 1);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void commit(boolean wait){
+            if(wait){
+                lock.lock();
+            } else if(!lock.tryLock()){
+                return;
+            }
+            try {
+                while(position < results.length && finished.get(position) == 1){
+                    T result = (T) results[position];
+                    if(result != null && !claimed.test(position)){
+                        claim.accept(result);
+                        accepted.add(result);
+                    }
+                    results[position] = null;
+                    position++;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package lsi.sling.peakextraction;
+
+/**
+ * The result of integrating a single peak (a Chromatogram, or an Isobar within one) with the PeakIntegrator.
+ */
+public class PeakIntegration {
+
+    private double area;
+    private double height;
+    private double apexRT;
+    private double fwhm;
+    private double asymmetry;
+    private double signalToNoise;
+
+    PeakIntegration(double area, double height, double apexRT, double fwhm, double asymmetry, double signalToNoise){
+        this.area = area;
+        this.height = height;
+        this.apexRT = apexRT;
+        this.fwhm = fwhm;
+        this.asymmetry = asymmetry;
+        this.signalToNoise = signalToNoise;
+    }
+
+    /**
+     * Returns the area under the peak (intensity x RT)
+     * @return the area
+     */
+    public double getArea() {
+        return area;
+    }
+
+    public double getHeight() {
+        return height;
+    }
+
+    public double getApexRT() {
+        return apexRT;
+    }
+
+    /**
+     * Returns the full width of the peak at half of its height (in RT)
+     * @return the FWHM
+     */
+    public double getFWHM() {
+        return fwhm;
+    }
+
+    /**
+     * Returns the asymmetry factor of the peak, which is the width after the apex divided by the width before the apex
+     * (both measured at 10% of the height). Values above 1 mean the peak tails.
+     * @return the asymmetry factor, or NaN if the peak is too narrow to measure it
+     */
+    public double getAsymmetry() {
+        return asymmetry;
+    }
+
+    /**
+     * Returns the height of the peak divided by the noise level of the file
+     * @return the signal to noise ratio
+     */
+    public double getSignalToNoise() {
+        return signalToNoise;
+    }
+}
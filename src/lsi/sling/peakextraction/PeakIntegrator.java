@@ -0,0 +1,113 @@
+package lsi.sling.peakextraction;
+
+/**
+ * Integrates peaks stored as primitive (RT, intensity) arrays. Every measurement is made over a range of the arrays,
+ * so the isobars of a chromatogram can be integrated from the arrays of the chromatogram without copying them, and no
+ * objects are created per point.
+ */
+public final class PeakIntegrator {
+
+    /**
+     * The rule used to calculate the area under the peak
+     */
+    public enum Method {
+        TRAPEZOID,
+        /** Simpson's rule for unevenly spaced points (the last interval uses the trapezoid rule if there is an odd number) */
+        SIMPSON
+    }
+
+    private PeakIntegrator(){
+    }
+
+    /**
+     * Integrates the points in [from, to) of the arrays
+     * @param rt The RTs of the points (in ascending order)
+     * @param intensity The intensities of the points
+     * @param from The index of the first point of the peak
+     * @param to The index after the last point of the peak
+     * @param noise The noise level used for the signal to noise ratio
+     * @param method The rule to use for the area
+     * @return the area, height, FWHM, asymmetry and signal to noise of the peak
+     */
+    public static PeakIntegration integrate(double[] rt, double[] intensity, int from, int to, double noise, Method method){
+        int apex = from;
+        for(int i=from+1; i<to; i++){
+            if(intensity[i] > intensity[apex]){
+                apex = i;
+            }
+        }
+        double height = intensity[apex];
+        double area = method == Method.SIMPSON ? simpson(rt, intensity, from, to) : trapezoid(rt, intensity, from, to);
+        double fwhm = crossingAfter(rt, intensity, apex, to, height/2) - crossingBefore(rt, intensity, from, apex, height/2);
+        double front = rt[apex] - crossingBefore(rt, intensity, from, apex, height/10);
+        double back = crossingAfter(rt, intensity, apex, to, height/10) - rt[apex];
+        double asymmetry = front > 0 ? back/front : Double.NaN;
+        return new PeakIntegration(area, height, rt[apex], fwhm, asymmetry, height/noise);
+    }
+
+    /**
+     * The area under the points in [from, to) using the trapezoid rule
+     */
+    public static double trapezoid(double[] rt, double[] intensity, int from, int to){
+        double area = 0;
+        for(int i=from+1; i<to; i++){
+            area += (rt[i] - rt[i-1])*(intensity[i] + intensity[i-1])/2;
+        }
+        return area;
+    }
+
+    /**
+     * The area under the points in [from, to) using Simpson's rule for unevenly spaced points. Each pair of intervals
+     * is integrated with the quadratic through its three points; if there is an odd number of intervals, the last one
+     * uses the trapezoid rule.
+     */
+    public static double simpson(double[] rt, double[] intensity, int from, int to){
+        double area = 0;
+        int i = from;
+        for(; i+2<to; i+=2){
+            double h0 = rt[i+1] - rt[i];
+            double h1 = rt[i+2] - rt[i+1];
+            if(h0 <= 0 || h1 <= 0){
+                //repeated RTs would divide by zero, so falls back to the trapezoid rule for this pair
+                area += trapezoid(rt, intensity, i, i+3);
+                continue;
+            }
+            double sum = h0 + h1;
+            area += sum/6*((2 - h1/h0)*intensity[i] + sum*sum/(h0*h1)*intensity[i+1] + (2 - h0/h1)*intensity[i+2]);
+        }
+        if(i+1 < to){
+            area += trapezoid(rt, intensity, i, i+2);
+        }
+        return area;
+    }
+
+    /**
+     * Finds the RT before the apex where the peak crosses the given level (linearly interpolating between the points).
+     * If the peak never drops below the level, the RT of the first point is returned.
+     */
+    private static double crossingBefore(double[] rt, double[] intensity, int from, int apex, double level){
+        for(int i=apex; i>from; i--){
+            if(intensity[i-1] < level){
+                return interpolate(rt[i-1], intensity[i-1], rt[i], intensity[i], level);
+            }
+        }
+        return rt[from];
+    }
+
+    /**
+     * Finds the RT after the apex where the peak crosses the given level (linearly interpolating between the points).
+     * If the peak never drops below the level, the RT of the last point is returned.
+     */
+    private static double crossingAfter(double[] rt, double[] intensity, int apex, int to, double level){
+        for(int i=apex; i<to-1; i++){
+            if(intensity[i+1] < level){
+                return interpolate(rt[i], intensity[i], rt[i+1], intensity[i+1], level);
+            }
+        }
+        return rt[to-1];
+    }
+
+    private static double interpolate(double rt0, double intensity0, double rt1, double intensity1, double level){
+        return rt0 + (level - intensity0)*(rt1 - rt0)/(intensity1 - intensity0);
+    }
+}
@@ -0,0 +1,110 @@
+package lsi.sling.peakextraction;
+
+/**
+ * The LocalPeaks of a file, stored scan by scan (and in ascending order of m/z within each scan) in a single array, along
+ * with the RTs of the ms1 scans. Chromatograms refer to their points by their index in this table and share its RT axis,
+ * rather than each holding their own LocalPeak objects and RTs.
+ */
+public class PeakTable {
+
+    private LocalPeak[] peaks;
+    private int[] scanOffsets;
+    private double[] scanRTs;
+
+    /**
+     * Creates a peak table
+     * @param peaks The LocalPeaks of every scan (the peaks of scan s are at scanOffsets[s] until scanOffsets[s+1]), in
+     *              ascending order of m/z within each scan
+     * @param scanOffsets The position of the first peak of each scan (with the number of peaks as the last element)
+     * @param scanRTs The RT of each ms1 scan
+     */
+    public PeakTable(LocalPeak[] peaks, int[] scanOffsets, double[] scanRTs){
+        this.peaks = peaks;
+        this.scanOffsets = scanOffsets;
+        this.scanRTs = scanRTs;
+    }
+
+    /**
+     * Finds the position of a LocalPeak in the table with a binary search of the peaks of its scan
+     * @param scan The scan number of the peak
+     * @param mz The (exact) m/z of the peak
+     * @return the index of the peak, or -1 if that point isn't in the table (e.g. it was below the noise threshold)
+     */
+    public int indexOf(int scan, double mz){
+        int low = scanOffsets[scan];
+        int high = scanOffsets[scan+1] - 1;
+        while(low <= high){
+            int mid = (low + high) >>> 1;
+            double midMZ = peaks[mid].getMZ();
+            if(midMZ < mz){
+                low = mid + 1;
+            } else if(midMZ > mz){
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the LocalPeak in a scan with the m/z closest to the given value
+     * @param scan The scan number to look in
+     * @param mz The m/z to look for
+     * @param ppm The tolerance (in ppm)
+     * @return the index of the closest peak within the tolerance, or -1 if there isn't one
+     */
+    public int closest(int scan, double mz, double ppm){
+        int low = scanOffsets[scan];
+        int high = scanOffsets[scan+1];
+        //finds the first peak with an m/z of at least mz
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(peaks[mid].getMZ() < mz){
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        double tolerance = (mz/1e6)*ppm;
+        int closest = -1;
+        double distance = tolerance;
+        if(low < scanOffsets[scan+1] && peaks[low].getMZ() - mz <= distance){
+            closest = low;
+            distance = peaks[low].getMZ() - mz;
+        }
+        if(low > scanOffsets[scan] && mz - peaks[low-1].getMZ() <= distance){
+            closest = low - 1;
+        }
+        return closest;
+    }
+
+    public LocalPeak get(int index){
+        return peaks[index];
+    }
+
+    /**
+     * Returns the number of LocalPeaks in the table
+     * @return the number of peaks
+     */
+    public int size(){
+        return peaks.length;
+    }
+
+    /**
+     * Returns the RT of an ms1 scan
+     * @param scan The scan number
+     * @return the RT of the scan
+     */
+    public double getRT(int scan){
+        return scanRTs[scan];
+    }
+
+    /**
+     * Returns the number of ms1 scans
+     * @return the number of scans
+     */
+    public int getScanCount(){
+        return scanRTs.length;
+    }
+}
@@ -0,0 +1,117 @@
+package lsi.sling.peakextraction;
+
+import lsi.sling.statistics.PrimitiveSort;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the anchors used to correct the RT drift of a sample against a reference sample. An anchor is a LCPeakCluster
+ * in the sample which matches exactly one LCPeakCluster of the same charge in the reference (within the m/z tolerance
+ * and the maximum RT shift), where that reference cluster isn't matched by any other cluster of the sample; ambiguous
+ * matches in either direction are ignored. The m/z tolerance is the wider of the mass accuracies of the two samples.
+ * The reference clusters are stored as primitive arrays sorted by m/z, so each sample cluster only looks at the
+ * reference clusters within its m/z window, and any number of samples can be fitted concurrently. The aligner is
+ * Serializable so that it can be stored with an AlignmentState, and the samples of later batches corrected against the
+ * same reference.
+ */
+public class RTAligner implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private double referencePPM;
+    private double maxShift;
+    private double[] referenceMZs;
+    private double[] referenceRTs;
+    private int[] referenceCharges;
+
+    /**
+     * Creates an aligner for a reference sample
+     * @param reference The LCPeakClusters of the reference sample
+     * @param referencePPM The mass accuracy (in ppm) of the reference sample
+     * @param maxShift The largest RT difference (in minutes) between two matching clusters
+     */
+    public RTAligner(List<LCPeakCluster> reference, double referencePPM, double maxShift){
+        this.referencePPM = referencePPM;
+        this.maxShift = maxShift;
+        int n = reference.size();
+        //sorts the reference clusters by m/z
+        double[] mzs = new double[n];
+        for(int i=0; i<n; i++){
+            mzs[i] = reference.get(i).getMainMZ();
+        }
+        int[] order = PrimitiveSort.order(mzs, false);
+        referenceMZs = new double[n];
+        referenceRTs = new double[n];
+        referenceCharges = new int[n];
+        for(int i=0; i<n; i++){
+            LCPeakCluster cluster = reference.get(order[i]);
+            referenceMZs[i] = cluster.getMainMZ();
+            referenceRTs[i] = cluster.getMainRT();
+            referenceCharges[i] = cluster.getCharge();
+        }
+    }
+
+    /**
+     * Fits the RT warp of a sample against the reference
+     * @param sample The LCPeakClusters of the sample
+     * @param samplePPM The mass accuracy (in ppm) of the sample
+     * @return the fitted warp (the identity warp if there aren't enough anchors)
+     */
+    public RTWarp fit(List<LCPeakCluster> sample, double samplePPM){
+        double ppm = Math.max(referencePPM, samplePPM);
+        double[] sampleRTs = new double[sample.size()];
+        int[] matched = new int[sample.size()]; //the reference cluster matched by each candidate anchor
+        int[] hits = new int[referenceMZs.length]; //the number of candidate anchors matching each reference cluster
+        int candidates = 0;
+        for(LCPeakCluster cluster : sample){
+            double mz = cluster.getMainMZ();
+            double rt = cluster.getMainRT();
+            double tolerance = (mz/1e6)*ppm;
+            int match = -1;
+            int matches = 0;
+            for(int i=lowerBound(mz - tolerance); i<referenceMZs.length && referenceMZs[i] <= mz + tolerance; i++){
+                if(referenceCharges[i] == cluster.getCharge() && Math.abs(referenceRTs[i] - rt) <= maxShift){
+                    match = i;
+                    matches++;
+                }
+            }
+            if(matches == 1){
+                sampleRTs[candidates] = rt;
+                matched[candidates] = match;
+                hits[match]++;
+                candidates++;
+            }
+        }
+        //only keeps the matches which are unique in both directions
+        double[] anchorRTs = new double[candidates];
+        double[] matchedRTs = new double[candidates];
+        int anchors = 0;
+        for(int i=0; i<candidates; i++){
+            if(hits[matched[i]] == 1){
+                anchorRTs[anchors] = sampleRTs[i];
+                matchedRTs[anchors] = referenceRTs[matched[i]];
+                anchors++;
+            }
+        }
+        return RTWarp.fit(Arrays.copyOf(anchorRTs, anchors), Arrays.copyOf(matchedRTs, anchors));
+    }
+
+    /**
+     * Returns the index of the first reference cluster with an m/z of at least the given value
+     */
+    private int lowerBound(double mz){
+        int low = 0;
+        int high = referenceMZs.length;
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(referenceMZs[mid] < mz){
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
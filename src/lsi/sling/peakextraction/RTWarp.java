@@ -0,0 +1,195 @@
+package lsi.sling.peakextraction;
+
+import lsi.sling.statistics.PrimitiveStatistics;
+
+import java.util.Arrays;
+
+/**
+ * A monotone piecewise-linear mapping from the RTs of one sample onto the RTs of the reference sample, used to correct
+ * the RT drift between samples before they are aligned. The warp is defined by a set of knots (sample RT, reference RT)
+ * in ascending order; RTs between two knots are interpolated, and RTs outside the knots are shifted by the offset of
+ * the nearest knot.
+ */
+public class RTWarp {
+
+    //the minimum number of anchors needed to place a knot
+    private static final int MIN_SEGMENT_ANCHORS = 10;
+    private static final int MAX_SEGMENTS = 20;
+
+    private double[] sampleRTs;
+    private double[] referenceRTs;
+
+    private RTWarp(double[] sampleRTs, double[] referenceRTs){
+        this.sampleRTs = sampleRTs;
+        this.referenceRTs = referenceRTs;
+    }
+
+    /**
+     * Returns the warp which doesn't change the RTs (e.g. for the reference sample)
+     * @return the identity warp
+     */
+    public static RTWarp identity(){
+        return new RTWarp(new double[0], new double[0]);
+    }
+
+    /**
+     * Fits a warp to a set of anchors (the RTs of the same features in the sample and the reference). The sample RT
+     * range is split into equal segments (with at least MIN_SEGMENT_ANCHORS anchors per segment on average), and a knot
+     * is placed at the median sample RT and median offset of the anchors in each segment, which makes the fit robust to
+     * mismatched anchors. The knots are then made monotone with the pool adjacent violators algorithm so that the order
+     * of the RTs is never changed.
+     * @param sampleRTs The RTs of the anchors in the sample
+     * @param referenceRTs The RTs of the anchors in the reference sample
+     * @return the fitted warp, or the identity warp if there are too few anchors
+     */
+    public static RTWarp fit(double[] sampleRTs, double[] referenceRTs){
+        int n = sampleRTs.length;
+        if(n < MIN_SEGMENT_ANCHORS){
+            return identity();
+        }
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for(double rt : sampleRTs){
+            min = Math.min(min, rt);
+            max = Math.max(max, rt);
+        }
+        int segments = Math.max(1, Math.min(MAX_SEGMENTS, n/MIN_SEGMENT_ANCHORS));
+        double width = (max - min)/segments;
+        //counts the anchors in each segment, then groups them (a counting sort by segment)
+        int[] offsets = new int[segments+1];
+        int[] segmentOf = new int[n];
+        for(int i=0; i<n; i++){
+            segmentOf[i] = width > 0 ? Math.min(segments - 1, (int) ((sampleRTs[i] - min)/width)) : 0;
+            offsets[segmentOf[i]+1]++;
+        }
+        for(int s=0; s<segments; s++){
+            offsets[s+1] += offsets[s];
+        }
+        double[] groupedRTs = new double[n];
+        double[] groupedShifts = new double[n];
+        int[] next = Arrays.copyOf(offsets, segments);
+        for(int i=0; i<n; i++){
+            int position = next[segmentOf[i]]++;
+            groupedRTs[position] = sampleRTs[i];
+            groupedShifts[position] = referenceRTs[i] - sampleRTs[i];
+        }
+        double[] knotRTs = new double[segments];
+        double[] knotReferenceRTs = new double[segments];
+        double[] weights = new double[segments];
+        int knots = 0;
+        for(int s=0; s<segments; s++){
+            int count = offsets[s+1] - offsets[s];
+            //segments with too few anchors are skipped (they are interpolated between the neighbouring knots)
+            if(count >= MIN_SEGMENT_ANCHORS/2){
+                double rt = PrimitiveStatistics.median(Arrays.copyOfRange(groupedRTs, offsets[s], offsets[s+1]));
+                double shift = PrimitiveStatistics.median(Arrays.copyOfRange(groupedShifts, offsets[s], offsets[s+1]));
+                knotRTs[knots] = rt;
+                knotReferenceRTs[knots] = rt + shift;
+                weights[knots] = count;
+                knots++;
+            }
+        }
+        if(knots == 0){
+            return identity();
+        }
+        knotRTs = Arrays.copyOf(knotRTs, knots);
+        knotReferenceRTs = makeMonotone(Arrays.copyOf(knotReferenceRTs, knots), weights);
+        return new RTWarp(knotRTs, knotReferenceRTs);
+    }
+
+    /**
+     * The weighted pool adjacent violators algorithm: replaces each run of decreasing values with their weighted mean,
+     * which gives the closest non-decreasing sequence (in the weighted least squares sense)
+     */
+    private static double[] makeMonotone(double[] values, double[] weights){
+        int n = values.length;
+        double[] means = new double[n];
+        double[] blockWeights = new double[n];
+        int[] blockSizes = new int[n];
+        int blocks = 0;
+        for(int i=0; i<n; i++){
+            means[blocks] = values[i];
+            blockWeights[blocks] = weights[i];
+            blockSizes[blocks] = 1;
+            blocks++;
+            while(blocks > 1 && means[blocks-2] > means[blocks-1]){
+                double weight = blockWeights[blocks-2] + blockWeights[blocks-1];
+                means[blocks-2] = (means[blocks-2]*blockWeights[blocks-2] + means[blocks-1]*blockWeights[blocks-1])/weight;
+                blockWeights[blocks-2] = weight;
+                blockSizes[blocks-2] += blockSizes[blocks-1];
+                blocks--;
+            }
+        }
+        double[] result = new double[n];
+        int position = 0;
+        for(int b=0; b<blocks; b++){
+            for(int i=0; i<blockSizes[b]; i++){
+                result[position++] = means[b];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Maps an RT from the sample onto the reference sample
+     * @param rt The RT in the sample
+     * @return the corrected RT
+     */
+    public double correct(double rt){
+        int n = sampleRTs.length;
+        if(n == 0){
+            return rt;
+        }
+        if(rt <= sampleRTs[0]){
+            return rt + (referenceRTs[0] - sampleRTs[0]);
+        }
+        if(rt >= sampleRTs[n-1]){
+            return rt + (referenceRTs[n-1] - sampleRTs[n-1]);
+        }
+        //finds the segment containing the RT (the last knot below it)
+        int low = 0;
+        int high = n - 1;
+        while(high - low > 1){
+            int mid = (low + high) >>> 1;
+            if(sampleRTs[mid] <= rt){
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        double fraction = (rt - sampleRTs[low])/(sampleRTs[high] - sampleRTs[low]);
+        return referenceRTs[low] + fraction*(referenceRTs[high] - referenceRTs[low]);
+    }
+
+    /**
+     * Maps an RT from the reference sample back onto the sample (the inverse of correct). Where the warp is flat (a run
+     * of knots with the same reference RT), the last sample RT which maps onto it is returned.
+     * @param rt The RT in the reference sample
+     * @return the RT in the sample
+     */
+    public double inverse(double rt){
+        int n = sampleRTs.length;
+        if(n == 0){
+            return rt;
+        }
+        if(rt <= referenceRTs[0]){
+            return rt - (referenceRTs[0] - sampleRTs[0]);
+        }
+        if(rt >= referenceRTs[n-1]){
+            return rt - (referenceRTs[n-1] - sampleRTs[n-1]);
+        }
+        //finds the last knot at or below the RT (the next knot is then strictly above it, as the knots are monotone)
+        int low = 0;
+        int high = n - 1;
+        while(high - low > 1){
+            int mid = (low + high) >>> 1;
+            if(referenceRTs[mid] <= rt){
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        double fraction = (rt - referenceRTs[low])/(referenceRTs[high] - referenceRTs[low]);
+        return sampleRTs[low] + fraction*(sampleRTs[high] - sampleRTs[low]);
+    }
+}
@@ -0,0 +1,132 @@
+package lsi.sling.peakextraction;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Savitzky-Golay smoothing of primitive arrays. The convolution coefficients only depend on the window width and the
+ * polynomial order, so they are calculated once for each (window, order) pair and cached, rather than for every
+ * chromatogram. The filter gives the same results as the flanagan CurveSmooth.savitzkyGolay method (to within rounding
+ * errors): the window width is rounded up to an odd number, and the data is padded by repeating the end points.
+ */
+public final class SavitzkyGolayFilter {
+
+    private static final ConcurrentHashMap<Long, double[]> COEFFICIENTS = new ConcurrentHashMap<>();
+
+    private SavitzkyGolayFilter(){
+    }
+
+    /**
+     * Returns the (odd) window width which is actually used for the requested width
+     * @param width The requested window width
+     * @return the width rounded up to an odd number
+     */
+    public static int windowWidth(int width){
+        return width % 2 == 0 ? width + 1 : width;
+    }
+
+    /**
+     * Returns the convolution coefficients for smoothing (i.e. the 0th derivative) with the given window and order. The
+     * returned array is shared, so it mustn't be modified.
+     * @param window The (odd) window width
+     * @param order The order of the fitted polynomial
+     * @return the coefficients, centred on the middle of the window
+     */
+    public static double[] coefficients(int window, int order){
+        return COEFFICIENTS.computeIfAbsent(((long) window << 32) | order, k -> calculateCoefficients(window, order));
+    }
+
+    /**
+     * Smooths the data into the output array. The input and output arrays must be different, but the output array can
+     * be reused between calls.
+     * @param data The data to smooth
+     * @param smoothed The array to write the smoothed data to (at least as long as data)
+     * @param width The window width (rounded up to an odd number)
+     * @param order The order of the fitted polynomial
+     */
+    public static void smooth(double[] data, double[] smoothed, int width, int order){
+        int window = windowWidth(width);
+        double[] coefficients = coefficients(window, order);
+        int half = window/2;
+        int n = data.length;
+        for(int i=0; i<n; i++){
+            double value = 0;
+            for(int k=-half; k<=half; k++){
+                int j = i + k;
+                //pads the data by repeating the first and last points
+                double point = j < 0 ? data[0] : (j >= n ? data[n-1] : data[j]);
+                value += coefficients[k+half]*point;
+            }
+            smoothed[i] = value;
+        }
+    }
+
+    /**
+     * Finds the local minima of the smoothed data, using the same rule as CurveSmooth.getMinimaSavitzkyGolay (a point
+     * which is strictly lower than both neighbours, not including the first two or the last point).
+     * @param smoothed The smoothed data
+     * @param minima The array to write the indices of the minima to (at least as long as smoothed)
+     * @return the number of minima found
+     */
+    public static int findMinima(double[] smoothed, int[] minima){
+        int count = 0;
+        for(int i=2; i<smoothed.length-1; i++){
+            if(smoothed[i-1] > smoothed[i] && smoothed[i] < smoothed[i+1]){
+                minima[count++] = i;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Calculates the least squares smoothing coefficients, which are the first row of (A^T A)^-1 A^T where A is the
+     * Vandermonde matrix of the window positions
+     */
+    private static double[] calculateCoefficients(int window, int order){
+        int half = window/2;
+        int m = order + 1;
+        //the augmented matrix [A^T A | I], which is inverted with gauss-jordan elimination
+        double[][] matrix = new double[m][2*m];
+        for(int p=0; p<m; p++){
+            for(int q=0; q<m; q++){
+                double sum = 0;
+                for(int i=-half; i<=half; i++){
+                    sum += Math.pow(i, p+q);
+                }
+                matrix[p][q] = sum;
+            }
+            matrix[p][m+p] = 1;
+        }
+        for(int column=0; column<m; column++){
+            int pivot = column;
+            for(int row=column+1; row<m; row++){
+                if(Math.abs(matrix[row][column]) > Math.abs(matrix[pivot][column])){
+                    pivot = row;
+                }
+            }
+            double[] temp = matrix[column];
+            matrix[column] = matrix[pivot];
+            matrix[pivot] = temp;
+            double divisor = matrix[column][column];
+            for(int j=0; j<2*m; j++){
+                matrix[column][j] /= divisor;
+            }
+            for(int row=0; row<m; row++){
+                if(row != column){
+                    double factor = matrix[row][column];
+                    for(int j=0; j<2*m; j++){
+                        matrix[row][j] -= factor*matrix[column][j];
+                    }
+                }
+            }
+        }
+        double[] coefficients = new double[window];
+        for(int i=-half; i<=half; i++){
+            double value = 0;
+            for(int q=0; q<m; q++){
+                value += matrix[q][m]*Math.pow(i, q);
+            }
+            coefficients[i+half] = value;
+        }
+        return coefficients;
+    }
+}
@@ -0,0 +1,218 @@
+package lsi.sling.resulthandling;
+
+import lsi.sling.peakextraction.AlignedPeakCluster;
+import lsi.sling.statistics.PrimitiveSort;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A read-only index of the aligned features by (m/z, RT), which is built once after the alignment. The features are
+ * sorted by m/z and split into buckets of consecutive features, and the RT range of each bucket is stored so that whole
+ * buckets can be skipped when they are outside the RT range of a query. A query therefore only looks at the buckets in
+ * its m/z range, rather than every feature.
+ * <p>
+ * The queries return the indices of the features in the list (or FeatureMatrix) the index was built from. The index is
+ * Serializable, so it can be saved with a study and queried later without re-running the alignment.
+ */
+public class FeatureIndex implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int BUCKET_SIZE = 64;
+
+    private double[] mzs; //sorted
+    private double[] rts; //in the same order as mzs
+    private int[] features; //the original index of each feature
+    private double[] bucketMinRT;
+    private double[] bucketMaxRT;
+
+    /**
+     * Creates an index of the given AlignedPeakClusters (by their median m/z and RT)
+     * @param alignedPeakClusters The clusters to index
+     */
+    public FeatureIndex(List<AlignedPeakCluster> alignedPeakClusters){
+        this(alignedPeakClusters.stream().mapToDouble(AlignedPeakCluster::getMedianMZ).toArray(),
+                alignedPeakClusters.stream().mapToDouble(AlignedPeakCluster::getMedianRT).toArray());
+    }
+
+    /**
+     * Creates an index of the features in a FeatureMatrix (e.g. one read from a saved study)
+     * @param matrix The matrix to index
+     */
+    public FeatureIndex(FeatureMatrix matrix){
+        this(featureColumn(matrix, true), featureColumn(matrix, false));
+    }
+
+    /**
+     * Creates an index of features given their m/z values and RTs
+     * @param featureMZs The m/z of each feature
+     * @param featureRTs The RT of each feature
+     */
+    public FeatureIndex(double[] featureMZs, double[] featureRTs){
+        int n = featureMZs.length;
+        //sorts the features by m/z
+        int[] order = PrimitiveSort.order(featureMZs, false);
+        mzs = new double[n];
+        rts = new double[n];
+        features = new int[n];
+        for(int i=0; i<n; i++){
+            features[i] = order[i];
+            mzs[i] = featureMZs[order[i]];
+            rts[i] = featureRTs[order[i]];
+        }
+        int buckets = (n + BUCKET_SIZE - 1)/BUCKET_SIZE;
+        bucketMinRT = new double[buckets];
+        bucketMaxRT = new double[buckets];
+        for(int b=0; b<buckets; b++){
+            double min = Double.MAX_VALUE;
+            double max = -Double.MAX_VALUE;
+            for(int i=b*BUCKET_SIZE; i<Math.min(n, (b+1)*BUCKET_SIZE); i++){
+                min = Math.min(min, rts[i]);
+                max = Math.max(max, rts[i]);
+            }
+            bucketMinRT[b] = min;
+            bucketMaxRT[b] = max;
+        }
+    }
+
+    private static double[] featureColumn(FeatureMatrix matrix, boolean mz){
+        double[] values = new double[matrix.getFeatureCount()];
+        for(int f=0; f<values.length; f++){
+            values[f] = mz ? matrix.getMZ(f) : matrix.getRT(f);
+        }
+        return values;
+    }
+
+    /**
+     * Finds every feature with m/z in [mzMin, mzMax] and RT in [rtMin, rtMax]
+     * @return the indices of the features (in ascending order of m/z)
+     */
+    public int[] range(double mzMin, double mzMax, double rtMin, double rtMax){
+        int start = lowerBound(mzMin);
+        int[] result = new int[16];
+        int count = 0;
+        int i = start;
+        while(i < mzs.length && mzs[i] <= mzMax){
+            int bucket = i/BUCKET_SIZE;
+            int bucketEnd = Math.min(mzs.length, (bucket+1)*BUCKET_SIZE);
+            if(bucketMaxRT[bucket] < rtMin || bucketMinRT[bucket] > rtMax){
+                i = bucketEnd; //none of the features in this bucket are in the RT range
+                continue;
+            }
+            for(; i<bucketEnd && mzs[i] <= mzMax; i++){
+                if(rts[i] >= rtMin && rts[i] <= rtMax){
+                    if(count == result.length){
+                        result = Arrays.copyOf(result, count*2);
+                    }
+                    result[count++] = features[i];
+                }
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Finds every feature within the ppm tolerance of the m/z and within rtTolerance of the RT
+     * @return the indices of the features (in ascending order of m/z)
+     */
+    public int[] withinTolerance(double mz, double ppm, double rt, double rtTolerance){
+        double mzTolerance = (mz/1e6)*ppm;
+        return range(mz - mzTolerance, mz + mzTolerance, rt - rtTolerance, rt + rtTolerance);
+    }
+
+    /**
+     * Finds the feature closest to the given point. As the m/z and RT have different units, the distance is measured as
+     * sqrt((dmz/mzScale)^2 + (drt/rtScale)^2), e.g. using the ppm and RT tolerances of the instrument as the scales.
+     * @param mz The m/z of the point
+     * @param rt The RT of the point
+     * @param mzScale The m/z difference which counts as a distance of 1
+     * @param rtScale The RT difference which counts as a distance of 1
+     * @return the index of the nearest feature, or -1 if the index is empty
+     */
+    public int nearest(double mz, double rt, double mzScale, double rtScale){
+        int start = lowerBound(mz);
+        int best = -1;
+        double bestDistance = Double.MAX_VALUE;
+        //walks outwards in both directions, stopping once the m/z difference alone is further than the best so far
+        int below = start - 1;
+        int above = start;
+        while(below >= 0 || above < mzs.length){
+            double belowMZ = below >= 0 ? (mz - mzs[below])/mzScale : Double.MAX_VALUE;
+            double aboveMZ = above < mzs.length ? (mzs[above] - mz)/mzScale : Double.MAX_VALUE;
+            int i;
+            double dmz;
+            if(belowMZ <= aboveMZ){
+                i = below--;
+                dmz = belowMZ;
+            } else {
+                i = above++;
+                dmz = aboveMZ;
+            }
+            if(dmz*dmz >= bestDistance){
+                break;
+            }
+            double drt = (rts[i] - rt)/rtScale;
+            double distance = dmz*dmz + drt*drt;
+            if(distance < bestDistance){
+                bestDistance = distance;
+                best = features[i];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the number of features in the index
+     * @return the number of features
+     */
+    public int size(){
+        return mzs.length;
+    }
+
+    private int lowerBound(double mz){
+        int lo = 0;
+        int hi = mzs.length;
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(mzs[mid] < mz){
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Writes the index to a file
+     * @param file The file to write
+     * @throws IOException If there is an error writing the file
+     */
+    public void save(File file) throws IOException {
+        try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            oos.writeObject(this);
+        }
+    }
+
+    /**
+     * Reads an index previously written with save(File)
+     * @param file The file to read
+     * @return the FeatureIndex stored in the file
+     * @throws IOException If there is an error reading the file
+     * @throws ClassNotFoundException If the file doesn't contain a FeatureIndex
+     */
+    public static FeatureIndex load(File file) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return (FeatureIndex) ois.readObject();
+        }
+    }
+}
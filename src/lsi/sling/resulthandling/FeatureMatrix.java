@@ -0,0 +1,260 @@
+package lsi.sling.resulthandling;
+
+import com.opencsv.CSVWriter;
+import lsi.sling.databasehandling.Adduct;
+import lsi.sling.peakextraction.AlignedPeakCluster;
+import lsi.sling.peakextraction.LCPeakCluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * The results of a study as a samples x features matrix of intensities, along with the metadata of each feature (the
+ * median m/z, median RT, charge and the closest adducts). Everything is stored in primitive columns rather than as an
+ * object graph, so the matrix can be written to (and read back from) a compact columnar binary file, or streamed to a
+ * single CSV file.
+ */
+public class FeatureMatrix {
+
+    private static final int MAGIC = 0x534C464D; //"SLFM"
+    private static final int VERSION = 1;
+    //the number of rows written to the CSV file at once
+    private static final int CSV_BATCH_SIZE = 1000;
+
+    private String[] samples;
+    private double[] mzs;
+    private double[] rts;
+    private int[] charges;
+    private String[] adducts;
+    private float[][] intensities; //one column per sample, each containing one value per feature
+
+    private FeatureMatrix(String[] samples, double[] mzs, double[] rts, int[] charges, String[] adducts, float[][] intensities){
+        this.samples = samples;
+        this.mzs = mzs;
+        this.rts = rts;
+        this.charges = charges;
+        this.adducts = adducts;
+        this.intensities = intensities;
+    }
+
+    /**
+     * Builds the matrix from the aligned clusters. The intensity of a feature in a sample is the main intensity of its
+     * LCPeakCluster from that sample, or the gap filled intensity if it doesn't have one (0 if it hasn't been gap
+     * filled). The features are filled in parallel.
+     * @param alignedPeakClusters The aligned clusters (one per feature)
+     * @param samples The locations of the mzXML files (one per sample)
+     * @param topAdducts The maximum number of adducts to list for each feature (closest m/z first)
+     * @return the FeatureMatrix
+     */
+    public static FeatureMatrix build(List<AlignedPeakCluster> alignedPeakClusters, List<String> samples, int topAdducts){
+        int features = alignedPeakClusters.size();
+        double[] mzs = new double[features];
+        double[] rts = new double[features];
+        int[] charges = new int[features];
+        String[] adducts = new String[features];
+        float[][] intensities = new float[samples.size()][features];
+        IntStream.range(0, features).parallel().forEach(f -> {
+            AlignedPeakCluster alignedPeakCluster = alignedPeakClusters.get(f);
+            mzs[f] = alignedPeakCluster.getMedianMZ();
+            rts[f] = alignedPeakCluster.getMedianRT();
+            charges[f] = alignedPeakCluster.getCharge();
+            adducts[f] = describeAdducts(alignedPeakCluster, topAdducts);
+            //the most intense member from each sample (looked up once, rather than searching the members per sample)
+            HashMap<String, Double> memberIntensities = new HashMap<>();
+            for(LCPeakCluster cluster : alignedPeakCluster.getClusters()){
+                memberIntensities.merge(cluster.getFileLocation(), cluster.getMainIntensity(), Math::max);
+            }
+            Map<String, Double> gapFilled = alignedPeakCluster.getGapFilledIntensities();
+            for(int s=0; s<samples.size(); s++){
+                Double intensity = memberIntensities.get(samples.get(s));
+                if(intensity == null){
+                    intensity = gapFilled.getOrDefault(samples.get(s), 0.0);
+                }
+                intensities[s][f] = intensity.floatValue();
+            }
+        });
+        return new FeatureMatrix(samples.toArray(new String[0]), mzs, rts, charges, adducts, intensities);
+    }
+
+    /**
+     * Lists the adducts closest (in m/z) to the median m/z of the cluster as "name [ion]", separated by semicolons
+     */
+    private static String describeAdducts(AlignedPeakCluster alignedPeakCluster, int topAdducts){
+        if(alignedPeakCluster.getAdductList() == null || alignedPeakCluster.getAdductList().isEmpty()){
+            return "";
+        }
+        ArrayList<Adduct> sorted = new ArrayList<>(alignedPeakCluster.getAdductList());
+        double mz = alignedPeakCluster.getMedianMZ();
+        sorted.sort((a, b) -> Double.compare(Math.abs(a.getResultMZ() - mz), Math.abs(b.getResultMZ() - mz)));
+        StringBuilder sb = new StringBuilder();
+        for(int i=0; i<Math.min(topAdducts, sorted.size()); i++){
+            if(i > 0){
+                sb.append(';');
+            }
+            sb.append(sorted.get(i).getCompoundCommonName()).append(" [").append(sorted.get(i).getIonName()).append(']');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the matrix to a columnar binary file. After a header (the format version, the number of samples and
+     * features and the sample names), each column is written in turn: the m/z values, RTs, charges and adducts of the
+     * features, then the intensities of each sample.
+     * @param file The file to write
+     * @throws IOException If there is an error writing the file
+     */
+    public void writeBinary(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(samples.length);
+            out.writeInt(mzs.length);
+            for(String sample : samples){
+                out.writeUTF(sample);
+            }
+            for(double mz : mzs){
+                out.writeDouble(mz);
+            }
+            for(double rt : rts){
+                out.writeDouble(rt);
+            }
+            for(int charge : charges){
+                out.writeInt(charge);
+            }
+            for(String adduct : adducts){
+                out.writeUTF(adduct);
+            }
+            for(float[] column : intensities){
+                for(float intensity : column){
+                    out.writeFloat(intensity);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a matrix written by writeBinary(File)
+     * @param file The file to read
+     * @return the FeatureMatrix stored in the file
+     * @throws IOException If there is an error reading the file, or it isn't a feature matrix file
+     */
+    public static FeatureMatrix readBinary(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if(in.readInt() != MAGIC){
+                throw new IOException(file + " is not a feature matrix file");
+            }
+            int version = in.readInt();
+            if(version != VERSION){
+                throw new IOException("Unsupported feature matrix version " + version);
+            }
+            String[] samples = new String[in.readInt()];
+            int features = in.readInt();
+            for(int s=0; s<samples.length; s++){
+                samples[s] = in.readUTF();
+            }
+            double[] mzs = new double[features];
+            for(int f=0; f<features; f++){
+                mzs[f] = in.readDouble();
+            }
+            double[] rts = new double[features];
+            for(int f=0; f<features; f++){
+                rts[f] = in.readDouble();
+            }
+            int[] charges = new int[features];
+            for(int f=0; f<features; f++){
+                charges[f] = in.readInt();
+            }
+            String[] adducts = new String[features];
+            for(int f=0; f<features; f++){
+                adducts[f] = in.readUTF();
+            }
+            float[][] intensities = new float[samples.length][features];
+            for(float[] column : intensities){
+                for(int f=0; f<features; f++){
+                    column[f] = in.readFloat();
+                }
+            }
+            return new FeatureMatrix(samples, mzs, rts, charges, adducts, intensities);
+        }
+    }
+
+    /**
+     * Writes the matrix to a single CSV file, with one row per feature (the metadata followed by the intensity in each
+     * sample). The rows are written in batches through a buffered writer.
+     * @param file The file to write
+     * @throws IOException If there is an error writing the file
+     */
+    public void writeCSV(File file) throws IOException {
+        try (CSVWriter csvWriter = new CSVWriter(new BufferedWriter(new FileWriter(file), 1 << 16))) {
+            String[] header = new String[4 + samples.length];
+            header[0] = "mz";
+            header[1] = "rt";
+            header[2] = "charge";
+            header[3] = "adducts";
+            System.arraycopy(samples, 0, header, 4, samples.length);
+            csvWriter.writeNext(header);
+            ArrayList<String[]> batch = new ArrayList<>(CSV_BATCH_SIZE);
+            for(int f=0; f<mzs.length; f++){
+                String[] row = new String[4 + samples.length];
+                row[0] = Double.toString(mzs[f]);
+                row[1] = Double.toString(rts[f]);
+                row[2] = Integer.toString(charges[f]);
+                row[3] = adducts[f];
+                for(int s=0; s<samples.length; s++){
+                    row[4 + s] = Float.toString(intensities[s][f]);
+                }
+                batch.add(row);
+                if(batch.size() == CSV_BATCH_SIZE){
+                    csvWriter.writeAll(batch);
+                    batch.clear();
+                }
+            }
+            csvWriter.writeAll(batch);
+        }
+    }
+
+    public int getSampleCount(){
+        return samples.length;
+    }
+
+    public int getFeatureCount(){
+        return mzs.length;
+    }
+
+    public String getSample(int sample){
+        return samples[sample];
+    }
+
+    public double getMZ(int feature){
+        return mzs[feature];
+    }
+
+    public double getRT(int feature){
+        return rts[feature];
+    }
+
+    public int getCharge(int feature){
+        return charges[feature];
+    }
+
+    public String getAdducts(int feature){
+        return adducts[feature];
+    }
+
+    public double getIntensity(int sample, int feature){
+        return intensities[sample][feature];
+    }
+}
@@ -0,0 +1,61 @@
+package lsi.sling.statistics;
+
+import java.util.Arrays;
+
+/**
+ * Sorts indices by a primitive key column, without boxing the indices or calling a comparator for every comparison.
+ * Each index is packed into a long along with its key (the float bits of the key in the upper 32 bits, the index in the
+ * lower 32 bits) and the longs are sorted in parallel. Runs of indices with the same float key are then put in the exact
+ * (double) order, which only ever touches a handful of indices.
+ */
+public final class PrimitiveSort {
+
+    private PrimitiveSort(){
+    }
+
+    /**
+     * Returns the order of the keys, giving exactly the same order as a stable sort of the indices with
+     * Double.compare (i.e. equal keys stay in their original order)
+     * @param keys The keys to sort by
+     * @param descending Whether to sort into descending rather than ascending order
+     * @return the indices of the keys in sorted order
+     */
+    public static int[] order(double[] keys, boolean descending){
+        int n = keys.length;
+        long[] packed = new long[n];
+        for(int i=0; i<n; i++){
+            int key = sortableBits(keys[i]);
+            packed[i] = ((long) (descending ? ~key : key) << 32) | i;
+        }
+        Arrays.parallelSort(packed);
+        int[] order = new int[n];
+        int runStart = 0;
+        for(int i=0; i<n; i++){
+            order[i] = (int) packed[i];
+            if(i == n-1 || (packed[i+1] >>> 32) != (packed[i] >>> 32)){
+                //a stable insertion sort of the run by the exact key
+                for(int j=runStart+1; j<=i; j++){
+                    int index = order[j];
+                    int k = j-1;
+                    while(k >= runStart && (descending ? Double.compare(keys[order[k]], keys[index]) < 0
+                            : Double.compare(keys[order[k]], keys[index]) > 0)){
+                        order[k+1] = order[k];
+                        k--;
+                    }
+                    order[k+1] = index;
+                }
+                runStart = i+1;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Maps a value to 32 bits whose (signed) int order matches the order of the values
+     */
+    private static int sortableBits(double value){
+        int bits = Float.floatToIntBits((float) value);
+        //flips the bits of negative values so the (signed) int order matches the float order
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+}
@@ -0,0 +1,89 @@
+package lsi.sling.statistics;
+
+/**
+ * Summary statistics calculated directly on primitive arrays. These are used for the centroids of the clusters (of
+ * which there can be millions per study), so they avoid the copying and sorting done by DescriptiveStatistics.
+ */
+public final class PrimitiveStatistics {
+
+    private PrimitiveStatistics(){
+    }
+
+    /**
+     * Finds the median of the values using quickselect, which takes O(n) time rather than the O(n log n) needed to sort
+     * the values. The result is the same as DescriptiveStatistics.getPercentile(50) (i.e. for an even number of values,
+     * the point halfway between the two middle values).
+     * <p>
+     * The array is partially reordered in place, so a copy should be passed if the order of the values matters.
+     * @param values The values to find the median of
+     * @return the median, or NaN if there are no values
+     */
+    public static double median(double[] values){
+        int n = values.length;
+        if(n == 0){
+            return Double.NaN;
+        }
+        if(n == 1){
+            return values[0];
+        }
+        //the same position estimate as the (legacy) Percentile class: pos = (n+1)/2
+        int lowerIndex = (n - 1)/2;
+        double lower = select(values, lowerIndex);
+        if(n % 2 == 1){
+            return lower;
+        }
+        //after selecting, everything above lowerIndex is >= lower, so the next value is just the minimum of those
+        double upper = values[lowerIndex+1];
+        for(int i=lowerIndex+2; i<n; i++){
+            if(values[i] < upper){
+                upper = values[i];
+            }
+        }
+        return lower + 0.5*(upper - lower);
+    }
+
+    /**
+     * Rearranges the values so that the value at position k is the one which would be there if the array was sorted,
+     * with all of the smaller values before it and all of the larger values after it (Hoare's selection algorithm)
+     * @param values The values to select from
+     * @param k The (sorted) position of the value to find
+     * @return the k-th smallest value
+     */
+    public static double select(double[] values, int k){
+        int lo = 0;
+        int hi = values.length - 1;
+        while(hi > lo){
+            //median of three pivot, to avoid the worst case for sorted input
+            int mid = (lo + hi) >>> 1;
+            if(values[mid] < values[lo]) swap(values, mid, lo);
+            if(values[hi] < values[lo]) swap(values, hi, lo);
+            if(values[hi] < values[mid]) swap(values, hi, mid);
+            double pivot = values[mid];
+            int i = lo;
+            int j = hi;
+            while(i <= j){
+                while(values[i] < pivot) i++;
+                while(values[j] > pivot) j--;
+                if(i <= j){
+                    swap(values, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if(k <= j){
+                hi = j;
+            } else if(k >= i){
+                lo = i;
+            } else {
+                return values[k];
+            }
+        }
+        return values[k];
+    }
+
+    private static void swap(double[] values, int i, int j){
+        double temp = values[i];
+        values[i] = values[j];
+        values[j] = temp;
+    }
+}
@@ -0,0 +1,61 @@
+package lsi.sling.FragmentHandling;
+
+import org.apache.commons.math3.ml.clustering.Cluster;
+import org.apache.commons.math3.ml.clustering.DBSCANClusterer;
+import org.apache.commons.math3.ml.clustering.DoublePoint;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FragmentDBSCANTest {
+
+    @Test
+    public void matchesDBSCANClusterer(){
+        Random random = new Random(3);
+        for(int repeat=0; repeat<50; repeat++){
+            //a few scans of fragments around shared m/z values, so there are clusters, border points and noise
+            FragmentArena arena = new FragmentArena();
+            int scans = 1 + random.nextInt(10);
+            int[] offsets = new int[scans];
+            int[] lengths = new int[scans];
+            for(int s=0; s<scans; s++){
+                double[] mzs = new double[random.nextInt(40)];
+                for(int i=0; i<mzs.length; i++){
+                    mzs[i] = 100 + random.nextInt(10) + random.nextGaussian()*0.01;
+                }
+                lengths[s] = mzs.length;
+                offsets[s] = arena.append(mzs, new double[mzs.length], random.nextDouble()*0.05);
+            }
+            FragmentView view = new FragmentView(arena, offsets, lengths, scans);
+            double eps = 0.005 + random.nextDouble()*0.02;
+            int minPts = random.nextInt(4);
+
+            List<DoublePoint> points = new ArrayList<>();
+            IdentityHashMap<DoublePoint, Integer> arenaIndices = new IdentityHashMap<>();
+            for(int i=0; i<view.size(); i++){
+                int index = view.arenaIndex(i);
+                DoublePoint point = new DoublePoint(new double[]{arena.getMZ(index), arena.getRT(index)});
+                points.add(point);
+                arenaIndices.put(point, index);
+            }
+            List<Cluster<DoublePoint>> expected = new DBSCANClusterer<DoublePoint>(eps, minPts).cluster(points);
+            List<int[]> actual = new FragmentDBSCAN(eps, minPts).cluster(view);
+
+            assertEquals(expected.size(), actual.size());
+            for(int c=0; c<expected.size(); c++){
+                int[] expectedMembers = expected.get(c).getPoints().stream().mapToInt(arenaIndices::get).toArray();
+                int[] actualMembers = actual.get(c).clone();
+                Arrays.sort(expectedMembers);
+                Arrays.sort(actualMembers);
+                assertArrayEquals(expectedMembers, actualMembers);
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package lsi.sling.FragmentHandling;
+
+import org.apache.commons.math3.ml.clustering.Cluster;
+import org.apache.commons.math3.ml.clustering.DBSCANClusterer;
+import org.apache.commons.math3.ml.clustering.DoublePoint;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+
+public class SortedSweepClustererTest {
+
+    @Test
+    public void matchesDBSCANClustererWithoutMinimumPoints(){
+        Random random = new Random(4);
+        for(int repeat=0; repeat<100; repeat++){
+            double eps = 0.01 + random.nextDouble()*0.1;
+            List<DoublePoint> points = new ArrayList<>();
+            for(int i=random.nextInt(200); i>0; i--){
+                points.add(new DoublePoint(new double[]{random.nextInt(20) + random.nextDouble()*0.2}));
+            }
+            List<Cluster<DoublePoint>> expected = new DBSCANClusterer<DoublePoint>(eps, 0).cluster(points);
+            List<List<DoublePoint>> actual = new SortedSweepClusterer<DoublePoint>(eps, p -> p.getPoint()[0]).cluster(points);
+
+            TreeSet<String> expectedClusters = new TreeSet<>();
+            for(Cluster<DoublePoint> cluster : expected){
+                expectedClusters.add(describe(cluster.getPoints()));
+            }
+            TreeSet<String> actualClusters = new TreeSet<>();
+            for(List<DoublePoint> cluster : actual){
+                actualClusters.add(describe(cluster));
+            }
+            assertEquals(expectedClusters, actualClusters);
+        }
+    }
+
+    /**
+     * The sorted positions of the points in a cluster
+     */
+    private static String describe(List<DoublePoint> cluster){
+        double[] positions = cluster.stream().mapToDouble(p -> p.getPoint()[0]).toArray();
+        Arrays.sort(positions);
+        return Arrays.toString(positions);
+    }
+}
@@ -0,0 +1,105 @@
+package lsi.sling.mzxmlfilehandling;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CentroiderTest {
+
+    /**
+     * Evenly spaced m/z values
+     */
+    private static double[] mzs(int n, double start, double step){
+        double[] mzs = new double[n];
+        for(int i=0; i<n; i++){
+            mzs[i] = start + i*step;
+        }
+        return mzs;
+    }
+
+    @Test
+    public void flatTopIsCountedOnceAndCentredOnItsMiddle(){
+        CachedSpectrum centroided = Centroider.centroid(new double[]{100.0, 100.1, 100.2, 100.3}, new double[]{5, 10, 10, 5});
+        assertArrayEquals(new double[]{30}, centroided.getIntensities(), 0);
+        assertArrayEquals(new double[]{100.15}, centroided.getMZs(), 1e-12);
+
+        centroided = Centroider.centroid(mzs(7, 100, 0.1), new double[]{0, 2, 8, 8, 8, 3, 0});
+        assertArrayEquals(new double[]{29}, centroided.getIntensities(), 0);
+        assertArrayEquals(new double[]{100.3}, centroided.getMZs(), 1e-12);
+    }
+
+    @Test
+    public void shouldersOfEqualIntensityStayInThePeak(){
+        CachedSpectrum centroided = Centroider.centroid(mzs(6, 100, 0.1), new double[]{1, 1, 10, 8, 8, 5});
+        assertArrayEquals(new double[]{33}, centroided.getIntensities(), 0);
+    }
+
+    @Test
+    public void doubletIsSplitAtTheValley(){
+        //two overlapping gaussians, with the valley point counted in the first peak only
+        double[] mzs = mzs(400, 500, 0.0005);
+        double[] intensities = new double[mzs.length];
+        for(int i=0; i<mzs.length; i++){
+            intensities[i] = 1e5*gaussian(mzs[i], 500.08, 0.006) + 4e4*gaussian(mzs[i], 500.11, 0.006);
+        }
+        CachedSpectrum centroided = Centroider.centroid(mzs, intensities);
+        assertEquals(2, centroided.getMZs().length);
+        assertEquals(500.08, centroided.getMZs()[0], 0.0005);
+        assertEquals(500.11, centroided.getMZs()[1], 0.001);
+        assertEquals(sum(intensities), centroided.getIntensities()[0] + centroided.getIntensities()[1], 1e-6);
+        assertEquals(true, centroided.getIntensities()[0] > 2*centroided.getIntensities()[1]);
+    }
+
+    @Test
+    public void gaussianApexIsInterpolated(){
+        double[] mzs = mzs(200, 300, 0.0023);
+        double[] intensities = new double[mzs.length];
+        for(int i=0; i<mzs.length; i++){
+            intensities[i] = 1e5*gaussian(mzs[i], 300.12345, 0.0009);
+        }
+        CachedSpectrum centroided = Centroider.centroid(mzs, intensities);
+        assertEquals(1, centroided.getMZs().length);
+        assertEquals(300.12345, centroided.getMZs()[0], 1e-9);
+    }
+
+    @Test
+    public void gapsSplitPeaks(){
+        //the zero intensity points between the peaks have been left out, so the peaks are separated by a gap
+        CachedSpectrum centroided = Centroider.centroid(new double[]{100.0, 100.01, 100.02, 100.5, 100.51, 100.52},
+                new double[]{2, 6, 3, 1, 4, 1});
+        assertArrayEquals(new double[]{11, 6}, centroided.getIntensities(), 0);
+    }
+
+    @Test
+    public void everyPointIsCountedOnce(){
+        Random random = new Random(11);
+        for(int repeat=0; repeat<1000; repeat++){
+            double[] mzs = mzs(1 + random.nextInt(100), 100, 0.01);
+            double[] intensities = new double[mzs.length];
+            for(int i=0; i<mzs.length; i++){
+                //a few distinct intensities, so that there are plenty of plateaus and shoulders
+                intensities[i] = random.nextInt(6);
+            }
+            CachedSpectrum centroided = Centroider.centroid(mzs, intensities);
+            assertEquals(sum(intensities), sum(centroided.getIntensities()), 0);
+            for(int i=1; i<centroided.getMZs().length; i++){
+                assertEquals(true, centroided.getMZs()[i] > centroided.getMZs()[i-1]);
+            }
+        }
+    }
+
+    private static double gaussian(double x, double centre, double sigma){
+        return Math.exp(-0.5*Math.pow((x - centre)/sigma, 2));
+    }
+
+    private static double sum(double[] values){
+        double sum = 0;
+        for(double value : values){
+            sum += value;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,50 @@
+package lsi.sling.mzxmlfilehandling;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class IntensityAccumulatorTest {
+
+    @Test
+    public void mergedScansMatchASinglePass(){
+        Random random = new Random(5);
+        IntensityAccumulator single = new IntensityAccumulator(100, 2);
+        IntensityAccumulator merged = new IntensityAccumulator(100, 2);
+        for(int scan=0; scan<200; scan++){
+            double rt = scan*0.05;
+            double[] mzs = new double[random.nextInt(300)];
+            double[] intensities = new double[mzs.length];
+            for(int i=0; i<mzs.length; i++){
+                mzs[i] = 100 + random.nextDouble()*900;
+                intensities[i] = Math.exp(random.nextGaussian()*2 + 8);
+            }
+            single.addSpectrum(mzs, intensities, rt);
+            IntensityAccumulator scanAccumulator = new IntensityAccumulator(100, 2);
+            scanAccumulator.addSpectrum(mzs, intensities, rt);
+            merged.merge(scanAccumulator);
+        }
+        assertEquals(single.getCount(), merged.getCount());
+        assertEquals(single.getMean(), merged.getMean(), single.getMean()*1e-12);
+        assertEquals(single.getStandardDeviation(), merged.getStandardDeviation(), single.getStandardDeviation()*1e-12);
+        for(double mz=150; mz<1000; mz+=100){
+            for(double rt=0; rt<10; rt+=1.5){
+                double expected = single.getThreshold(mz, rt, 3);
+                assertEquals(expected, merged.getThreshold(mz, rt, 3), expected*1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void mergingAnEmptyAccumulatorChangesNothing(){
+        IntensityAccumulator accumulator = new IntensityAccumulator();
+        accumulator.addSpectrum(new double[]{100, 200, 300}, new double[]{1, 2, 6}, 0);
+        accumulator.merge(new IntensityAccumulator());
+        new IntensityAccumulator().merge(accumulator);
+        assertEquals(3, accumulator.getCount());
+        assertEquals(3, accumulator.getMean(), 1e-12);
+        assertEquals(Math.sqrt(7), accumulator.getStandardDeviation(), 1e-12);
+    }
+}
@@ -0,0 +1,76 @@
+package lsi.sling.mzxmlfilehandling;
+
+import lsi.sling.peakextraction.LocalPeak;
+import lsi.sling.peakextraction.PeakTable;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MassAccuracyEstimatorTest {
+
+    private static final int SCANS = 40;
+
+    private PeakTable peakTable;
+    private List<LocalPeak> byIntensity;
+
+    /**
+     * Builds a peak table of ions which are present in every scan, with the measured m/z of each point scattered
+     * normally around the true m/z of its ion
+     * @param sigmas The standard deviation (in ppm) of the m/z of each ion, from the most to the least intense ion
+     */
+    private void build(double[] sigmas, long seed){
+        Random random = new Random(seed);
+        ArrayList<LocalPeak> peaks = new ArrayList<>();
+        int[] scanOffsets = new int[SCANS+1];
+        double[] scanRTs = new double[SCANS];
+        for(int s=0; s<SCANS; s++){
+            scanOffsets[s] = peaks.size();
+            scanRTs[s] = s*0.05;
+            //the ions are 1 Da apart, far outside the ppm window, so they are in ascending order of m/z in each scan
+            for(int ion=0; ion<sigmas.length; ion++){
+                double mz = 200 + ion;
+                double intensity = 1e6/(ion + 1)*(1 + 0.5*Math.sin(s + ion));
+                peaks.add(new LocalPeak(s, intensity, mz*(1 + random.nextGaussian()*sigmas[ion]/1e6), scanRTs[s]));
+            }
+        }
+        scanOffsets[SCANS] = peaks.size();
+        peakTable = new PeakTable(peaks.toArray(new LocalPeak[0]), scanOffsets, scanRTs);
+        byIntensity = new ArrayList<>(peaks);
+        byIntensity.sort(Comparator.comparingDouble(LocalPeak::getIntensity).reversed());
+    }
+
+    @Test
+    public void recoversAKnownScatter(){
+        double[] sigmas = new double[500];
+        Arrays.fill(sigmas, 2);
+        build(sigmas, 3);
+        //the tolerance is 3 standard deviations
+        assertEquals(6, MassAccuracyEstimator.estimate(peakTable, byIntensity, 20), 0.5);
+    }
+
+    @Test
+    public void reflectsTheWeakerIons(){
+        //the few most intense ions are measured far better than the rest
+        double[] sigmas = new double[500];
+        for(int ion=0; ion<sigmas.length; ion++){
+            sigmas[ion] = ion < 25 ? 0.5 : 3;
+        }
+        build(sigmas, 5);
+        double ppm = MassAccuracyEstimator.estimate(peakTable, byIntensity, 20);
+        assertTrue("estimated " + ppm + " ppm", ppm > 7.5 && ppm < 10);
+    }
+
+    @Test
+    public void fallsBackToTheWidestTolerance(){
+        //a single ion gives too few traces for an estimate
+        build(new double[]{2}, 7);
+        assertEquals(20, MassAccuracyEstimator.estimate(peakTable, byIntensity, 20), 0);
+    }
+}
@@ -0,0 +1,73 @@
+package lsi.sling.mzxmlfilehandling;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PrecursorAssignerTest {
+
+    @Test
+    public void equallyCloseTargetUsesTheLowerPoint(){
+        PrecursorAssigner assigner = new PrecursorAssigner(20, 0, false);
+        double[] mzs = {499.99, 500, 500.5, 501};
+        double[] intensities = {1, 1, 1, 1};
+        int[] precursors = assigner.assign(mzs, intensities, new double[]{500.25, 500.75}, nan(2), nan(2));
+        assertArrayEquals(new int[]{-1, -1}, precursors); //both are outside 20 ppm
+        precursors = new PrecursorAssigner(1000, 0, false).assign(mzs, intensities, new double[]{500.25, 500.75}, nan(2), nan(2));
+        assertArrayEquals(new int[]{1, 2}, precursors);
+    }
+
+    @Test
+    public void matchesALinearSearch(){
+        Random random = new Random(6);
+        for(int repeat=0; repeat<200; repeat++){
+            int ppm = 1 + random.nextInt(50);
+            //m/z values on a coarse grid so that targets are often exactly between two points
+            double[] mzs = new double[random.nextInt(100)];
+            for(int i=0; i<mzs.length; i++){
+                mzs[i] = 500 + random.nextInt(2000)*0.001;
+            }
+            Arrays.sort(mzs);
+            double[] targets = new double[20];
+            for(int i=0; i<targets.length; i++){
+                targets[i] = 500 + random.nextInt(4000)*0.0005;
+            }
+            int[] precursors = new PrecursorAssigner(ppm, 0, false).assign(mzs, new double[mzs.length], targets, nan(targets.length), nan(targets.length));
+            for(int i=0; i<targets.length; i++){
+                assertEquals(linearSearch(mzs, targets[i], ppm), precursors[i]);
+            }
+        }
+    }
+
+    @Test
+    public void isolationWindowUsesTheMostIntensePoint(){
+        PrecursorAssigner assigner = new PrecursorAssigner(20, 0, true);
+        double[] mzs = {499, 499.5, 500, 500.5, 501.5};
+        double[] intensities = {100, 5, 10, 50, 1};
+        int[] precursors = assigner.assign(mzs, intensities, new double[]{500, 500}, new double[]{499.4, Double.NaN}, new double[]{500.6, Double.NaN});
+        assertArrayEquals(new int[]{3, 2}, precursors);
+    }
+
+    /**
+     * The original assignment: the first point with the smallest distance to the target, if it is within the tolerance
+     */
+    private static int linearSearch(double[] mzs, double target, int ppm){
+        int closest = -1;
+        for(int i=0; i<mzs.length; i++){
+            if(closest == -1 || Math.abs(mzs[i]-target) < Math.abs(mzs[closest]-target)){
+                closest = i;
+            }
+        }
+        return closest != -1 && Math.abs(mzs[closest]-target) < (target/1e6)*ppm ? closest : -1;
+    }
+
+    private static double[] nan(int n){
+        double[] values = new double[n];
+        Arrays.fill(values, Double.NaN);
+        return values;
+    }
+}
@@ -0,0 +1,210 @@
+package lsi.sling.peakextraction;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class AlignmentStateTest {
+
+    private static final double PPM = 10;
+    private static final double RT_TOLERANCE = 0.2;
+
+    /**
+     * The LCPeakClusters of a sample, as the columns passed to addSample
+     */
+    private static class Sample {
+        private String name;
+        private double[] mzs;
+        private double[] rts;
+        private double[] intensities;
+        private int[] charges;
+    }
+
+    /**
+     * Simulates samples of the same compounds, some of which are close enough together to compete for the same feature
+     */
+    private static List<Sample> samples(int count, long seed){
+        Random random = new Random(seed);
+        int compounds = 400;
+        double[] mzs = new double[compounds];
+        double[] rts = new double[compounds];
+        for(int c=0; c<compounds; c++){
+            if(c > 0 && random.nextInt(4) == 0){
+                //a near neighbour of the previous compound, within the tolerances
+                mzs[c] = mzs[c-1]*(1 + (random.nextDouble() - 0.5)*PPM/1e6);
+                rts[c] = rts[c-1] + (random.nextDouble() - 0.5)*RT_TOLERANCE;
+            } else {
+                mzs[c] = 200 + random.nextDouble()*1000;
+                rts[c] = 1 + random.nextDouble()*29;
+            }
+        }
+        List<Sample> samples = new ArrayList<>();
+        for(int s=0; s<count; s++){
+            Sample sample = new Sample();
+            sample.name = "sample" + s + ".mzXML";
+            int n = 0;
+            sample.mzs = new double[compounds];
+            sample.rts = new double[compounds];
+            sample.intensities = new double[compounds];
+            sample.charges = new int[compounds];
+            for(int c=0; c<compounds; c++){
+                if(random.nextInt(5) == 0){
+                    continue; //the compound wasn't found in this sample
+                }
+                sample.mzs[n] = mzs[c]*(1 + random.nextGaussian()*2/1e6);
+                sample.rts[n] = rts[c] + random.nextGaussian()*0.03;
+                sample.intensities[n] = 1e4 + random.nextDouble()*1e7;
+                sample.charges[n] = c % 10 == 0 ? 2 : 1;
+                n++;
+            }
+            sample.mzs = Arrays.copyOf(sample.mzs, n);
+            sample.rts = Arrays.copyOf(sample.rts, n);
+            sample.intensities = Arrays.copyOf(sample.intensities, n);
+            sample.charges = Arrays.copyOf(sample.charges, n);
+            samples.add(sample);
+        }
+        return samples;
+    }
+
+    /**
+     * Aligns the samples the same way as AlignmentState, but comparing every cluster with every feature
+     */
+    private static int[][] linearAlignment(List<Sample> samples){
+        ArrayList<double[]> features = new ArrayList<>(); //{mean m/z, mean RT, count}
+        int[][] ids = new int[samples.size()][];
+        for(int s=0; s<samples.size(); s++){
+            Sample sample = samples.get(s);
+            ids[s] = new int[sample.mzs.length];
+            boolean[] used = new boolean[features.size() + sample.mzs.length];
+            Integer[] order = new Integer[sample.mzs.length];
+            for(int i=0; i<order.length; i++){
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(sample.intensities[b], sample.intensities[a]));
+            for(int i : order){
+                int closest = -1;
+                double closestDistance = 1;
+                for(int f=0; f<features.size(); f++){
+                    double[] feature = features.get(f);
+                    double dmz = (sample.mzs[i] - feature[0])/((feature[0]/1e6)*PPM);
+                    double drt = (sample.rts[i] - feature[1])/RT_TOLERANCE;
+                    double distance = dmz*dmz + drt*drt;
+                    if(distance <= closestDistance && !used[f]){
+                        closest = f;
+                        closestDistance = distance;
+                    }
+                }
+                if(closest == -1){
+                    closest = features.size();
+                    features.add(new double[3]);
+                }
+                double[] feature = features.get(closest);
+                feature[2]++;
+                feature[0] += (sample.mzs[i] - feature[0])/feature[2];
+                feature[1] += (sample.rts[i] - feature[1])/feature[2];
+                used[closest] = true;
+                ids[s][i] = closest;
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void addSampleMatchesALinearScan(){
+        List<Sample> samples = samples(20, 59);
+        AlignmentState state = new AlignmentState(PPM, RT_TOLERANCE);
+        int[][] expected = linearAlignment(samples);
+        for(int s=0; s<samples.size(); s++){
+            Sample sample = samples.get(s);
+            int[] ids = state.addSample(sample.name, sample.mzs, sample.rts, sample.intensities, sample.charges);
+            assertArrayEquals("sample " + s, expected[s], ids);
+        }
+    }
+
+    @Test
+    public void featureStatisticsMatchTheirMembers(){
+        List<Sample> samples = samples(15, 61);
+        AlignmentState state = new AlignmentState(PPM, RT_TOLERANCE);
+        List<List<double[]>> members = new ArrayList<>(); //{m/z, RT, intensity, charge} of each member of each feature
+        for(Sample sample : samples){
+            int[] ids = state.addSample(sample.name, sample.mzs, sample.rts, sample.intensities, sample.charges);
+            for(int i=0; i<ids.length; i++){
+                while(members.size() <= ids[i]){
+                    members.add(new ArrayList<>());
+                }
+                members.get(ids[i]).add(new double[]{sample.mzs[i], sample.rts[i], sample.intensities[i], sample.charges[i]});
+            }
+        }
+        assertEquals(members.size(), state.getFeatures().size());
+        for(AlignmentState.Feature feature : state.getFeatures()){
+            List<double[]> featureMembers = members.get(feature.getId());
+            int n = featureMembers.size();
+            assertEquals(n, feature.getCount());
+            assertEquals(n, feature.getSamples().size());
+            double[] intensities = featureMembers.stream().mapToDouble(m -> m[2]).toArray();
+            //the intensities are stored in the order the members were added (one per sample, in sample order)
+            assertArrayEquals(intensities, feature.getIntensities(), 0);
+            double meanMZ = featureMembers.stream().mapToDouble(m -> m[0]).average().getAsDouble();
+            double meanRT = featureMembers.stream().mapToDouble(m -> m[1]).average().getAsDouble();
+            assertEquals(meanMZ, feature.getMeanMZ(), 1e-9);
+            assertEquals(meanRT, feature.getMeanRT(), 1e-9);
+            if(n > 1){
+                double m2 = featureMembers.stream().mapToDouble(m -> (m[1] - meanRT)*(m[1] - meanRT)).sum();
+                assertEquals(Math.sqrt(m2/(n - 1)), feature.getRTStandardDeviation(), 1e-9);
+            }
+            assertEquals(featureMembers.stream().mapToDouble(m -> m[1]).min().getAsDouble(), feature.getMinRT(), 0);
+            assertEquals(featureMembers.stream().mapToDouble(m -> m[1]).max().getAsDouble(), feature.getMaxRT(), 0);
+            long doubleCharged = featureMembers.stream().filter(m -> m[3] == 2).count();
+            assertEquals(doubleCharged > n - doubleCharged ? 2 : 1, feature.getCharge());
+        }
+    }
+
+    @Test
+    public void loadedStateContinuesTheAlignment() throws Exception {
+        List<Sample> samples = samples(20, 67);
+        AlignmentState state = new AlignmentState(PPM, RT_TOLERANCE);
+        for(Sample sample : samples.subList(0, 10)){
+            state.addSample(sample.name, sample.mzs, sample.rts, sample.intensities, sample.charges);
+        }
+        File file = File.createTempFile("alignmentState", ".ser");
+        AlignmentState loaded;
+        try {
+            state.save(file);
+            loaded = AlignmentState.load(file);
+        } finally {
+            file.delete();
+        }
+        assertEquals(state.getPpm(), loaded.getPpm(), 0);
+        assertEquals(state.getRtTolerance(), loaded.getRtTolerance(), 0);
+        //the next batch is aligned exactly as it would have been without saving the state
+        for(Sample sample : samples.subList(10, 20)){
+            assertArrayEquals(state.addSample(sample.name, sample.mzs, sample.rts, sample.intensities, sample.charges),
+                    loaded.addSample(sample.name, sample.mzs, sample.rts, sample.intensities, sample.charges));
+        }
+        assertEquals(state.getFeatures().size(), loaded.getFeatures().size());
+        for(int f=0; f<state.getFeatures().size(); f++){
+            AlignmentState.Feature expected = state.getFeatures().get(f);
+            AlignmentState.Feature feature = loaded.getFeatures().get(f);
+            assertEquals(expected.getMeanMZ(), feature.getMeanMZ(), 0);
+            assertEquals(expected.getMeanRT(), feature.getMeanRT(), 0);
+            assertEquals(expected.getSamples(), feature.getSamples());
+            assertArrayEquals(expected.getIntensities(), feature.getIntensities(), 0);
+        }
+        //the samples of the first batch can't be added again
+        Sample first = samples.get(0);
+        try {
+            loaded.addSample(first.name, first.mzs, first.rts, first.intensities, first.charges);
+            fail("added a sample twice");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package lsi.sling.peakextraction;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IsotopeEnvelopeTest {
+
+    //the abundance of the +1 isotope relative to the lightest isotope of C, H, N, O and S
+    private static final double[] HEAVY_RATIOS = {0.0107/0.9893, 0.000115/0.999885, 0.00364/0.99636, 0.00038/0.99757,
+            0.0075/0.9499};
+
+    /**
+     * The ratio of the M+1 peak to the monoisotopic peak of a composition (exact, as the M+1 peak is made of exactly one
+     * heavy atom)
+     */
+    private static double firstRatio(int... atoms){
+        double ratio = 0;
+        for(int e=0; e<atoms.length; e++){
+            ratio += atoms[e]*HEAVY_RATIOS[e];
+        }
+        return ratio;
+    }
+
+    @Test
+    public void limitIsThreeTimesTheLargestAveragineRatio(){
+        //the averagine molecule of 1000 Da (9 residues) rounded to whole atoms, whose largest ratio is M+1/M
+        double limit = 3*firstRatio(44, 70, 12, 13, 0);
+        assertTrue(IsotopeEnvelope.isPlausible(1000, 1e6, 1e6*limit*(1 - 1e-6)));
+        assertFalse(IsotopeEnvelope.isPlausible(1000, 1e6, 1e6*limit*(1 + 1e-6)));
+        //a molecule within the same 10 Da bin has the same limit
+        assertFalse(IsotopeEnvelope.isPlausible(1004, 1e6, 1e6*limit*(1 + 1e-6)));
+    }
+
+    @Test
+    public void lipidEnvelopesArePlausible(){
+        //PC 34:1, TG 52:2 and PE 38:4 (C, H, N, O, S), along with their neutral masses
+        int[][] lipids = {{42, 82, 1, 8, 0}, {55, 102, 0, 6, 0}, {43, 78, 1, 8, 0}};
+        double[] masses = {759.58, 858.77, 767.55};
+        for(int i=0; i<lipids.length; i++){
+            double ratio = firstRatio(lipids[i]);
+            //even with the M+1 peak measured 50% too high
+            assertTrue(IsotopeEnvelope.isPlausible(masses[i], 1e6, 1e6*ratio*1.5));
+        }
+    }
+
+    @Test
+    public void heavierMoleculesAllowLargerUpperIsotopes(){
+        //an upper isotope as intense as the lower one is impossible for a small molecule, but not for a large one
+        assertFalse(IsotopeEnvelope.isPlausible(200, 1e5, 1e5));
+        assertTrue(IsotopeEnvelope.isPlausible(2000, 1e5, 1e5));
+        //(below about 200 Da the rounding of the few O and S atoms, whose +2 isotopes dominate, makes the limit jump)
+        double previous = 0;
+        for(double mass=200; mass<=5000; mass+=10){
+            double limit = limit(mass);
+            assertTrue("limit fell at " + mass + " Da", limit >= previous);
+            previous = limit;
+        }
+    }
+
+    @Test
+    public void massesOutsideTheTableUseTheEndBins(){
+        assertEquals(limit(5000), limit(20000), 0);
+        assertEquals(limit(0), limit(-5), 0);
+        assertTrue(IsotopeEnvelope.isPlausible(20000, 1, 0));
+    }
+
+    /**
+     * Finds the largest plausible ratio of the upper to the lower intensity (by bisection)
+     */
+    private static double limit(double mass){
+        double low = 0;
+        double high = 100;
+        for(int i=0; i<60; i++){
+            double mid = (low + high)/2;
+            if(IsotopeEnvelope.isPlausible(mass, 1, mid)){
+                low = mid;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
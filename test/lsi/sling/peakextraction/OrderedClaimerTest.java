@@ -0,0 +1,96 @@
+package lsi.sling.peakextraction;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OrderedClaimerTest {
+
+    @Test
+    public void matchesSequentialClaiming(){
+        Random random = new Random(9);
+        for(int repeat=0; repeat<50; repeat++){
+            int seeds = random.nextInt(500);
+            //each seed's cluster is itself plus a few nearby seeds (like the isotopes of a chromatogram), and some seeds
+            //can't start a cluster at all
+            int[][] members = new int[seeds][];
+            for(int i=0; i<seeds; i++){
+                if(random.nextInt(5) == 0){
+                    continue;
+                }
+                members[i] = new int[1 + random.nextInt(4)];
+                members[i][0] = i;
+                for(int m=1; m<members[i].length; m++){
+                    members[i][m] = Math.max(0, Math.min(seeds-1, i + random.nextInt(21) - 10));
+                }
+            }
+
+            //the original algorithm: create the clusters one at a time, skipping the seeds which have been claimed
+            boolean[] claimedSequentially = new boolean[seeds];
+            List<Integer> expected = new ArrayList<>();
+            for(int i=0; i<seeds; i++){
+                if(!claimedSequentially[i] && members[i] != null){
+                    for(int member : members[i]){
+                        claimedSequentially[member] = true;
+                    }
+                    expected.add(i);
+                }
+            }
+
+            AtomicIntegerArray claimed = new AtomicIntegerArray(seeds);
+            long delaySeed = random.nextLong();
+            List<Integer> actual = OrderedClaimer.build(seeds,
+                    i -> claimed.get(i) == 1,
+                    i -> {
+                        //a variable amount of work, so the clusters finish out of order
+                        long spin = new Random(delaySeed + i).nextInt(20000);
+                        double x = 0;
+                        for(long s=0; s<spin; s++){
+                            x += Math.sqrt(s);
+                        }
+                        return members[i] == null || x < 0 ? null : i;
+                    },
+                    i -> {
+                        for(int member : members[i]){
+                            claimed.set(member, 1);
+                        }
+                    });
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void claimedSeedsAreNotBuilt(){
+        //the first cluster claims every seed, so once it has been committed none of the other seeds should be built
+        int seeds = 10000;
+        AtomicBoolean allClaimed = new AtomicBoolean();
+        AtomicInteger built = new AtomicInteger();
+        List<Integer> clusters = OrderedClaimer.build(seeds,
+                i -> allClaimed.get(),
+                i -> {
+                    built.incrementAndGet();
+                    if(i > 0){
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return i;
+                },
+                i -> allClaimed.set(true));
+        assertEquals(Collections.singletonList(0), clusters);
+        //only the seeds taken whilst the first cluster was being built can have been built (about one per thread)
+        assertTrue(built.get() <= 2*ForkJoinPool.getCommonPoolParallelism() + 2);
+    }
+}
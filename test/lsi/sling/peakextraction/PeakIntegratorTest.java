@@ -0,0 +1,131 @@
+package lsi.sling.peakextraction;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PeakIntegratorTest {
+
+    /**
+     * Unevenly spaced, ascending RTs
+     */
+    private static double[] unevenRTs(Random random, int n){
+        double[] rts = new double[n];
+        rts[0] = 5;
+        for(int i=1; i<n; i++){
+            rts[i] = rts[i-1] + 0.01 + random.nextDouble()*0.05;
+        }
+        return rts;
+    }
+
+    private static double quadratic(double x){
+        return 3 + 2*x - 0.7*x*x;
+    }
+
+    /**
+     * The exact integral of the quadratic between a and b
+     */
+    private static double quadraticIntegral(double a, double b){
+        return 3*(b - a) + (b*b - a*a) - 0.7/3*(b*b*b - a*a*a);
+    }
+
+    @Test
+    public void simpsonIsExactForQuadraticsOnUnevenSpacing(){
+        Random random = new Random(37);
+        for(int repeat=0; repeat<100; repeat++){
+            //an even number of intervals
+            int n = 3 + 2*random.nextInt(20);
+            double[] rts = unevenRTs(random, n);
+            double[] intensities = Arrays.stream(rts).map(PeakIntegratorTest::quadratic).toArray();
+            assertEquals(quadraticIntegral(rts[0], rts[n-1]), PeakIntegrator.simpson(rts, intensities, 0, n), 1e-10);
+        }
+    }
+
+    @Test
+    public void simpsonUsesTheTrapezoidRuleForAnOddLastInterval(){
+        Random random = new Random(41);
+        double[] rts = unevenRTs(random, 8); //7 intervals
+        double[] intensities = Arrays.stream(rts).map(PeakIntegratorTest::quadratic).toArray();
+        double expected = quadraticIntegral(rts[0], rts[6]) + PeakIntegrator.trapezoid(rts, intensities, 6, 8);
+        assertEquals(expected, PeakIntegrator.simpson(rts, intensities, 0, 8), 1e-10);
+        //a linear peak is integrated exactly either way
+        double[] linear = Arrays.stream(rts).map(rt -> 2*rt + 1).toArray();
+        double exact = rts[7]*rts[7] + rts[7] - rts[0]*rts[0] - rts[0];
+        assertEquals(exact, PeakIntegrator.simpson(rts, linear, 0, 8), 1e-10);
+        assertEquals(exact, PeakIntegrator.trapezoid(rts, linear, 0, 8), 1e-10);
+    }
+
+    @Test
+    public void simpsonFallsBackOnRepeatedRTs(){
+        double[] rts = {1, 1, 2, 3, 4};
+        double[] intensities = {2, 2, 4, 6, 8};
+        assertEquals(PeakIntegrator.trapezoid(rts, intensities, 0, 5), PeakIntegrator.simpson(rts, intensities, 0, 5), 1e-12);
+    }
+
+    @Test
+    public void gaussianPeak(){
+        Random random = new Random(43);
+        double centre = 10;
+        double sigma = 0.1;
+        double height = 1e6;
+        double[] rts = new double[4000];
+        rts[0] = 9;
+        for(int i=1; i<rts.length; i++){
+            rts[i] = rts[i-1] + 0.0005 + random.nextDouble()*0.0005;
+        }
+        double[] intensities = Arrays.stream(rts).map(rt -> height*Math.exp(-0.5*Math.pow((rt - centre)/sigma, 2))).toArray();
+        int to = 0;
+        while(rts[to] < 11){
+            to++;
+        }
+        double area = height*sigma*Math.sqrt(2*Math.PI);
+        PeakIntegration simpson = PeakIntegrator.integrate(rts, intensities, 0, to, 1e3, PeakIntegrator.Method.SIMPSON);
+        PeakIntegration trapezoid = PeakIntegrator.integrate(rts, intensities, 0, to, 1e3, PeakIntegrator.Method.TRAPEZOID);
+        assertEquals(area, simpson.getArea(), area*1e-8);
+        assertEquals(area, trapezoid.getArea(), area*1e-5);
+        assertTrue(Math.abs(simpson.getArea() - area) < Math.abs(trapezoid.getArea() - area));
+        assertEquals(height, simpson.getHeight(), height*1e-4);
+        assertEquals(centre, simpson.getApexRT(), 0.001);
+        assertEquals(2*Math.sqrt(2*Math.log(2))*sigma, simpson.getFWHM(), 1e-4);
+        assertEquals(1, simpson.getAsymmetry(), 0.01);
+        assertEquals(simpson.getHeight()/1e3, simpson.getSignalToNoise(), 0);
+    }
+
+    @Test
+    public void tailingPeakIsAsymmetric(){
+        double[] rts = new double[400];
+        double[] intensities = new double[rts.length];
+        for(int i=0; i<rts.length; i++){
+            rts[i] = i*0.01;
+            //rises twice as fast as it falls
+            double x = rts[i] - 1;
+            intensities[i] = Math.exp(-0.5*Math.pow(x/(x < 0 ? 0.1 : 0.2), 2));
+        }
+        PeakIntegration integration = PeakIntegrator.integrate(rts, intensities, 0, rts.length, 1, PeakIntegrator.Method.TRAPEZOID);
+        assertEquals(2, integration.getAsymmetry(), 0.02);
+    }
+
+    @Test
+    public void rangeMatchesACopy(){
+        Random random = new Random(47);
+        double[] rts = unevenRTs(random, 60);
+        double[] intensities = new double[rts.length];
+        for(int i=0; i<rts.length; i++){
+            intensities[i] = random.nextDouble()*1e4;
+        }
+        for(PeakIntegrator.Method method : PeakIntegrator.Method.values()){
+            PeakIntegration range = PeakIntegrator.integrate(rts, intensities, 17, 41, 10, method);
+            PeakIntegration copy = PeakIntegrator.integrate(Arrays.copyOfRange(rts, 17, 41),
+                    Arrays.copyOfRange(intensities, 17, 41), 0, 24, 10, method);
+            assertEquals(copy.getArea(), range.getArea(), 0);
+            assertEquals(copy.getHeight(), range.getHeight(), 0);
+            assertEquals(copy.getApexRT(), range.getApexRT(), 0);
+            assertEquals(copy.getFWHM(), range.getFWHM(), 0);
+            assertEquals(copy.getAsymmetry(), range.getAsymmetry(), 0);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package lsi.sling.peakextraction;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class PeakTableTest {
+
+    @Test
+    public void closestMatchesALinearSearch(){
+        Random random = new Random(7);
+        int scans = 20;
+        ArrayList<LocalPeak> peaks = new ArrayList<>();
+        int[] scanOffsets = new int[scans+1];
+        double[] scanRTs = new double[scans];
+        for(int s=0; s<scans; s++){
+            scanOffsets[s] = peaks.size();
+            scanRTs[s] = s*0.1;
+            double mz = 200;
+            for(int i=random.nextInt(50); i>0; i--){
+                mz += random.nextInt(100)*0.0001;
+                peaks.add(new LocalPeak(s, 1, mz, scanRTs[s]));
+            }
+        }
+        scanOffsets[scans] = peaks.size();
+        PeakTable table = new PeakTable(peaks.toArray(new LocalPeak[0]), scanOffsets, scanRTs);
+        for(int repeat=0; repeat<5000; repeat++){
+            int scan = random.nextInt(scans);
+            double mz = 200 + random.nextInt(20000)*0.00005;
+            double ppm = 1 + random.nextInt(20);
+            int closest = table.closest(scan, mz, ppm);
+            int expected = -1;
+            for(int i=scanOffsets[scan]; i<scanOffsets[scan+1]; i++){
+                double distance = Math.abs(table.get(i).getMZ() - mz);
+                if(distance <= (mz/1e6)*ppm && (expected == -1 || distance < Math.abs(table.get(expected).getMZ() - mz))){
+                    expected = i;
+                }
+            }
+            if(expected != -1 && closest != -1){
+                //equally close peaks either side of the m/z can be returned
+                assertEquals(Math.abs(table.get(expected).getMZ() - mz), Math.abs(table.get(closest).getMZ() - mz), 0);
+            } else {
+                assertEquals(expected, closest);
+            }
+        }
+    }
+
+    @Test
+    public void indexOfFindsEveryPeak(){
+        LocalPeak[] peaks = {new LocalPeak(0, 1, 100, 0), new LocalPeak(0, 1, 200, 0), new LocalPeak(1, 1, 150, 1)};
+        PeakTable table = new PeakTable(peaks, new int[]{0, 2, 3}, new double[]{0, 1});
+        assertEquals(0, table.indexOf(0, 100));
+        assertEquals(1, table.indexOf(0, 200));
+        assertEquals(2, table.indexOf(1, 150));
+        assertEquals(-1, table.indexOf(0, 150));
+        assertEquals(-1, table.indexOf(1, 100));
+    }
+}
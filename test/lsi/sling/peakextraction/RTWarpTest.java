@@ -0,0 +1,63 @@
+package lsi.sling.peakextraction;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class RTWarpTest {
+
+    /**
+     * A smooth, monotone drift of up to about a minute
+     */
+    private static double drift(double rt){
+        return 0.5*Math.sin(rt/10) + 0.02*rt;
+    }
+
+    @Test
+    public void fitRemovesTheDrift(){
+        Random random = new Random(10);
+        int anchors = 2000;
+        double[] sampleRTs = new double[anchors];
+        double[] referenceRTs = new double[anchors];
+        for(int i=0; i<anchors; i++){
+            referenceRTs[i] = 1 + random.nextDouble()*28;
+            //the sample elutes later than the reference, with some noise and a few mismatched anchors
+            sampleRTs[i] = referenceRTs[i] + drift(referenceRTs[i]) + random.nextGaussian()*0.01;
+            if(random.nextInt(20) == 0){
+                sampleRTs[i] += random.nextGaussian()*2;
+            }
+        }
+        RTWarp warp = RTWarp.fit(sampleRTs, referenceRTs);
+        for(double rt=2; rt<28; rt+=0.5){
+            assertEquals(rt, warp.correct(rt + drift(rt)), 0.05);
+        }
+    }
+
+    @Test
+    public void inverseUndoesTheCorrection(){
+        double[] sampleRTs = new double[200];
+        double[] referenceRTs = new double[200];
+        for(int i=0; i<sampleRTs.length; i++){
+            referenceRTs[i] = 1 + i*0.14;
+            sampleRTs[i] = referenceRTs[i] + drift(referenceRTs[i]);
+        }
+        RTWarp warp = RTWarp.fit(sampleRTs, referenceRTs);
+        //inside the knots, before the first knot and after the last knot
+        for(double rt=0; rt<35; rt+=0.25){
+            assertEquals(rt, warp.inverse(warp.correct(rt)), 1e-9);
+            assertEquals(rt, warp.correct(warp.inverse(rt)), 1e-9);
+        }
+    }
+
+    @Test
+    public void identityDoesNothing(){
+        RTWarp warp = RTWarp.identity();
+        assertEquals(12.5, warp.correct(12.5), 0);
+        assertEquals(12.5, warp.inverse(12.5), 0);
+        //too few anchors to fit a warp
+        warp = RTWarp.fit(new double[]{1, 2, 3}, new double[]{2, 3, 4});
+        assertEquals(12.5, warp.correct(12.5), 0);
+    }
+}
@@ -0,0 +1,86 @@
+package lsi.sling.peakextraction;
+
+import flanagan.analysis.CurveSmooth;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class SavitzkyGolayFilterTest {
+
+    /**
+     * A chromatogram of a few overlapping peaks with noise
+     */
+    private static double[] chromatogram(Random random, int n){
+        double[] intensities = new double[n];
+        int peaks = 1 + random.nextInt(3);
+        for(int p=0; p<peaks; p++){
+            double centre = random.nextDouble()*n;
+            double width = 1 + random.nextDouble()*n/6;
+            double height = 1e4 + random.nextDouble()*1e6;
+            for(int i=0; i<n; i++){
+                intensities[i] += height*Math.exp(-0.5*Math.pow((i - centre)/width, 2));
+            }
+        }
+        for(int i=0; i<n; i++){
+            intensities[i] += random.nextDouble()*1e4;
+        }
+        return intensities;
+    }
+
+    @Test
+    public void matchesCurveSmooth(){
+        Random random = new Random(31);
+        for(int repeat=0; repeat<200; repeat++){
+            int n = 5 + random.nextInt(150);
+            double[] rts = new double[n];
+            for(int i=0; i<n; i++){
+                rts[i] = 10 + i*0.05;
+            }
+            double[] intensities = chromatogram(random, n);
+            int width = (int) (10*Math.log(n));
+
+            CurveSmooth curveSmooth = new CurveSmooth(rts, intensities);
+            double[] expected = curveSmooth.savitzkyGolay(width);
+            double[] smoothed = new double[n];
+            SavitzkyGolayFilter.smooth(intensities, smoothed, width, 4);
+            for(int i=0; i<n; i++){
+                assertEquals(expected[i], smoothed[i], 1e-9*Math.max(1, Math.abs(expected[i])));
+            }
+
+            //the minima are the same points (CurveSmooth returns their RTs)
+            double[] expectedMinima = curveSmooth.getMinimaSavitzkyGolay()[0];
+            int[] minima = new int[n];
+            int count = SavitzkyGolayFilter.findMinima(smoothed, minima);
+            double[] minimaRTs = Arrays.stream(Arrays.copyOf(minima, count)).mapToDouble(i -> rts[i]).toArray();
+            assertArrayEquals(expectedMinima, minimaRTs, 0);
+        }
+    }
+
+    @Test
+    public void evenWidthsAreRoundedUp(){
+        assertEquals(7, SavitzkyGolayFilter.windowWidth(6));
+        assertEquals(7, SavitzkyGolayFilter.windowWidth(7));
+        assertArrayEquals(SavitzkyGolayFilter.coefficients(7, 4),
+                SavitzkyGolayFilter.coefficients(SavitzkyGolayFilter.windowWidth(6), 4), 0);
+    }
+
+    @Test
+    public void coefficientsPreservePolynomials(){
+        //the smoothing coefficients sum to 1 and reproduce a polynomial of the fitted order exactly (away from the edges)
+        double[] coefficients = SavitzkyGolayFilter.coefficients(11, 4);
+        assertEquals(1, Arrays.stream(coefficients).sum(), 1e-12);
+        double[] data = new double[30];
+        for(int i=0; i<data.length; i++){
+            data[i] = 3 - 2*i + 0.5*i*i - 0.01*i*i*i + 0.001*i*i*i*i;
+        }
+        double[] smoothed = new double[data.length];
+        SavitzkyGolayFilter.smooth(data, smoothed, 11, 4);
+        for(int i=5; i<data.length-5; i++){
+            assertEquals(data[i], smoothed[i], 1e-9);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package lsi.sling.resulthandling;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FeatureIndexTest {
+
+    private static final int FEATURES = 2000;
+
+    private final double[] mzs = new double[FEATURES];
+    private final double[] rts = new double[FEATURES];
+
+    public FeatureIndexTest(){
+        Random random = new Random(17);
+        for(int i=0; i<FEATURES; i++){
+            //rounded, so that there are features with equal m/z values
+            mzs[i] = 100 + random.nextInt(100000)*0.01;
+            rts[i] = random.nextDouble()*20;
+        }
+    }
+
+    /**
+     * Finds the features in a range with a linear scan, in the order the index returns them (by m/z, then by index)
+     */
+    private int[] linearRange(double mzMin, double mzMax, double rtMin, double rtMax){
+        return IntStream.range(0, FEATURES)
+                .filter(i -> mzs[i] >= mzMin && mzs[i] <= mzMax && rts[i] >= rtMin && rts[i] <= rtMax)
+                .boxed().sorted((a, b) -> Double.compare(mzs[a], mzs[b])).mapToInt(Integer::intValue).toArray();
+    }
+
+    private double distance(int i, double mz, double rt, double mzScale, double rtScale){
+        double dmz = (mzs[i] - mz)/mzScale;
+        double drt = (rts[i] - rt)/rtScale;
+        return dmz*dmz + drt*drt;
+    }
+
+    @Test
+    public void rangeMatchesALinearScan(){
+        FeatureIndex index = new FeatureIndex(mzs, rts);
+        Random random = new Random(19);
+        for(int repeat=0; repeat<2000; repeat++){
+            double mzMin = 100 + random.nextDouble()*1000;
+            double mzMax = mzMin + random.nextDouble()*(repeat%2 == 0 ? 1 : 100);
+            double rtMin = random.nextDouble()*20;
+            double rtMax = rtMin + random.nextDouble()*5;
+            assertArrayEquals(linearRange(mzMin, mzMax, rtMin, rtMax), index.range(mzMin, mzMax, rtMin, rtMax));
+        }
+        //a range which includes a feature's exact m/z and RT
+        assertEquals(true, Arrays.stream(index.range(mzs[5], mzs[5], rts[5], rts[5])).anyMatch(i -> i == 5));
+    }
+
+    @Test
+    public void nearestMatchesALinearScan(){
+        FeatureIndex index = new FeatureIndex(mzs, rts);
+        Random random = new Random(23);
+        for(int repeat=0; repeat<2000; repeat++){
+            double mz = 90 + random.nextDouble()*1020;
+            double rt = random.nextDouble()*20;
+            double mzScale = 0.001 + random.nextDouble();
+            double rtScale = 0.01 + random.nextDouble();
+            int expected = 0;
+            for(int i=1; i<FEATURES; i++){
+                if(distance(i, mz, rt, mzScale, rtScale) < distance(expected, mz, rt, mzScale, rtScale)){
+                    expected = i;
+                }
+            }
+            int nearest = index.nearest(mz, rt, mzScale, rtScale);
+            //equally distant features can be returned
+            assertEquals(distance(expected, mz, rt, mzScale, rtScale), distance(nearest, mz, rt, mzScale, rtScale), 0);
+        }
+        assertEquals(-1, new FeatureIndex(new double[0], new double[0]).nearest(500, 10, 1, 1));
+    }
+
+    @Test
+    public void saveAndLoadRoundTrip() throws Exception {
+        FeatureIndex index = new FeatureIndex(mzs, rts);
+        File file = File.createTempFile("featureIndex", ".ser");
+        try {
+            index.save(file);
+            FeatureIndex loaded = FeatureIndex.load(file);
+            assertEquals(index.size(), loaded.size());
+            Random random = new Random(29);
+            for(int repeat=0; repeat<200; repeat++){
+                double mz = 100 + random.nextDouble()*1000;
+                double rt = random.nextDouble()*20;
+                assertArrayEquals(index.withinTolerance(mz, 2000, rt, 2), loaded.withinTolerance(mz, 2000, rt, 2));
+                assertEquals(index.nearest(mz, rt, 0.01, 0.1), loaded.nearest(mz, rt, 0.01, 0.1));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+}
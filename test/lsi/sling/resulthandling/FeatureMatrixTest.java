@@ -0,0 +1,147 @@
+package lsi.sling.resulthandling;
+
+import com.opencsv.CSVReader;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FeatureMatrixTest {
+
+    private static final String[] SAMPLES = {"a.mzXML", "b.mzXML", "c, \"d\".mzXML"};
+    private static final int FEATURES = 500;
+
+    private final double[] mzs = new double[FEATURES];
+    private final double[] rts = new double[FEATURES];
+    private final int[] charges = new int[FEATURES];
+    private final String[] adducts = new String[FEATURES];
+    private final float[][] intensities = new float[SAMPLES.length][FEATURES];
+
+    public FeatureMatrixTest(){
+        Random random = new Random(53);
+        for(int f=0; f<FEATURES; f++){
+            mzs[f] = 100 + random.nextDouble()*1000;
+            rts[f] = random.nextDouble()*30;
+            charges[f] = random.nextBoolean() ? 1 : -1;
+            adducts[f] = f % 3 == 0 ? "" : "PC " + f + " [M+H];PE " + f + " [M+Na]";
+            for(int s=0; s<SAMPLES.length; s++){
+                intensities[s][f] = f % 7 == s ? 0 : (float) (random.nextDouble()*1e7);
+            }
+        }
+    }
+
+    /**
+     * Writes the columns in the format documented by FeatureMatrix.writeBinary
+     */
+    private void writeColumns(File file, int magic) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(magic);
+            out.writeInt(1);
+            out.writeInt(SAMPLES.length);
+            out.writeInt(FEATURES);
+            for(String sample : SAMPLES){
+                out.writeUTF(sample);
+            }
+            for(double mz : mzs){
+                out.writeDouble(mz);
+            }
+            for(double rt : rts){
+                out.writeDouble(rt);
+            }
+            for(int charge : charges){
+                out.writeInt(charge);
+            }
+            for(String adduct : adducts){
+                out.writeUTF(adduct);
+            }
+            for(float[] column : intensities){
+                for(float intensity : column){
+                    out.writeFloat(intensity);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void binaryRoundTrip() throws IOException {
+        File columns = File.createTempFile("featureMatrix", ".bin");
+        File written = File.createTempFile("featureMatrix", ".bin");
+        try {
+            writeColumns(columns, 0x534C464D);
+            FeatureMatrix matrix = FeatureMatrix.readBinary(columns);
+            assertEquals(SAMPLES.length, matrix.getSampleCount());
+            assertEquals(FEATURES, matrix.getFeatureCount());
+            for(int s=0; s<SAMPLES.length; s++){
+                assertEquals(SAMPLES[s], matrix.getSample(s));
+            }
+            for(int f=0; f<FEATURES; f++){
+                assertEquals(mzs[f], matrix.getMZ(f), 0);
+                assertEquals(rts[f], matrix.getRT(f), 0);
+                assertEquals(charges[f], matrix.getCharge(f));
+                assertEquals(adducts[f], matrix.getAdducts(f));
+                for(int s=0; s<SAMPLES.length; s++){
+                    assertEquals(intensities[s][f], matrix.getIntensity(s, f), 0);
+                }
+            }
+            //writing the matrix back out gives exactly the same file
+            matrix.writeBinary(written);
+            assertArrayEquals(Files.readAllBytes(columns.toPath()), Files.readAllBytes(written.toPath()));
+        } finally {
+            columns.delete();
+            written.delete();
+        }
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File file = File.createTempFile("featureMatrix", ".bin");
+        try {
+            writeColumns(file, 0x12345678);
+            FeatureMatrix.readBinary(file);
+            fail("read a file without the feature matrix header");
+        } catch (IOException e) {
+            //expected
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void csvHasOneRowPerFeature() throws IOException {
+        File columns = File.createTempFile("featureMatrix", ".bin");
+        File csv = File.createTempFile("featureMatrix", ".csv");
+        try {
+            writeColumns(columns, 0x534C464D);
+            FeatureMatrix.readBinary(columns).writeCSV(csv);
+            List<String[]> rows;
+            try (CSVReader reader = new CSVReader(new FileReader(csv))) {
+                rows = reader.readAll();
+            }
+            assertEquals(FEATURES + 1, rows.size());
+            assertArrayEquals(new String[]{"mz", "rt", "charge", "adducts", SAMPLES[0], SAMPLES[1], SAMPLES[2]}, rows.get(0));
+            for(int f=0; f<FEATURES; f++){
+                String[] row = rows.get(f + 1);
+                assertEquals(mzs[f], Double.parseDouble(row[0]), 0);
+                assertEquals(rts[f], Double.parseDouble(row[1]), 0);
+                assertEquals(charges[f], Integer.parseInt(row[2]));
+                assertEquals(adducts[f], row[3]);
+                for(int s=0; s<SAMPLES.length; s++){
+                    assertEquals(intensities[s][f], Float.parseFloat(row[4 + s]), 0);
+                }
+            }
+        } finally {
+            columns.delete();
+            csv.delete();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package lsi.sling.statistics;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class PrimitiveSortTest {
+
+    @Test
+    public void matchesAStableComparatorSort(){
+        Random random = new Random(8);
+        for(int repeat=0; repeat<200; repeat++){
+            double[] keys = new double[random.nextInt(500)];
+            for(int i=0; i<keys.length; i++){
+                switch(random.nextInt(3)){
+                    case 0: keys[i] = random.nextInt(10); break; //exact duplicates
+                    case 1: keys[i] = 1000 + random.nextInt(10)*1e-9; break; //equal as floats but not as doubles
+                    default: keys[i] = random.nextGaussian()*1e6;
+                }
+            }
+            Integer[] ascending = new Integer[keys.length];
+            for(int i=0; i<keys.length; i++){
+                ascending[i] = i;
+            }
+            Integer[] descending = ascending.clone();
+            Arrays.sort(ascending, (a, b) -> Double.compare(keys[a], keys[b]));
+            Arrays.sort(descending, (a, b) -> Double.compare(keys[b], keys[a]));
+            assertArrayEquals(Arrays.stream(ascending).mapToInt(Integer::intValue).toArray(), PrimitiveSort.order(keys, false));
+            assertArrayEquals(Arrays.stream(descending).mapToInt(Integer::intValue).toArray(), PrimitiveSort.order(keys, true));
+        }
+    }
+}
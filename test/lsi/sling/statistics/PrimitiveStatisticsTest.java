@@ -0,0 +1,61 @@
+package lsi.sling.statistics;
+
+import org.apache.commons.math3.stat.descriptive.rank.Percentile;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PrimitiveStatisticsTest {
+
+    @Test
+    public void medianMatchesPercentile(){
+        Random random = new Random(1);
+        for(int n=1; n<200; n++){
+            for(int repeat=0; repeat<20; repeat++){
+                double[] values = new double[n];
+                for(int i=0; i<n; i++){
+                    //a small range of values so that there are plenty of duplicates
+                    values[i] = repeat % 2 == 0 ? random.nextGaussian() : random.nextInt(5);
+                }
+                double expected = new Percentile().evaluate(values, 50);
+                assertEquals(expected, PrimitiveStatistics.median(values.clone()), 0);
+            }
+        }
+    }
+
+    @Test
+    public void medianOfSortedAndConstantValues(){
+        double[] sorted = new double[1001];
+        for(int i=0; i<sorted.length; i++){
+            sorted[i] = i;
+        }
+        assertEquals(500, PrimitiveStatistics.median(sorted), 0);
+        double[] constant = new double[100];
+        Arrays.fill(constant, 3.5);
+        assertEquals(3.5, PrimitiveStatistics.median(constant), 0);
+        assertTrue(Double.isNaN(PrimitiveStatistics.median(new double[0])));
+    }
+
+    @Test
+    public void selectMatchesSort(){
+        Random random = new Random(2);
+        for(int repeat=0; repeat<100; repeat++){
+            double[] values = new double[1 + random.nextInt(100)];
+            for(int i=0; i<values.length; i++){
+                values[i] = random.nextInt(20);
+            }
+            double[] sorted = values.clone();
+            Arrays.sort(sorted);
+            int k = random.nextInt(values.length);
+            double[] selected = values.clone();
+            assertEquals(sorted[k], PrimitiveStatistics.select(selected, k), 0);
+            for(int i=0; i<values.length; i++){
+                assertTrue(i < k ? selected[i] <= sorted[k] : selected[i] >= sorted[k]);
+            }
+        }
+    }
+}